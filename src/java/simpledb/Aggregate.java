@@ -3,16 +3,16 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). Any number of aggregates, each over a single column, can be computed
+ * together in one pass over the child, grouped by zero or more columns.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child, it;
-    private int afield, gfield;
-    private Aggregator.Op aop;
+    private int[] afields, gfields;
+    private Aggregator.Op[] aops;
     private Aggregator aggregator;
     private TupleDesc td;
 
@@ -30,28 +30,55 @@ public class Aggregate extends Operator {
      * @param aop    The aggregation operator to use
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
-        // some code goes here
+        this(child, new int[]{afield},
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[]{gfield},
+                new Aggregator.Op[]{aop});
+    }
+
+    /**
+     * Constructor for computing several aggregates over composite groups.
+     * The output tuples hold the group-by fields, in the order given,
+     * followed by one field per aggregate.
+     *
+     * @param child   The OpIterator that is feeding us tuples.
+     * @param afields The columns over which we are computing aggregates.
+     * @param gfields The columns over which we are grouping the result; empty
+     *                if there is no grouping
+     * @param aops    The aggregation operator to use for each of afields
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        if (afields.length == 0 || afields.length != aops.length)
+            throw new IllegalArgumentException("one operator required per aggregate field");
         this.child = child;
-        this.afield = afield;
-        this.gfield = gfield;
-        this.aop = aop;
+        this.afields = afields;
+        this.gfields = gfields;
+        this.aops = aops;
         this.aggregator = null;
         this.it = null;
-        if (gfield == Aggregator.NO_GROUPING) {
-            td = new TupleDesc(new Type[]{Type.INT_TYPE});
-        } else {
-            td = new TupleDesc(new Type[]{child.getTupleDesc().getFieldType(gfield), Type.INT_TYPE});
-        }
+        Type[] types = new Type[gfields.length + afields.length];
+        for (int i = 0; i < gfields.length; i++)
+            types[i] = child.getTupleDesc().getFieldType(gfields[i]);
+        for (int i = 0; i < afields.length; i++)
+            types[gfields.length + i] = Type.INT_TYPE;
+        td = new TupleDesc(types);
     }
 
     /**
      * @return If this aggregate is accompanied by a groupby, return the groupby
      * field index in the <b>INPUT</b> tuples. If not, return
-     * {@link simpledb.Aggregator#NO_GROUPING}
+     * {@link simpledb.Aggregator#NO_GROUPING}. With several group by fields,
+     * this is the first of them.
      */
     public int groupField() {
         // some code goes here
-        return gfield;
+        return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
+    }
+
+    /**
+     * @return the indexes of all group by fields in the <b>INPUT</b> tuples
+     */
+    public int[] groupFields() {
+        return gfields;
     }
 
     /**
@@ -61,19 +88,26 @@ public class Aggregate extends Operator {
      */
     public String groupFieldName() {
         // some code goes here
-        if (gfield == Aggregator.NO_GROUPING) {
+        if (gfields.length == 0) {
             return null;
         } else {
-            return child.getTupleDesc().getFieldName(gfield);
+            return child.getTupleDesc().getFieldName(gfields[0]);
         }
     }
 
     /**
-     * @return the aggregate field
+     * @return the aggregate field; with several aggregates, the first one
      */
     public int aggregateField() {
         // some code goes here
-        return afield;
+        return afields[0];
+    }
+
+    /**
+     * @return the indexes of all aggregate fields in the <b>INPUT</b> tuples
+     */
+    public int[] aggregateFields() {
+        return afields;
     }
 
     /**
@@ -82,15 +116,38 @@ public class Aggregate extends Operator {
      */
     public String aggregateFieldName() {
         // some code goes here
-        return child.getTupleDesc().getFieldName(afield);
+        return child.getTupleDesc().getFieldName(afields[0]);
     }
 
     /**
-     * @return return the aggregate operator
+     * @return return the aggregate operator; with several aggregates, the
+     * operator of the first one
      */
     public Aggregator.Op aggregateOp() {
         // some code goes here
-        return aop;
+        return aops[0];
+    }
+
+    /**
+     * @return the aggregate operators, one per aggregate field
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return aops;
+    }
+
+    /**
+     * @return a new MultiAggregator computing every aggregate of this
+     * operator, with no groups merged into it yet
+     */
+    protected MultiAggregator newMultiAggregator() {
+        TupleDesc ctd = child.getTupleDesc();
+        Type[] gtypes = new Type[gfields.length];
+        for (int i = 0; i < gfields.length; i++)
+            gtypes[i] = ctd.getFieldType(gfields[i]);
+        Type[] atypes = new Type[afields.length];
+        for (int i = 0; i < afields.length; i++)
+            atypes[i] = ctd.getFieldType(afields[i]);
+        return new MultiAggregator(gfields, gtypes, afields, atypes, aops);
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -101,26 +158,44 @@ public class Aggregate extends Operator {
             TransactionAbortedException {
         // some code goes here
         child.open();
-        Type type = child.getTupleDesc().getFieldType(afield);
-        if (type == Type.INT_TYPE) {
-            aggregator = new IntegerAggregator(gfield, child.getTupleDesc().getFieldType(gfield), afield, aop);
+        it = groupIterator();
+        it.open();
+        super.open();
+    }
+
+    /**
+     * Builds the iterator over the group aggregate results. The child has
+     * already been opened when this is called. The default implementation
+     * drains the child into a hash based {@link Aggregator}; subclasses may
+     * instead produce the groups lazily.
+     *
+     * @return an unopened OpIterator over the aggregate results
+     */
+    protected OpIterator groupIterator() throws DbException, TransactionAbortedException {
+        if (afields.length > 1 || gfields.length > 1) {
+            aggregator = newMultiAggregator();
         } else {
-            aggregator = new StringAggregator(gfield, child.getTupleDesc().getFieldType(gfield), afield, aop);
+            int afield = afields[0], gfield = groupField();
+            Type gtype = gfield == Aggregator.NO_GROUPING ? null : child.getTupleDesc().getFieldType(gfield);
+            Type type = child.getTupleDesc().getFieldType(afield);
+            if (type == Type.INT_TYPE) {
+                aggregator = new IntegerAggregator(gfield, gtype, afield, aops[0]);
+            } else {
+                aggregator = new StringAggregator(gfield, gtype, afield, aops[0]);
+            }
         }
         while (child.hasNext()) {
             aggregator.mergeTupleIntoGroup(child.next());
         }
-        it = aggregator.iterator();
-        it.open();
-        super.open();
+        return aggregator.iterator();
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate. If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Returns the next tuple. If there are group by fields, then the first
+     * fields are the fields by which we are grouping, and the remaining fields
+     * are the results of computing the aggregates. If there is no group by
+     * field, then the result tuple contains only the aggregate results.
+     * Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
@@ -135,9 +210,9 @@ public class Aggregate extends Operator {
 
     /**
      * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * this will have one field per aggregate column. Otherwise the first
+     * fields will be the group by fields, followed by the aggregate value
+     * columns.
      * <p>
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -152,7 +227,7 @@ public class Aggregate extends Operator {
     public void close() {
         // some code goes here
         super.close();
-        it.close();
+        if (it != null) it.close();
         child.close();
     }
 
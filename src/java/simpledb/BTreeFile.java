@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import simpledb.Predicate.Op;
 
@@ -24,6 +25,14 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private final PageLSNs lsns;
+
+	/**
+	 * Latch on the structure of the tree. Searches hold it shared while they descend from the
+	 * root pointer to a leaf, and changes to the internal pages hold it exclusively. Nobody
+	 * waits for a lock while holding it, so it never takes part in a deadlock.
+	 */
+	private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -38,6 +47,7 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.lsns = new PageLSNs(f);
 	}
 
 	/**
@@ -94,6 +104,7 @@ public class BTreeFile implements DbFile {
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
+				p.setLSN(lsns.get(id.getPageNumber()));
 				return p;
 			}
 			else {
@@ -114,14 +125,17 @@ public class BTreeFile implements DbFile {
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
 					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
+					p.setLSN(lsns.get(id.getPageNumber()));
 					return p;
 				}
 				else if(id.pgcateg() == BTreePageId.LEAF) {
 					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
+					p.setLSN(lsns.get(id.getPageNumber()));
 					return p;
 				}
 				else { // id.pgcateg() == BTreePageId.HEADER
 					BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
+					p.setLSN(lsns.get(id.getPageNumber()));
 					return p;
 				}
 			}
@@ -158,6 +172,26 @@ public class BTreeFile implements DbFile {
 			rf.write(data);
 			rf.close();
 		}
+		lsns.set(id.getPageNumber(), page.getLSN());
+	}
+
+	// see DbFile.java for javadocs
+	public long maxLSN() throws IOException {
+		return lsns.max();
+	}
+
+	// see DbFile.java for javadocs
+	public void sync() throws IOException {
+		try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+			rf.getChannel().force(true);
+		}
+		lsns.sync();
+	}
+
+	// see DbFile.java for javadocs
+	public void close() throws IOException {
+		// the table file itself is only open while a page is read or written
+		lsns.close();
 	}
 	
 	/**
@@ -176,44 +210,117 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Find and lock the leaf page in the B+ tree corresponding to the left-most page possibly
+	 * containing the key field f, starting from the root pointer. The root pointer and the
+	 * internal pages along the path are read while holding the tree latch in shared mode, and
+	 * are not locked; only the leaf page is locked, with permission perm.
+	 * 
+	 * A page on the path that another running transaction has changed is waited for without
+	 * the latch, since the change may still be undone, and the search starts over. So is a
+	 * leaf page that cannot be locked right away: the lock is kept, but the tree may have
+	 * changed while we waited.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		while(true) {
+			BTreePageId pid = rootPtrId;
+			latch.readLock().lock();
+			try {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) readLatched(tid, dirtypages, rootPtrId);
+				if(rootPtr != null) {
+					pid = rootPtr.getRootId();
+					if(pid == null) { // the tree is empty, and its root page is the first page
+						pid = new BTreePageId(tableid, 1, BTreePageId.LEAF);
+					}
+					while(pid.pgcateg() == BTreePageId.INTERNAL) {
+						BTreeInternalPage page = (BTreeInternalPage) readLatched(tid, dirtypages, pid);
+						if(page == null) break;
+						pid = childFor(page, f);
+					}
+					if(pid.pgcateg() == BTreePageId.LEAF) {
+						Page leaf = tryGetPage(tid, dirtypages, pid, perm);
+						if(leaf != null) {
+							// a leaf to write to must stay in place in the buffer pool, in case
+							// its neighbours split
+							if(perm == Permissions.READ_WRITE) {
+								leaf.markDirty(true, tid);
+							}
+							return (BTreeLeafPage) leaf;
+						}
+					}
+				}
+			} finally {
+				latch.readLock().unlock();
+			}
+			if(pid.pgcateg() == BTreePageId.LEAF) {
+				getPage(tid, dirtypages, pid, perm);
+			}
+			else {
+				Database.getBufferPool().awaitWriters(tid, pid);
+			}
+		}
+	}
+
+	/**
+	 * Read a page while holding the tree latch, without locking it.
+	 * 
+	 * @return the page, or null if a transaction other than tid that is still running has
+	 * changed it
+	 */
+	private Page readLatched(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		Page p = Database.getBufferPool().getPageUnlocked(tid, pid);
+		TransactionId writer = p.isDirty();
+		if(writer != null && !writer.equals(tid)) {
+			return null;
+		}
+		return p;
+	}
+
+	/**
+	 * @return the child of an internal page which is the left-most subtree possibly
+	 * containing the key field f, or the left-most child if f is null
+	 */
+	private static BTreePageId childFor(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			if(f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+				return e.getLeftChild();
+			}
+		}
+		return e.getRightChild();
 	}
 	
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
 	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 * @see #findLeafPage(TransactionId, HashMap, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-			Field f) 
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f) 
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		return findLeafPage(tid, new HashMap<PageId, Page>(), perm, f);
 	}
 
 	/**
@@ -239,16 +346,41 @@ public class BTreeFile implements DbFile {
 	 */
 	protected BTreeLeafPage splitLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, Field field) 
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = page.reverseIterator();
+		int half = page.getNumTuples() / 2;
+		while(moving.size() < half) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+
+		// link the new page in between the page and its right sibling
+		BTreePageId rightSiblingId = page.getRightSiblingId();
+		if(rightSiblingId != null) {
+			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
+			rightSibling.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(rightSiblingId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+
+		// copy the first key of the new page up into the parent
+		Field key = newPage.iterator().next().getField(keyField);
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), key);
+		parent.insertEntry(new BTreeEntry(key, page.getId(), newPage.getId()));
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN_OR_EQ, key)) {
+			return newPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -276,16 +408,36 @@ public class BTreeFile implements DbFile {
 	protected BTreeInternalPage splitInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// move the upper half of the entries to the new page, and take the
+		// entry in the middle out to push it up
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		int half = page.getNumEntries() / 2;
+		while(moving.size() < half) {
+			moving.add(it.next());
+		}
+		BTreeEntry middle = it.next();
+		for(BTreeEntry e : moving) {
+			page.deleteKeyAndRightChild(e);
+			newPage.insertEntry(e);
+		}
+		page.deleteKeyAndRightChild(middle);
+		updateParentPointers(tid, dirtypages, newPage);
+
+		// push the middle key up into the parent
+		middle.setLeftChild(page.getId());
+		middle.setRightChild(newPage.getId());
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle.getKey());
+		parent.insertEntry(middle);
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN, middle.getKey())) {
+			return newPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -399,6 +551,11 @@ public class BTreeFile implements DbFile {
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
 	 * 
+	 * If the tree latch is held exclusively, the lock is not waited for while holding it: the latch
+	 * is released until the lock is granted. Pages fetched with read-write permission are marked
+	 * dirty right away then, so that while we wait, other transactions see that they are being
+	 * changed, and they are neither evicted nor left behind if the transaction aborts.
+	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the id of the requested page
@@ -414,13 +571,47 @@ public class BTreeFile implements DbFile {
 		if(dirtypages.containsKey(pid)) {
 			return dirtypages.get(pid);
 		}
-		else {
-			Page p = Database.getBufferPool().getPage(tid, pid, perm);
-			if(perm == Permissions.READ_WRITE) {
-				dirtypages.put(pid, p);
+		BufferPool bp = Database.getBufferPool();
+		if(!latch.isWriteLockedByCurrentThread()) {
+			return cache(dirtypages, bp.getPage(tid, pid, perm), perm);
+		}
+		Page p = bp.tryGetPage(tid, pid, perm);
+		if(p == null) {
+			latch.writeLock().unlock();
+			try {
+				bp.getPage(tid, pid, perm);
+			} finally {
+				latch.writeLock().lock();
 			}
-			return p;
+			// fetch the page again once the latch is held, as it may have changed
+			p = bp.getPage(tid, pid, perm);
+		}
+		if(perm == Permissions.READ_WRITE) {
+			p.markDirty(true, tid);
+		}
+		return cache(dirtypages, p, perm);
+	}
+
+	/**
+	 * Fetch a page like {@link #getPage(TransactionId, HashMap, BTreePageId, Permissions)}, but
+	 * only if it can be locked right away.
+	 * 
+	 * @return the requested page, or null if another transaction holds a conflicting lock on it
+	 */
+	private Page tryGetPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, 
+			Permissions perm) throws DbException, TransactionAbortedException {
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		Page p = Database.getBufferPool().tryGetPage(tid, pid, perm);
+		return p == null ? null : cache(dirtypages, p, perm);
+	}
+
+	private static Page cache(HashMap<PageId, Page> dirtypages, Page p, Permissions perm) {
+		if(perm == Permissions.READ_WRITE) {
+			dirtypages.put(p.getId(), p);
 		}
+		return p;
 	}
 
 	/**
@@ -431,27 +622,23 @@ public class BTreeFile implements DbFile {
 	 * @param t - the tuple to insert
 	 * @return a list of all pages that were dirtied by this operation. Could include
 	 * many pages since parent pointers will need to be updated when an internal node splits.
-	 * @see #splitLeafPage(TransactionId, HashMap, BTreeLeafPage, Field)
+	 * @see #splitFullLeafPage(TransactionId, HashMap, BTreeLeafPage, Field)
 	 */
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
-		// get a read lock on the root pointer page and use it to locate the root page
+		// use the root pointer to find out whether the root page has just been created
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		if(rootPtr.getRootId() == null) {
+			setFirstRoot(tid, dirtypages);
 		}
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, t.getField(keyField));
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			leafPage = splitFullLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
 		}
 
 		// insert the tuple into the leaf page
@@ -461,6 +648,421 @@ public class BTreeFile implements DbFile {
 		dirtyPagesArr.addAll(dirtypages.values());
 		return dirtyPagesArr;
 	}
+
+	/**
+	 * Point the root pointer at the first page of the file, which becomes the root page, if
+	 * the root pointer does not point anywhere yet. This is committed right away, unless tid
+	 * does not take locks.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 */
+	private void setFirstRoot(final TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		final BufferPool bp = Database.getBufferPool();
+		final BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		final BTreePageId rootId = new BTreePageId(tableid, 1, BTreePageId.LEAF);
+		latch.writeLock().lock();
+		try {
+			if(!bp.isLocking(tid)) {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+				if(rootPtr.getRootId() == null) {
+					rootPtr.setRootId(rootId);
+				}
+				return;
+			}
+			while(readLatched(tid, dirtypages, rootPtrId) == null) {
+				latch.writeLock().unlock();
+				try {
+					bp.awaitWriters(tid, rootPtrId);
+				} finally {
+					latch.writeLock().lock();
+				}
+			}
+			bp.changeCommitted(new BufferPool.CommittedChange() {
+				public void apply() throws DbException, IOException {
+					CommittedChanges changes = new CommittedChanges(tid);
+					if(((BTreeRootPtrPage) changes.committed(rootPtrId)).getRootId() == null) {
+						for(Page p : changes.copies(rootPtrId)) {
+							((BTreeRootPtrPage) p).setRootId(rootId);
+						}
+					}
+					changes.write();
+				}
+			});
+		} finally {
+			latch.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Split a full leaf page to make room for a tuple with key field "field", and return the
+	 * leaf page the tuple should be inserted into.
+	 * 
+	 * The split holds the tree latch exclusively. It is normally committed at once, whatever
+	 * becomes of the transaction, so that the internal pages it changes need not stay locked
+	 * until the transaction completes, see {@link SplitLeafPage}. If another running
+	 * transaction has changed one of those internal pages, the split waits for it without the
+	 * latch. If tid itself has, or if tid does not take locks, the split is part of the
+	 * transaction instead, see {@link #splitLeafPage(TransactionId, HashMap, BTreeLeafPage, Field)}.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the full leaf page, locked with read-write permission
+	 * @param field - the key field of the tuple to be inserted after the split is complete
+	 * @return the leaf page into which the new tuple should be inserted
+	 */
+	private BTreeLeafPage splitFullLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			BTreeLeafPage page, Field field) 
+					throws DbException, IOException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		latch.writeLock().lock();
+		try {
+			if(!bp.isLocking(tid)) {
+				return splitLeafPage(tid, dirtypages, page, field);
+			}
+			while(true) {
+				BTreePageId busy = null;
+				boolean own = false;
+				// the split changes the parent, and the ancestors up to the first one with an
+				// empty slot, or the root pointer if they are all full
+				BTreePageId pid = page.getParentId();
+				while(busy == null) {
+					Page p = bp.getPageUnlocked(tid, pid);
+					TransactionId writer = p.isDirty();
+					if(tid.equals(writer)) {
+						own = true;
+					}
+					else if(writer != null) {
+						busy = pid;
+					}
+					if(pid.pgcateg() == BTreePageId.ROOT_PTR || ((BTreeInternalPage) p).getNumEmptySlots() > 0) {
+						break;
+					}
+					pid = ((BTreeInternalPage) p).getParentId();
+				}
+				if(busy == null) {
+					if(own) {
+						return splitLeafPage(tid, dirtypages, page, field);
+					}
+					SplitLeafPage split = new SplitLeafPage(tid, page, field);
+					bp.changeCommitted(split);
+					dirtypages.put(page.getId(), page);
+					dirtypages.put(split.newPage.getId(), split.newPage);
+					return split.result;
+				}
+				latch.writeLock().unlock();
+				try {
+					bp.awaitWriters(tid, busy);
+				} finally {
+					latch.writeLock().lock();
+				}
+			}
+		} finally {
+			latch.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * The pages changed by a change to the structure of the tree that is committed at once,
+	 * see {@link BufferPool#changeCommitted}. Each page has a committed image, which is written
+	 * when the change is done, and a copy in the buffer pool if it is cached there, which may
+	 * have changes of running transactions on top.
+	 * 
+	 * Sibling and parent pointers are changed in both. They may be changed on any page, since
+	 * transactions change them only under the tree latch, held exclusively by the change. The
+	 * entries of an internal page are only changed in its committed image, and its copy in the
+	 * buffer pool is dropped; the change must make sure that no running transaction has changed
+	 * the page.
+	 */
+	private class CommittedChanges {
+		private final TransactionId tid;
+		/** the committed images of the pages changed, in the order they were first changed */
+		private final LinkedHashMap<PageId, Page> images = new LinkedHashMap<PageId, Page>();
+		/** the committed data of the pages changed before the change, except for free pages taken */
+		private final HashMap<PageId, byte[]> befores = new HashMap<PageId, byte[]>();
+		/** the copies in the buffer pool of the pages changed */
+		private final HashMap<PageId, Page> cached = new HashMap<PageId, Page>();
+		/** the pages whose copies in the buffer pool are dropped */
+		private final HashSet<PageId> dropped = new HashSet<PageId>();
+
+		CommittedChanges(TransactionId tid) {
+			this.tid = tid;
+		}
+
+		/** @return the committed image of a page, as changed so far */
+		Page committed(PageId pid) {
+			if(images.containsKey(pid)) {
+				return images.get(pid);
+			}
+			Page c = Database.getBufferPool().cachedPage(pid);
+			return c != null ? c.getBeforeImage() : readPage(pid);
+		}
+
+		/** @return the committed image of a page to change, and its copy in the buffer pool if any */
+		List<Page> copies(PageId pid) {
+			if(!images.containsKey(pid)) {
+				Page c = Database.getBufferPool().cachedPage(pid);
+				if(c != null) {
+					cached.put(pid, c);
+				}
+				images.put(pid, c != null ? c.getBeforeImage() : readPage(pid));
+				befores.put(pid, images.get(pid).getPageData());
+			}
+			List<Page> copies = new ArrayList<Page>(2);
+			if(cached.containsKey(pid)) {
+				copies.add(cached.get(pid));
+			}
+			copies.add(images.get(pid));
+			return copies;
+		}
+
+		/** @return the committed image of an internal page whose entries change */
+		BTreeInternalPage internalPage(BTreePageId pid) {
+			copies(pid);
+			dropped.add(pid);
+			return (BTreeInternalPage) images.get(pid);
+		}
+
+		void setParentId(BTreePageId pid, BTreePageId parentId) throws DbException {
+			for(Page p : copies(pid)) {
+				((BTreePage) p).setParentId(parentId);
+			}
+		}
+
+		/**
+		 * Take an empty page for a new page of the given category, reusing a page that is free
+		 * in the committed images of the header pages and in their copies in the buffer pool if
+		 * possible. A new leaf page is cached and locked by tid with read-write permission,
+		 * and a page that cannot be locked right away is not reused.
+		 * 
+		 * @return the committed image of the new page, or its cached copy for a leaf page
+		 */
+		BTreePage newPage(int pgcateg) throws DbException, IOException, TransactionAbortedException {
+			BTreePageId headerId = ((BTreeRootPtrPage) committed(BTreeRootPtrPage.getId(tableid))).getHeaderId();
+			int headerPageCount = 0;
+			int numPages = numPages();
+			while(headerId != null) {
+				BTreeHeaderPage headerPage = (BTreeHeaderPage) committed(headerId);
+				BTreeHeaderPage live = (BTreeHeaderPage) Database.getBufferPool().cachedPage(headerId);
+				int first = headerPageCount * BTreeHeaderPage.getNumSlots();
+				for(int slot = Math.max(1 - first, 0); slot < BTreeHeaderPage.getNumSlots()
+						&& first + slot <= numPages; slot++) {
+					if(headerPage.isSlotUsed(slot) || (live != null && live.isSlotUsed(slot))) {
+						continue;
+					}
+					BTreePage p = emptyPage(new BTreePageId(tableid, first + slot, pgcateg));
+					if(p != null) {
+						for(Page h : copies(headerId)) {
+							((BTreeHeaderPage) h).markSlotUsed(slot, true);
+						}
+						return p;
+					}
+				}
+				headerId = headerPage.getNextPageId();
+				headerPageCount++;
+			}
+			while(true) {
+				int emptyPageNo;
+				synchronized(BTreeFile.this) {
+					BufferedOutputStream bw = new BufferedOutputStream(
+							new FileOutputStream(f, true));
+					bw.write(BTreePage.createEmptyPageData());
+					bw.close();
+					emptyPageNo = numPages();
+				}
+				BTreePage p = emptyPage(new BTreePageId(tableid, emptyPageNo, pgcateg));
+				if(p != null) {
+					return p;
+				}
+			}
+		}
+
+		/** Wipe a free page and start a new page there; see {@link #newPage(int)} */
+		private BTreePage emptyPage(BTreePageId pid) throws DbException, IOException, TransactionAbortedException {
+			BufferPool bp = Database.getBufferPool();
+			RandomAccessFile rf = new RandomAccessFile(f, "rw");
+			rf.seek(BTreeRootPtrPage.getPageSize() + (pid.getPageNumber()-1) * BufferPool.getPageSize());
+			rf.write(BTreePage.createEmptyPageData());
+			rf.close();
+			bp.discardPage(pid);
+			Page c = null;
+			if(pid.pgcateg() == BTreePageId.LEAF) {
+				c = bp.tryGetPage(tid, pid, Permissions.READ_WRITE);
+				if(c == null) {
+					return null;
+				}
+				c.markDirty(true, tid);
+				cached.put(pid, c);
+			}
+			images.put(pid, readPage(pid));
+			return (BTreePage) (c != null ? c : images.get(pid));
+		}
+
+		/**
+		 * Log and write the committed images of the pages changed, and bring their copies in
+		 * the buffer pool up to date.
+		 */
+		void write() throws IOException {
+			BufferPool bp = Database.getBufferPool();
+			bp.writeCommitted(befores, images.values());
+			for(Page image : images.values()) {
+				PageId pid = image.getId();
+				if(dropped.contains(pid)) {
+					bp.discardPage(pid);
+				}
+				else if(cached.containsKey(pid)) {
+					cached.get(pid).setBeforeImage(image.getPageData());
+				}
+			}
+		}
+	}
+
+	/**
+	 * A split of a full leaf page that is committed at once, like a transaction of its own.
+	 * 
+	 * Of the tuples in the cached copy of the leaf page, the upper half moves to a new leaf page;
+	 * of the tuples in its committed image, those with a key no less than the first one moved.
+	 * Both pages stay locked by the transaction, with its changes on top. The rest of the split
+	 * works on committed pages: the parent, and any ancestors that split as well, are changed
+	 * as in {@link #splitLeafPage(TransactionId, HashMap, BTreeLeafPage, Field)} but are not
+	 * locked.
+	 */
+	private class SplitLeafPage implements BufferPool.CommittedChange {
+		private final BTreeLeafPage page;
+		private final Field field;
+		private final CommittedChanges changes;
+		/** the new leaf page, and the page to insert into */
+		BTreeLeafPage newPage, result;
+
+		SplitLeafPage(TransactionId tid, BTreeLeafPage page, Field field) {
+			this.page = page;
+			this.field = field;
+			this.changes = new CommittedChanges(tid);
+		}
+
+		public void apply() throws DbException, IOException, TransactionAbortedException {
+			List<Page> pages = changes.copies(page.getId());
+			BTreeLeafPage image = (BTreeLeafPage) pages.get(1);
+			newPage = (BTreeLeafPage) changes.newPage(BTreePageId.LEAF);
+			BTreeLeafPage newImage = (BTreeLeafPage) changes.copies(newPage.getId()).get(1);
+
+			// move the upper half of the tuples to the new page
+			ArrayList<Tuple> moving = new ArrayList<Tuple>();
+			Iterator<Tuple> it = page.reverseIterator();
+			int half = page.getNumTuples() / 2;
+			while(moving.size() < half) {
+				moving.add(it.next());
+			}
+			for(Tuple t : moving) {
+				page.deleteTuple(t);
+				newPage.insertTuple(t);
+			}
+			Field key = newPage.iterator().next().getField(keyField);
+
+			// and the committed tuples that belong there
+			moving.clear();
+			it = image.reverseIterator();
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				if(!t.getField(keyField).compare(Op.GREATER_THAN_OR_EQ, key)) {
+					break;
+				}
+				moving.add(t);
+			}
+			for(Tuple t : moving) {
+				image.deleteTuple(t);
+				newImage.insertTuple(t);
+			}
+
+			// link the new page in between the page and its right sibling
+			BTreePageId rightSiblingId = page.getRightSiblingId();
+			if(rightSiblingId != null) {
+				for(Page p : changes.copies(rightSiblingId)) {
+					((BTreeLeafPage) p).setLeftSiblingId(newPage.getId());
+				}
+			}
+			for(Page p : changes.copies(newPage.getId())) {
+				((BTreeLeafPage) p).setRightSiblingId(rightSiblingId);
+				((BTreeLeafPage) p).setLeftSiblingId(page.getId());
+			}
+			for(Page p : pages) {
+				((BTreeLeafPage) p).setRightSiblingId(newPage.getId());
+			}
+
+			// copy the key up into the parent
+			BTreeInternalPage parent = parentWithEmptySlots(page.getParentId(), key);
+			parent.insertEntry(new BTreeEntry(key, page.getId(), newPage.getId()));
+			changes.setParentId(page.getId(), parent.getId());
+			changes.setParentId(newPage.getId(), parent.getId());
+			changes.write();
+
+			result = field.compare(Op.GREATER_THAN_OR_EQ, key) ? newPage : page;
+		}
+
+		/**
+		 * @return the committed image of the parent page with the given id, split if it has no
+		 * empty slots, or a new root page
+		 * @see #getParentWithEmptySlots(TransactionId, HashMap, BTreePageId, Field)
+		 */
+		private BTreeInternalPage parentWithEmptySlots(BTreePageId parentId, Field field)
+				throws DbException, IOException, TransactionAbortedException {
+			BTreeInternalPage parent;
+			if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+				parent = (BTreeInternalPage) changes.newPage(BTreePageId.INTERNAL);
+				BTreePageId prevRootId = ((BTreeRootPtrPage) changes.committed(parentId)).getRootId();
+				for(Page p : changes.copies(parentId)) {
+					((BTreeRootPtrPage) p).setRootId(parent.getId());
+				}
+				changes.setParentId(prevRootId, parent.getId());
+			}
+			else {
+				parent = changes.internalPage(parentId);
+			}
+			if(parent.getNumEmptySlots() == 0) {
+				parent = splitInternalPage(parent, field);
+			}
+			return parent;
+		}
+
+		/**
+		 * Split the committed image of an internal page.
+		 * @see BTreeFile#splitInternalPage(TransactionId, HashMap, BTreeInternalPage, Field)
+		 */
+		private BTreeInternalPage splitInternalPage(BTreeInternalPage page, Field field)
+				throws DbException, IOException, TransactionAbortedException {
+			BTreeInternalPage newPage = (BTreeInternalPage) changes.newPage(BTreePageId.INTERNAL);
+
+			ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+			Iterator<BTreeEntry> it = page.reverseIterator();
+			int half = page.getNumEntries() / 2;
+			while(moving.size() < half) {
+				moving.add(it.next());
+			}
+			BTreeEntry middle = it.next();
+			for(BTreeEntry e : moving) {
+				page.deleteKeyAndRightChild(e);
+				newPage.insertEntry(e);
+			}
+			page.deleteKeyAndRightChild(middle);
+			for(BTreeEntry e : moving) {
+				changes.setParentId(e.getLeftChild(), newPage.getId());
+				changes.setParentId(e.getRightChild(), newPage.getId());
+			}
+
+			middle.setLeftChild(page.getId());
+			middle.setRightChild(newPage.getId());
+			BTreeInternalPage parent = parentWithEmptySlots(page.getParentId(), middle.getKey());
+			parent.insertEntry(middle);
+			changes.setParentId(page.getId(), parent.getId());
+			changes.setParentId(newPage.getId(), parent.getId());
+
+			if(field.compare(Op.GREATER_THAN, middle.getKey())) {
+				return newPage;
+			}
+			return page;
+		}
+	}
 	
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
@@ -487,8 +1089,16 @@ public class BTreeFile implements DbFile {
 		// find the left and right siblings through the parent so we make sure they have
 		// the same parent as the page. Find the entries in the parent corresponding to 
 		// the page and siblings
-		if(parentId.pgcateg() != BTreePageId.ROOT_PTR) {
+		// lock the parent. The page may move to another parent while we wait for the lock
+		while(parentId.pgcateg() != BTreePageId.ROOT_PTR) {
 			parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+			if(parentId.equals(page.getParentId())) {
+				break;
+			}
+			parentId = page.getParentId();
+			parent = null;
+		}
+		if(parent != null) {
 			Iterator<BTreeEntry> ite = parent.iterator();
 			while(ite.hasNext()) {
 				BTreeEntry e = ite.next();
@@ -576,11 +1186,21 @@ public class BTreeFile implements DbFile {
 	 */
 	protected void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		int move = sibling.getNumTuples() - (page.getNumTuples() + sibling.getNumTuples()) / 2;
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		while(moving.size() < move) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		// the key of the entry is the first key of the right-hand page
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		entry.setKey(right.iterator().next().getField(keyField));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -656,11 +1276,25 @@ public class BTreeFile implements DbFile {
 	protected void stealFromLeftInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		int move = (leftSibling.getNumEntries() - page.getNumEntries()) / 2;
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
+		while(moving.size() < move) {
+			moving.add(it.next());
+		}
+
+		// rotate the keys through the parent entry, right to left
+		Field key = parentEntry.getKey();
+		BTreePageId child = page.iterator().next().getLeftChild();
+		for(BTreeEntry e : moving) {
+			leftSibling.deleteKeyAndRightChild(e);
+			page.insertEntry(new BTreeEntry(key, e.getRightChild(), child));
+			key = e.getKey();
+			child = e.getRightChild();
+		}
+		parentEntry.setKey(key);
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -684,11 +1318,25 @@ public class BTreeFile implements DbFile {
 	protected void stealFromRightInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		int move = (rightSibling.getNumEntries() - page.getNumEntries()) / 2;
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = rightSibling.iterator();
+		while(moving.size() < move) {
+			moving.add(it.next());
+		}
+
+		// rotate the keys through the parent entry, left to right
+		Field key = parentEntry.getKey();
+		BTreePageId child = page.reverseIterator().next().getRightChild();
+		for(BTreeEntry e : moving) {
+			rightSibling.deleteKeyAndLeftChild(e);
+			page.insertEntry(new BTreeEntry(key, child, e.getLeftChild()));
+			key = e.getKey();
+			child = e.getLeftChild();
+		}
+		parentEntry.setKey(key);
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -713,12 +1361,26 @@ public class BTreeFile implements DbFile {
 			BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
 
-		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		// unlink the right page
+		BTreePageId rightSiblingId = rightPage.getRightSiblingId();
+		if(rightSiblingId != null) {
+			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
+			rightSibling.setLeftSiblingId(leftPage.getId());
+		}
+		leftPage.setRightSiblingId(rightSiblingId);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -745,13 +1407,24 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
 		
-		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		// pull the key of the parent entry down between the two pages
+		BTreePageId leftChild = leftPage.reverseIterator().next().getRightChild();
+		BTreePageId rightChild = rightPage.iterator().next().getLeftChild();
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), leftChild, rightChild));
+
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(BTreeEntry e : moving) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -819,13 +1492,22 @@ public class BTreeFile implements DbFile {
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
 		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+		// mark the leaf dirty before changing it, so that it is not evicted while a split
+		// of a neighbouring page updates its pointers in the buffer pool
+		page.markDirty(true, tid);
 		page.deleteTuple(t);
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
+		// or merge with one of the siblings. This changes the structure of the tree as part
+		// of the transaction, under the tree latch
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
 		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+			latch.writeLock().lock();
+			try {
+				handleMinOccupancyPage(tid, dirtypages, page);
+			} finally {
+				latch.writeLock().unlock();
+			}
 		}
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
@@ -834,8 +1516,8 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Get a read lock on the root pointer page. Create the root pointer page and root page
-	 * if necessary.
+	 * Get the root pointer page, without locking it: it is protected by the tree latch.
+	 * Create the root pointer page and root page if necessary.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages 
@@ -858,8 +1540,11 @@ public class BTreeFile implements DbFile {
 			}
 		}
 
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		if(dirtypages.containsKey(rootPtrId)) {
+			return (BTreeRootPtrPage) dirtypages.get(rootPtrId);
+		}
+		return (BTreeRootPtrPage) Database.getBufferPool().getPageUnlocked(tid, rootPtrId);
 	}
 
 	/**
@@ -876,7 +1561,7 @@ public class BTreeFile implements DbFile {
 	 */
 	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages) 
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
+		// get the root pointer page and use it to locate the first header page
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId headerId = rootPtr.getHeaderId();
 		int emptyPageNo = 0;
@@ -993,7 +1678,7 @@ public class BTreeFile implements DbFile {
 //			}
 //		}
 
-		// otherwise, get a read lock on the root pointer page and use it to locate 
+		// otherwise, get the root pointer page and use it to locate 
 		// the first header page
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId headerId = rootPtr.getHeaderId();
@@ -1004,7 +1689,9 @@ public class BTreeFile implements DbFile {
 		// the header pointer in the BTreeRootPtrPage
 		if(headerId == null) {
 			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			
+			headerId = rootPtr.getHeaderId();
+		}
+		if(headerId == null) {
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
 			headerId = headerPage.getId();
 			headerPage.init();
@@ -1096,10 +1783,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		it = curp.iterator();
 	}
 
@@ -1181,15 +1865,12 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		}
 		it = curp.iterator();
 	}
@@ -13,6 +13,7 @@ import java.io.*;
 public class BTreeHeaderPage implements Page {
 	private volatile boolean dirty = false;
 	private volatile TransactionId dirtier = null;
+	private volatile long lsn = 0;
 	
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -113,6 +114,14 @@ public class BTreeHeaderPage implements Page {
 		}
 	}
 
+	/** Record data as the image of this page before its pending changes */
+	public void setBeforeImage(byte[] data) {
+		synchronized(oldDataLock)
+		{
+			oldData = data;
+		}
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -264,6 +273,14 @@ public class BTreeHeaderPage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns true if the page of the BTreeFile associated with slot i is used
 	 */
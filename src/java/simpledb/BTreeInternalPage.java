@@ -761,8 +761,13 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key != null) {
+					// the left child is in the previous used slot, which is not
+					// entry - 1 if entries were deleted in between
+					while(curEntry > 0 && !p.isSlotUsed(curEntry)) {
+						--curEntry;
+					}
+					BTreePageId childId = p.getChildId(curEntry);
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
@@ -153,6 +153,12 @@ public class BTreeLeafPage extends BTreePage {
 		}
 	}
 
+	/** Log the tuples inserted and deleted one by one, see PageDelta */
+	public List<PageDelta> diff(byte[] before, byte[] after) {
+		// the header follows the parent and sibling pointers
+		return PageDelta.diffSlots(before, after, 3 * INDEX_SIZE, header.length, numSlots, td.getSize());
+	}
+
 	/**
 	 * Read tuples from the source file.
 	 */
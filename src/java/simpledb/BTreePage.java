@@ -13,6 +13,7 @@ import java.io.*;
 public abstract class BTreePage implements Page {
 	protected volatile boolean dirty = false;
 	protected volatile TransactionId dirtier = null;
+	private volatile long lsn = 0;
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -75,6 +76,14 @@ public abstract class BTreePage implements Page {
 		return new byte[len]; //all 0
 	}
 
+	/** Record data as the image of this page before its pending changes */
+	public void setBeforeImage(byte[] data) {
+		synchronized(oldDataLock)
+		{
+			oldData = data;
+		}
+	}
+
 	/**
 	 * Get the parent id of this page
 	 * @return the parent id
@@ -128,6 +137,14 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
@@ -14,6 +14,7 @@ public class BTreeRootPtrPage implements Page {
 
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
+	private volatile long lsn = 0;
 
 	private BTreePageId pid;
 	private DataInputStream dis;
@@ -51,6 +52,11 @@ public class BTreeRootPtrPage implements Page {
 		oldData = getPageData().clone();
 	}
 
+	/** Record data as the image of this page before its pending changes */
+	public void setBeforeImage(byte[] data) {
+		oldData = data;
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -138,6 +144,14 @@ public class BTreeRootPtrPage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
@@ -31,17 +31,60 @@ public class BufferPool {
 
     private final LockManager manager;
 
+    /** the tuples deleted under record locks by each running transaction */
+    private final ConcurrentHashMap<TransactionId, ConcurrentHashMap<RecordId, Tuple>> recordDeletes;
+
+    /**
+     * the pages flushAllPages wrote for each running transaction; their
+     * before images are the committed content until it completes
+     */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> stolen;
+
+    /** committed page images kept for read-only transactions */
+    private final VersionStore versions;
+
+    /** the transactions that run under optimistic concurrency control */
+    private final ValidationManager validator;
+
+    /**
+     * the pages whose changes a commit logged but did not write yet, see
+     * flushPages //protected by this
+     */
+    private final Set<PageId> unwritten;
+
     private final int numPages;
+
+    /** timestamp of the running committed change, see changeCommitted */
+    private long changeTs;
+    /** the pages the running committed change wrote */
+    private Set<PageId> changed;
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, LockManager.Policy.DETECT);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, and locks them
+     * with a lock manager that handles deadlocks according to policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy how the lock manager handles deadlocks
+     */
+    public BufferPool(int numPages, LockManager.Policy policy) {
         // some code goes here
         this.numPages = numPages;
         this.pool = new ConcurrentHashMap<>(numPages);
-        this.manager = new LockManager();
+        this.manager = new LockManager(policy);
+        this.recordDeletes = new ConcurrentHashMap<>();
+        this.stolen = new ConcurrentHashMap<>();
+        this.versions = new VersionStore();
+        this.validator = new ValidationManager();
+        this.unwritten = new HashSet<>();
     }
     
     public static int getPageSize() {
@@ -68,6 +111,10 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * Under optimistic concurrency control, no lock is taken: the page is
+     * added to the read set of the transaction, and a page requested for
+     * writing is a private copy until the transaction is validated.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -76,19 +123,362 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
+        Long snapshot = versions.snapshotOf(tid);
+        if (snapshot != null) {
+            if (perm != Permissions.READ_ONLY)
+                throw new DbException("transaction " + tid + " is read-only");
+            return snapshotPage(pid, snapshot);
+        }
+        if (validator.isRunning(tid)
+                || Database.getConcurrencyControl() == Database.ConcurrencyControl.OPTIMISTIC) {
+            validator.begin(tid);
+            Page committed = fetchPage(pid);
+            if (perm == Permissions.READ_ONLY)
+                return validator.read(tid, committed);
+            // copied under the latch, so a commit that narrows the zone map
+            // of the page either sees the copy or comes before its inserts
+            synchronized (committed) {
+                return validator.write(tid, committed);
+            }
+        }
         manager.lock(tid, pid, perm);
-        if (!pool.containsKey(pid)) {
-            // insufficient space
-            DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page p = f.readPage(pid);
-            if (p == null) throw new IllegalArgumentException("non-exist");
-            poolPut(pid, p);
+        return fetchPage(pid);
+    }
+
+    /**
+     * Retrieve a page like {@link #getPage}, but only if the lock can be
+     * granted right away.
+     *
+     * @return the page, or null if another transaction holds a conflicting
+     *         lock on it
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        if (!isLocking(tid))
+            return getPage(tid, pid, perm);
+        if (!manager.tryLock(tid, pid, perm)) return null;
+        return fetchPage(pid);
+    }
+
+    /**
+     * Retrieve a page for reading without locking it, for access methods
+     * that protect the page by other means, such as a latch. The page may
+     * have changes of running transactions. A transaction that does not
+     * lock gets the page as from {@link #getPage}.
+     */
+    public Page getPageUnlocked(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+        if (!isLocking(tid))
+            return getPage(tid, pid, Permissions.READ_ONLY);
+        return fetchPage(pid);
+    }
+
+    /**
+     * Take the lock {@link #getPage} would take on a page, without fetching
+     * the page, for access methods that skip pages they know enough about.
+     * Under optimistic concurrency control, the page is added to the read
+     * set of the transaction. A read-only transaction takes no lock.
+     */
+    public void lockPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        if (isSnapshot(tid)) {
+            if (perm != Permissions.READ_ONLY)
+                throw new DbException("transaction " + tid + " is read-only");
+            return;
+        }
+        if (validator.isRunning(tid)
+                || Database.getConcurrencyControl() == Database.ConcurrencyControl.OPTIMISTIC) {
+            validator.begin(tid);
+            validator.read(tid, pid);
+            return;
+        }
+        manager.lock(tid, pid, perm);
+    }
+
+    /**
+     * Wait until no transaction other than tid holds an exclusive lock on a
+     * page, without keeping a lock on it. Returns at once if tid does not
+     * lock.
+     *
+     * @throws TransactionAbortedException if tid was chosen to be aborted
+     *         to resolve or prevent a deadlock
+     */
+    public void awaitWriters(TransactionId tid, PageId pid)
+        throws TransactionAbortedException {
+        if (isLocking(tid))
+            manager.awaitWriters(tid, pid);
+    }
+
+    /**
+     * @return true if tid takes locks, rather than running optimistically or
+     *         as a read-only transaction
+     */
+    public boolean isLocking(TransactionId tid) {
+        return !isSnapshot(tid) && !validator.isRunning(tid)
+            && Database.getConcurrencyControl() != Database.ConcurrencyControl.OPTIMISTIC;
+    }
+
+    /** A change made by {@link #changeCommitted} */
+    public interface CommittedChange {
+        void apply() throws DbException, IOException, TransactionAbortedException;
+    }
+
+    /**
+     * Make a change to committed pages that takes effect at once, whatever
+     * becomes of the transaction on whose behalf it is made, as if it were
+     * a transaction of its own. Access methods use it to change their
+     * structure without holding locks on the pages they change until the
+     * transaction completes.
+     * <p>
+     * The change logs and writes the new committed images of the pages it
+     * changes with {@link #writeCommitted}, and makes the same change to the
+     * copy of each page in the pool, if any, and to its before image. It runs while
+     * no commit, eviction or read from disk is in progress, and no commit has
+     * pages that it logged but did not write yet. Read-only
+     * transactions do not see it if they began before it, and optimistic
+     * transactions that read a page it wrote fail validation.
+     */
+    public void changeCommitted(CommittedChange change)
+        throws DbException, IOException, TransactionAbortedException {
+        synchronized (validator) {
+            synchronized (this) {
+                awaitWritten(null);
+                changeTs = versions.startCommit();
+                changed = new LinkedHashSet<>();
+                try {
+                    change.apply();
+                } finally {
+                    versions.finishCommit(changeTs, changed);
+                    validator.publish(changed);
+                    changed = null;
+                }
+            }
         }
+    }
+
+    /**
+     * @return the copy of a page in the pool, or null if it is not there;
+     *         only for use by a committed change
+     */
+    public Page cachedPage(PageId pid) {
         return pool.get(pid);
     }
 
+    /**
+     * Write the new committed images of the pages a committed change
+     * changed. The change is logged first, as a transaction of its own, so
+     * that recovery can finish it if a crash interrupts the writes, see
+     * {@link LogFile#logCommittedChange}. Pages that did not change are not
+     * written. The caller updates the copies of the pages in the pool, if
+     * they are not the images themselves, and their before images after
+     * this returns.
+     *
+     * @param befores the committed data of each page before the change, or
+     *        null for a page that was free
+     * @param images the new committed images of the pages
+     */
+    public void writeCommitted(Map<PageId, byte[]> befores, Collection<Page> images) throws IOException {
+        LogFile log = Database.getLogFile();
+        for (Page image : log.logCommittedChange(befores, images)) {
+            PageId pid = image.getId();
+            DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            if (versions.saving() && !changed.contains(pid)) {
+                Page cached = pool.get(pid);
+                versions.save(pid, changeTs, cached != null ? cached.getBeforeImage() : f.readPage(pid));
+            }
+            f.writePage(image);
+            log.pageWritten(pid);
+            changed.add(pid);
+        }
+    }
+
+    /**
+     * Validate a transaction that runs under optimistic concurrency control,
+     * and make its writes visible to others if it passes. The pages it wrote
+     * replace the committed ones in the pool and are flushed right away, all
+     * before another transaction is validated. Does nothing for other
+     * transactions.
+     *
+     * @param tid the transaction that is about to commit
+     * @throws TransactionAbortedException if a transaction that committed
+     *         while tid ran wrote a page tid read; tid must abort
+     */
+    public void validate(TransactionId tid) throws TransactionAbortedException, IOException {
+        if (!validator.isRunning(tid)) return;
+        synchronized (validator) {
+            try {
+                for (Page p : validator.validate(tid)) {
+                    p.markDirty(true, tid);
+                    poolPut(p.getId(), p);
+                }
+            } catch (DbException e) {
+                throw new IOException("could not install the pages of " + tid, e);
+            }
+            flushPages(tid);
+        }
+    }
+
+    /**
+     * Start a read-only transaction. It reads the database as it was when
+     * it started, and never takes locks: getPage returns a private copy of
+     * each page as it was committed then, and neither waits for writers nor
+     * makes them wait.
+     *
+     * @param tid the ID of the transaction, which has not read anything yet
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.begin(tid);
+    }
+
+    /** @return true if tid is a read-only transaction */
+    public boolean isSnapshot(TransactionId tid) {
+        return versions.snapshotOf(tid) != null;
+    }
+
+    /** @return the number of page images kept for read-only transactions */
+    public int numVersions() {
+        return versions.size();
+    }
+
+    /**
+     * @return the lock manager of this buffer pool, to configure its lock
+     *         timeout and lock cap and to read its wait statistics
+     */
+    public LockManager getLockManager() {
+        return manager;
+    }
+
+    /**
+     * The committed image of a page is read before the saved images: a
+     * commit saves the image it overwrites before it changes the page, so
+     * an image newer than the snapshot is always superseded.
+     */
+    private Page snapshotPage(PageId pid, long snapshot) throws DbException {
+        Page current = fetchPage(pid).getBeforeImage();
+        Page old = versions.get(pid, snapshot);
+        return old != null ? old : current;
+    }
+
+    /** Look a page up in the pool, reading it in if it is not there */
+    private Page fetchPage(PageId pid) throws DbException {
+        Page p = pool.get(pid);
+        if (p == null) {
+            // read pages in under the monitor, so that two readers do not
+            // cache two copies of a page and a committed change does not
+            // write a page while it is read
+            synchronized (this) {
+                p = pool.get(pid);
+                if (p == null) {
+                    DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                    p = f.readPage(pid);
+                    if (p == null) throw new IllegalArgumentException("non-exist");
+                    poolPut(pid, p);
+                }
+            }
+        }
+        // return the page we found rather than looking it up again, since a
+        // concurrent reader may already have evicted it
+        return p;
+    }
+
+    /**
+     * Delete a tuple of a HeapFile under a record lock instead of a page
+     * lock, so other transactions can delete other tuples of its page at the
+     * same time. The page latch is only held while the slot is cleared. If
+     * the transaction holds an exclusive lock on the page anyway, the delete
+     * is an ordinary page level change.
+     * <p>
+     * Record level deletes are undone one by one if the transaction aborts,
+     * and when it commits, its page is written with the tuples deleted by
+     * transactions that are still running put back, so no uncommitted
+     * change reaches the disk. An optimistic transaction simply deletes the
+     * tuple from its private copy of the page.
+     *
+     * @param tid the transaction deleting the tuple
+     * @param t the tuple to delete
+     * @return the page the tuple was deleted from
+     * @throws DbException if the tuple is not stored in its slot
+     */
+    public Page deleteRecord(TransactionId tid, Tuple t)
+        throws DbException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        PageId pid = rid.getPageId();
+        if (validator.isRunning(tid)
+                || Database.getConcurrencyControl() == Database.ConcurrencyControl.OPTIMISTIC) {
+            HeapPage own = (HeapPage) getPage(tid, pid, Permissions.READ_WRITE);
+            own.deleteTuple(t);
+            return own;
+        }
+        manager.lockRecord(tid, rid, Permissions.READ_WRITE);
+        HeapPage p = (HeapPage) fetchPage(pid);
+        if (manager.holdsLock(tid, pid, Permissions.READ_WRITE)) {
+            p.deleteTuple(t);
+            return p;
+        }
+        synchronized (p) {
+            p.deleteTuple(t);
+            recordDeletes.computeIfAbsent(tid, k -> new ConcurrentHashMap<>()).put(rid, t);
+            p.markDirty(true, tid);
+        }
+        return p;
+    }
+
+    /** @return the pages a transaction deleted records from */
+    private static Set<PageId> pagesOf(Map<RecordId, Tuple> deletes) {
+        Set<PageId> pages = new HashSet<>();
+        for (RecordId rid : deletes.keySet())
+            pages.add(rid.getPageId());
+        return pages;
+    }
+
+    /**
+     * @return the tuples running transactions deleted from a page under
+     *         record locks, mapped to the transaction that deleted each
+     */
+    private Map<Tuple, TransactionId> recordDeletesOn(PageId pid) {
+        Map<Tuple, TransactionId> res = new HashMap<>();
+        for (Map.Entry<TransactionId, ConcurrentHashMap<RecordId, Tuple>> e : recordDeletes.entrySet()) {
+            for (Tuple t : e.getValue().values()) {
+                if (t.getRecordId().getPageId().equals(pid))
+                    res.put(t, e.getKey());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Put back the tuples an aborting transaction deleted under record
+     * locks. Pages it also changed under an exclusive lock are discarded
+     * afterwards anyway, so a slot it has reused since is left alone.
+     */
+    private void restoreRecordDeletes(TransactionId tid) throws IOException {
+        ConcurrentHashMap<RecordId, Tuple> deletes = recordDeletes.remove(tid);
+        if (deletes == null) return;
+        try {
+            for (PageId pid : pagesOf(deletes)) {
+                HeapPage p = (HeapPage) fetchPage(pid);
+                synchronized (p) {
+                    for (Tuple t : deletes.values()) {
+                        RecordId rid = t.getRecordId();
+                        if (rid.getPageId().equals(pid) && !p.isSlotUsed(rid.getTupleNumber()))
+                            p.restoreTuple(t);
+                    }
+                    if (!tid.equals(p.isDirty()) || manager.holdsLock(tid, pid, Permissions.READ_WRITE))
+                        continue;
+                    Map<Tuple, TransactionId> others = recordDeletesOn(pid);
+                    if (others.isEmpty())
+                        p.markDirty(false, null);
+                    else
+                        p.markDirty(true, others.values().iterator().next());
+                }
+            }
+        } catch (DbException e) {
+            throw new IOException("could not undo the deletes of " + tid, e);
+        }
+    }
+
     private void poolPut(PageId pid, Page p) throws DbException {
-        if (!pool.containsKey(pid) && pool.size() == numPages) {
+        if (!pool.containsKey(pid) && pool.size() >= numPages) {
             evictPage();
         }
         pool.put(pid, p);
@@ -146,9 +536,25 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        if (isSnapshot(tid)) {
+            versions.end(tid);
+            return;
+        }
+        if (validator.isRunning(tid)) {
+            if (!commit) {
+                validator.end(tid);
+                return;
+            }
+            try {
+                validate(tid);
+            } catch (TransactionAbortedException e) {
+                throw new IOException("transaction " + tid + " failed validation", e);
+            }
+        }
         if (commit) {
             flushPages(tid);
         } else {
+            restoreRecordDeletes(tid);
             restorePages(tid);
         }
         manager.releaseAll(tid);
@@ -177,7 +583,9 @@ public class BufferPool {
         ArrayList<Page> pages = f.insertTuple(tid, t);
         for (Page page : pages) {
             page.markDirty(true, tid);
-            poolPut(page.getId(), page);
+            // optimistic transactions keep the pages they write to themselves
+            if (!validator.isRunning(tid))
+                poolPut(page.getId(), page);
         }
     }
 
@@ -203,7 +611,9 @@ public class BufferPool {
         ArrayList<Page> pages = f.deleteTuple(tid, t);
         for (Page page : pages) {
             page.markDirty(true, tid);
-            poolPut(page.getId(), page);
+            // optimistic transactions keep the pages they write to themselves
+            if (!validator.isRunning(tid))
+                poolPut(page.getId(), page);
         }
     }
 
@@ -215,12 +625,18 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (PageId pid : pool.keySet()) {
-            flushPage(pid);
+        List<Page> dirty = new ArrayList<>();
+        for (Page p : pool.values()) {
+            if (p.isDirty() != null) {
+                dirty.add(p);
+                stolen.computeIfAbsent(p.isDirty(), t -> ConcurrentHashMap.newKeySet()).add(p.getId());
+            }
         }
+        writePages(dirty);
     }
 
-    public void updateToWriteLock(TransactionId tid, PageId pid) {
+    public void updateToWriteLock(TransactionId tid, PageId pid)
+        throws TransactionAbortedException {
         manager.updateToWriteLock(tid, pid);
     }
 
@@ -239,19 +655,24 @@ public class BufferPool {
     }
 
     /**
-     * Flushes a certain page to disk
-     * @param pid an ID indicating the page to flush
+     * Write dirty pages to disk, ahead of which their changes are logged: an
+     * UPDATE record is appended for each page, and the log is forced past
+     * the last one, before the first page is written. Each page is written
+     * with the LSN of its record.
+     * @param pages the pages to write
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
-        // some code goes here
-        // not necessary for lab1
-        // invalid page
-        if (!pool.containsKey(pid)) return;
-        Page p = pool.get(pid);
-        if (p.isDirty() == null) return;
-        DbFile table = Database.getCatalog().getDatabaseFile(p.getId().getTableId());
-        table.writePage(p);
-        p.markDirty(false, null);
+    private synchronized void writePages(List<Page> pages) throws IOException {
+        if (pages.isEmpty()) return;
+        LogFile log = Database.getLogFile();
+        for (Page p : pages)
+            p.setLSN(log.logWrite(p.isDirty(), p.getBeforeImage(), p));
+        log.flushToLSN(pages.get(pages.size() - 1).getLSN());
+        for (Page p : pages) {
+            DbFile table = Database.getCatalog().getDatabaseFile(p.getId().getTableId());
+            table.writePage(p);
+            log.pageWritten(p.getId());
+            p.markDirty(false, null);
+        }
     }
 
     /**
@@ -259,19 +680,224 @@ public class BufferPool {
      * @param tid an ID indicating the transaction
      */
     private synchronized void restorePages(TransactionId tid) {
-        for (PageId pid : manager.lockedPages(tid)) {
+        for (PageId pid : dirtiedPages(tid)) {
             // simply discard changes
             discardPage(pid);
         }
+        // pages written early hold the changes too; the log rolls them back
+        // on disk
+        Set<PageId> early = stolen.remove(tid);
+        if (early == null) return;
+        for (PageId pid : early) {
+            Page p = pool.get(pid);
+            if (p != null && p.isDirty() == null)
+                discardPage(pid);
+        }
+    }
+
+    /**
+     * The pages a transaction dirtied are all in the pool, since dirty pages
+     * are never evicted. They are found there rather than through the locks
+     * of the transaction, which may cover a whole table.
+     */
+    private List<PageId> dirtiedPages(TransactionId tid) {
+        List<PageId> pages = new ArrayList<>();
+        for (Page p : pool.values()) {
+            if (tid.equals(p.isDirty()))
+                pages.add(p.getId());
+        }
+        return pages;
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (PageId pid : manager.lockedPages(tid)) {
-            flushPage(pid);
+        flushPages(tid, false);
+    }
+
+    /**
+     * Write all pages of a committing transaction to disk, and log its
+     * COMMIT record right after the changes to them, so that one force of
+     * the log covers both. The force is shared with other committing
+     * transactions, see LogFile.setGroupCommitDelay. The transaction keeps
+     * its locks; transactionComplete releases them.
+     *
+     * @param tid the committing transaction
+     */
+    public void commitPages(TransactionId tid) throws IOException {
+        flushPages(tid, true);
+    }
+
+    /**
+     * Write the pages of a transaction in two steps. Their changes are
+     * logged with the monitor held, and the pages are written with it held
+     * again once the log is forced past the changes, so that the force
+     * holds up no other transaction and concurrent commits share it. The
+     * pages are unwritten in between: no other commit logs them, no
+     * committed change runs, and they are not evicted.
+     *
+     * @param commit whether to log the COMMIT record of tid as well
+     */
+    private void flushPages(TransactionId tid, boolean commit) throws IOException {
+        LogFile log = Database.getLogFile();
+        Map<PageId, Page> images;
+        long lsn = -1;
+        synchronized (this) {
+            images = logPages(tid);
+            for (Page image : images.values())
+                lsn = Math.max(lsn, image.getLSN());
+            if (commit)
+                lsn = log.appendCommit(tid);
+        }
+        boolean forced = false;
+        try {
+            if (commit)
+                log.awaitCommit(lsn);
+            else if (lsn != -1)
+                log.flushToLSN(lsn);
+            forced = true;
+        } finally {
+            synchronized (this) {
+                try {
+                    if (forced)
+                        writeLogged(tid, images);
+                } finally {
+                    unwritten.removeAll(images.keySet());
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Log the changes to the pages a transaction dirtied or deleted records
+     * from, once no other commit has pages among them that it logged but did
+     * not write yet. The pages are unwritten until writeLogged is called.
+     * A page other transactions deleted records from is written with their
+     * tuples put back, so no uncommitted change reaches the disk.
+     *
+     * @return the image to write of each page, the page itself unless the
+     *         transaction deleted records from it
+     */
+    private Map<PageId, Page> logPages(TransactionId tid) throws IOException {
+        ConcurrentHashMap<RecordId, Tuple> deletes;
+        Set<PageId> deleted;
+        List<PageId> dirty;
+        while (true) {
+            deletes = recordDeletes.get(tid);
+            deleted = deletes == null ? Collections.<PageId>emptySet() : pagesOf(deletes);
+            dirty = dirtiedPages(tid);
+            Set<PageId> pages = new HashSet<>(deleted);
+            pages.addAll(dirty);
+            if (Collections.disjoint(unwritten, pages))
+                break;
+            awaitWritten(pages);
+        }
+        recordDeletes.remove(tid);
+        LogFile log = Database.getLogFile();
+        Map<PageId, Page> images = new LinkedHashMap<>();
+        try {
+            for (PageId pid : deleted) {
+                HeapPage p = (HeapPage) fetchPage(pid);
+                synchronized (p) {
+                    HeapPage image = new HeapPage((HeapPageId) pid, p.getPageData());
+                    for (Tuple t : recordDeletesOn(pid).keySet())
+                        image.restoreTuple(t);
+                    image.setLSN(log.logWrite(tid, p.getBeforeImage(), image));
+                    images.put(pid, image);
+                }
+            }
+        } catch (DbException e) {
+            throw new IOException("could not log the deletes of " + tid, e);
+        }
+        for (PageId pid : dirty) {
+            if (images.containsKey(pid))
+                continue;
+            Page p = pool.get(pid);
+            p.setLSN(log.logWrite(tid, p.getBeforeImage(), p));
+            images.put(pid, p);
+        }
+        unwritten.addAll(images.keySet());
+        return images;
+    }
+
+    /**
+     * Write the pages logPages logged, now that the log is forced past their
+     * changes, and make them the committed images of the pages. A page
+     * written with the tuples other transactions deleted put back stays
+     * dirty on their behalf. The zone map of a heap page is recomputed from
+     * its image, unless an optimistic transaction writes to a copy of it.
+     *
+     * @param images the image to write of each page, see logPages
+     */
+    private void writeLogged(TransactionId tid, Map<PageId, Page> images) throws IOException {
+        LogFile log = Database.getLogFile();
+        long ts = versions.startCommit();
+        List<PageId> written = new ArrayList<>();
+        try {
+            for (Map.Entry<PageId, Page> e : images.entrySet()) {
+                PageId pid = e.getKey();
+                Page image = e.getValue();
+                Page p = pool.get(pid);
+                if (p == null)
+                    p = image;
+                synchronized (p) {
+                    if (versions.saving())
+                        versions.save(pid, ts, p.getBeforeImage());
+                    DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                    // no other locking transaction has uncommitted inserts
+                    // on the page, since inserts lock it exclusively, and
+                    // the tuples others deleted are put back in the image
+                    if (f instanceof HeapFile && !validator.isWritten(pid))
+                        ((HeapFile) f).writeCommitted(image);
+                    else
+                        f.writePage(image);
+                    log.pageWritten(pid);
+                    written.add(pid);
+                    if (image == p)
+                        p.setBeforeImage();
+                    else
+                        ((HeapPage) p).setBeforeImage(image.getPageData());
+                    Map<Tuple, TransactionId> others = recordDeletesOn(pid);
+                    if (others.isEmpty())
+                        p.markDirty(false, null);
+                    else
+                        p.markDirty(true, others.values().iterator().next());
+                }
+            }
+            // pages flushAllPages wrote, and tid did not change since
+            Set<PageId> early = stolen.remove(tid);
+            if (early != null) {
+                for (PageId pid : early) {
+                    Page p = pool.get(pid);
+                    if (p == null || p.isDirty() != null || written.contains(pid))
+                        continue;
+                    if (versions.saving())
+                        versions.save(pid, ts, p.getBeforeImage());
+                    p.setBeforeImage();
+                    written.add(pid);
+                }
+            }
+        } finally {
+            versions.finishCommit(ts, written);
+        }
+    }
+
+    /**
+     * Wait until the commits that logged the given pages wrote them, or
+     * until no page is unwritten if pages is null; the monitor must be held.
+     */
+    private void awaitWritten(Collection<PageId> pages) throws InterruptedIOException {
+        Set<PageId> waitFor = pages == null ? unwritten : new HashSet<>(pages);
+        while (!Collections.disjoint(unwritten, waitFor)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for a commit");
+            }
         }
     }
 
@@ -285,7 +911,8 @@ public class BufferPool {
         PageId pid = null;
         for (Map.Entry<PageId, Page> entry : pool.entrySet()) {
             Page p = entry.getValue();
-            if (p.isDirty() == null) {
+            // a page a commit logged stays until the commit writes it
+            if (p.isDirty() == null && !unwritten.contains(entry.getKey())) {
                 pid = entry.getKey();
                 break;
             }
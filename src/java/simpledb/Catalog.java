@@ -133,15 +133,26 @@ public class Catalog {
         return t.name;
     }
     
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog, and close their files */
     public void clear() {
         // some code goes here
+        for (Table t : idMap.values()) {
+            try {
+                t.file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         nameMap.clear();
         idMap.clear();
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * The pages of table <code>name</code> are read from <code>name.dat</code>
+     * in the folder of the catalog file. Next to it are kept
+     * <code>name.dat.zm</code>, the summaries of its pages (see {@link ZoneMap}),
+     * and <code>name.dat.lsn</code>, the LSNs of its pages (see {@link PageLSNs}).
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -21,6 +21,16 @@ public class Database {
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
 
+    /** How transactions are isolated from each other */
+    public enum ConcurrencyControl {
+        /** strict two-phase locking, through the LockManager */
+        LOCKING,
+        /** optimistic, validated at commit by the ValidationManager */
+        OPTIMISTIC
+    }
+
+    private volatile ConcurrencyControl _concurrency = ConcurrencyControl.LOCKING;
+
     private Database() {
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
@@ -45,6 +55,19 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return how the static Database instance isolates transactions */
+    public static ConcurrencyControl getConcurrencyControl() {
+        return _instance.get()._concurrency;
+    }
+
+    /**
+     * Choose how the static Database instance isolates transactions that
+     * begin from now on. Should only be changed while no transaction runs.
+     */
+    public static void setConcurrencyControl(ConcurrencyControl cc) {
+        _instance.get()._concurrency = cc;
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
@@ -55,11 +78,19 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, LockManager.Policy.DETECT);
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * that handles deadlocks according to policy, and return it
+     */
+    public static BufferPool resetBufferPool(int pages, LockManager.Policy policy) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), new BufferPool(pages, policy));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -75,7 +106,7 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        _instance.getAndSet(new Database())._catalog.clear();
     }
 
 }
@@ -28,6 +28,23 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * @return the highest LSN of a page of this file on disk, or 0 if no page
+     *         was written with an LSN, see {@link Page#getLSN}
+     */
+    public long maxLSN() throws IOException;
+
+    /**
+     * Force the pages written to this file so far, and their LSNs, to disk.
+     */
+    public void sync() throws IOException;
+
+    /**
+     * Close the files this DbFile keeps open. They are opened again if it is
+     * used afterwards.
+     */
+    public void close() throws IOException;
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
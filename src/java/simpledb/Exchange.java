@@ -0,0 +1,35 @@
+package simpledb;
+
+/**
+ * Exchange is the base class of the operators that move tuples between
+ * threads, so that parts of a plan can run in parallel: {@link Repartition}
+ * splits the output of one plan into several partitions, and {@link Gather}
+ * runs several plans on worker threads and merges their output. Tuples are
+ * handed over through bounded queues of {@link #QUEUE_SIZE} entries.
+ */
+public abstract class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of tuples that may be queued between two threads */
+    public static final int QUEUE_SIZE = 1024;
+
+    /** Queued by a producer once its input is exhausted */
+    static final Object END = new Object();
+
+    /**
+     * @return a short description of this exchange, as shown in query plans
+     */
+    public abstract String getName();
+
+    /** Rethrow an exception caught on another thread as our own */
+    static void rethrow(Exception e) throws DbException, TransactionAbortedException {
+        if (e instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) e;
+        if (e instanceof DbException)
+            throw (DbException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        throw new DbException(e.toString());
+    }
+}
@@ -0,0 +1,178 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Gather is an exchange operator that runs each of its children on a worker
+ * thread of its own and merges their tuples into a single stream on the
+ * consumer's thread. Workers hand tuples over through bounded queues, so a
+ * fast child blocks instead of buffering its whole output.
+ * <p>
+ * By default tuples are returned in whatever order the workers produce
+ * them. An order preserving Gather instead returns all tuples of its first
+ * child, then all tuples of the second, and so on, while the later children
+ * run ahead up to the capacity of their queues.
+ *
+ * @see Repartition
+ */
+public class Gather extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator[] children;
+    private final boolean ordered;
+    private TupleDesc td;
+    private transient List<BlockingQueue<Object>> queues;
+    private transient Thread[] workers;
+    private transient int running, current;
+
+    /**
+     * Constructor.
+     *
+     * @param children
+     *            the plans to run in parallel; they must all produce tuples
+     *            with the same TupleDesc
+     */
+    public Gather(OpIterator[] children) {
+        this(children, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param children
+     *            the plans to run in parallel; they must all produce tuples
+     *            with the same TupleDesc
+     * @param ordered
+     *            whether to return the output of the children one after the
+     *            other, in order, instead of interleaved
+     */
+    public Gather(OpIterator[] children, boolean ordered) {
+        if (children.length == 0)
+            throw new IllegalArgumentException("nothing to gather");
+        this.children = children;
+        this.ordered = ordered;
+        this.td = children[0].getTupleDesc();
+    }
+
+    /**
+     * @return true if this Gather returns the output of its children in order
+     */
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        // unordered workers all share a single queue
+        queues = new ArrayList<BlockingQueue<Object>>(children.length);
+        for (int i = 0; i < children.length; i++) {
+            if (ordered || i == 0)
+                queues.add(new ArrayBlockingQueue<Object>(QUEUE_SIZE));
+            else
+                queues.add(queues.get(0));
+        }
+        workers = new Thread[children.length];
+        running = children.length;
+        current = 0;
+        for (int i = 0; i < children.length; i++) {
+            final OpIterator child = children[i];
+            final BlockingQueue<Object> queue = queues.get(i);
+            workers[i] = new Thread("gather-" + i) {
+                public void run() {
+                    try {
+                        child.open();
+                        while (child.hasNext())
+                            queue.put(child.next());
+                        queue.put(END);
+                    } catch (InterruptedException e) {
+                        // closed by the consumer
+                    } catch (Exception e) {
+                        try {
+                            queue.put(e);
+                        } catch (InterruptedException ie) {
+                            // closed by the consumer
+                        }
+                    } finally {
+                        child.close();
+                    }
+                }
+            };
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        super.open();
+    }
+
+    /**
+     * Stops the workers; each of them closes its child.
+     */
+    public void close() {
+        super.close();
+        if (workers == null) return;
+        for (Thread w : workers)
+            w.interrupt();
+        for (Thread w : workers) {
+            try {
+                w.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        workers = null;
+        queues = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * Returns the next tuple produced by any worker, or null once every
+     * worker has exhausted its child. An exception raised by a worker is
+     * rethrown here.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (running > 0) {
+            Object o;
+            try {
+                o = queues.get(current).take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted while gathering tuples");
+            }
+            if (o == END) {
+                running--;
+                if (ordered) current++;
+            } else if (o instanceof Tuple) {
+                return (Tuple) o;
+            } else {
+                running = 0;
+                rethrow((Exception) o);
+            }
+        }
+        return null;
+    }
+
+    public String getName() {
+        return (ordered ? "merge(" : "gather(") + children.length + ")";
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return children;
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.children = children;
+    }
+
+}
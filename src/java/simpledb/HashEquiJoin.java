@@ -11,6 +11,7 @@ public class HashEquiJoin extends Operator {
     private JoinPredicate pred;
     private OpIterator child1, child2;
     private TupleDesc comboTD;
+    private final int mapSize;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
 
@@ -26,9 +27,30 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, MAP_SIZE);
+    }
+
+    /**
+     * Constructor. Accepts to children to join, the predicate to join them
+     * on, and the number of outer tuples hashed per pass over the inner
+     * relation. With a mapSize of Integer.MAX_VALUE the whole outer relation
+     * is hashed, so child1 is read to its end before child2 is read at all,
+     * and child2 is never rewound.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param mapSize
+     *            The number of outer tuples to hash per pass
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int mapSize) {
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.mapSize = mapSize;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -53,7 +75,61 @@ public class HashEquiJoin extends Operator {
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
     public final static int MAP_SIZE = 20000;
 
+    // When the join fields are INT_TYPE the outer tuples are hashed on the
+    // unboxed key instead: intMap maps each key to a slot, and the tuples of
+    // a slot form a chain through the parallel chainHead / chainNext arrays
+    // (indexes into buffered).
+    transient private IntHashTable intMap = null;
+    transient private int[] chainHead, chainTail, chainNext;
+    transient private ArrayList<Tuple> buffered;
+    transient private int chain = -1;
+
+    private boolean useIntMap() {
+        return child1.getTupleDesc().getFieldType(pred.getField1()) == Type.INT_TYPE
+                && child2.getTupleDesc().getFieldType(pred.getField2()) == Type.INT_TYPE;
+    }
+
+    private boolean loadIntMap() throws DbException, TransactionAbortedException {
+        if (intMap == null) {
+            int initial = Math.min(mapSize, MAP_SIZE) + 1;
+            intMap = new IntHashTable(initial);
+            chainHead = new int[initial];
+            chainTail = new int[initial];
+            chainNext = new int[initial];
+            buffered = new ArrayList<Tuple>(initial);
+        }
+        intMap.clear();
+        buffered.clear();
+        chain = -1;
+        while (child1.hasNext()) {
+            t1 = child1.next();
+            int idx = buffered.size();
+            int n = intMap.size();
+            int slot = intMap.put(((IntField) t1.getField(pred.getField1())).getValue());
+            buffered.add(t1);
+            if (idx == chainNext.length) {
+                chainNext = Arrays.copyOf(chainNext, idx * 2);
+            }
+            if (slot == chainHead.length) {
+                chainHead = Arrays.copyOf(chainHead, slot * 2);
+                chainTail = Arrays.copyOf(chainTail, slot * 2);
+            }
+            chainNext[idx] = -1;
+            if (slot == n) {
+                chainHead[slot] = idx;
+            } else {
+                chainNext[chainTail[slot]] = idx;
+            }
+            chainTail[slot] = idx;
+            if (idx == mapSize)
+                return true;
+        }
+        return buffered.size() > 0;
+    }
+
     private boolean loadMap() throws DbException, TransactionAbortedException {
+        if (useIntMap())
+            return loadIntMap();
         int cnt = 0;
         map.clear();
         while (child1.hasNext()) {
@@ -64,7 +140,7 @@ public class HashEquiJoin extends Operator {
                 map.put(t1.getField(pred.getField1()), list);
             }
             list.add(t1);
-            if (cnt++ == MAP_SIZE)
+            if (cnt++ == mapSize)
                 return true;
         }
         return cnt > 0;
@@ -87,6 +163,9 @@ public class HashEquiJoin extends Operator {
         this.t2=null;
         this.listIt=null;
         this.map.clear();
+        this.intMap=null;
+        this.buffered=null;
+        this.chain=-1;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
@@ -115,7 +194,12 @@ public class HashEquiJoin extends Operator {
      * @see JoinPredicate#filter
      */
     private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
+        if (intMap != null) {
+            t1 = buffered.get(chain);
+            chain = chainNext[chain];
+        } else {
+            t1 = listIt.next();
+        }
 
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
@@ -131,7 +215,7 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
+        if (intMap != null ? chain >= 0 : listIt != null && listIt.hasNext()) {
             return processList();
         }
 
@@ -141,6 +225,13 @@ public class HashEquiJoin extends Operator {
 
             // if match, create a combined tuple and fill it with the values
             // from both tuples
+            if (intMap != null) {
+                int slot = intMap.find(((IntField) t2.getField(pred.getField2())).getValue());
+                if (slot < 0)
+                    continue;
+                chain = chainHead[slot];
+                return processList();
+            }
             ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
             if (l == null)
                 continue;
@@ -150,10 +241,13 @@ public class HashEquiJoin extends Operator {
 
         }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+        // child2 is done: advance child1, rescanning child2 only if there
+        // are outer tuples left to join
+        if (child1.hasNext()) {
+            child2.rewind();
+            if (loadMap()) {
+                return fetchNext();
+            }
         }
 
         return null;
@@ -23,6 +23,8 @@ public class HeapFile implements DbFile {
     private RandomAccessFile rawFile;
     private int pageSize;
     private int id;
+    private ZoneMap zoneMap;
+    private final PageLSNs lsns;
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -36,11 +38,12 @@ public class HeapFile implements DbFile {
         desc = td;
         id = backfile.getAbsoluteFile().hashCode();
         try {
-            rawFile = new RandomAccessFile(f, "rw");
+            rawFile();
         } catch (IOException e) {
             e.printStackTrace();
         }
         pageSize = BufferPool.getPageSize();
+        lsns = new PageLSNs(f);
     }
 
     /**
@@ -77,6 +80,23 @@ public class HeapFile implements DbFile {
         return desc;
     }
 
+    /**
+     * Returns the per-page summaries of this file, loading them from their
+     * sidecar file or building them on first use.
+     */
+    public synchronized ZoneMap getZoneMap() {
+        if (zoneMap == null)
+            zoneMap = new ZoneMap(backfile, desc, pageSize);
+        return zoneMap;
+    }
+
+    /** @return the open table file, opened again if it was closed */
+    private synchronized RandomAccessFile rawFile() throws IOException {
+        if (rawFile == null)
+            rawFile = new RandomAccessFile(backfile, "rw");
+        return rawFile;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
@@ -86,9 +106,15 @@ public class HeapFile implements DbFile {
         byte[] data = new byte[pageSize];
         try {
 //            log.info("n: " + n + " pgno:" + pgno);
-            rawFile.seek(pgno * pageSize);
-            rawFile.read(data);
-            return new HeapPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()), data);
+            // parallel scans read pages of the same file concurrently
+            RandomAccessFile raw = rawFile();
+            synchronized (raw) {
+                raw.seek(pgno * pageSize);
+                raw.read(data);
+            }
+            HeapPage p = new HeapPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()), data);
+            p.setLSN(lsns.get(pgno));
+            return p;
         } catch (IOException e) {
 //            log.info("!!!" + e.toString());
             e.printStackTrace();
@@ -100,9 +126,61 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
+        writePage(page, false);
+    }
+
+    /**
+     * Write the image of a page a transaction commits, and recompute the
+     * summary of the page from it, see {@link ZoneMap#pageCommitted}.
+     */
+    public void writeCommitted(Page page) throws IOException {
+        writePage(page, true);
+    }
+
+    private void writePage(Page page, boolean committed) throws IOException {
         int pgno = page.getId().getPageNumber();
-        rawFile.seek(pgno * pageSize);
-        rawFile.write(page.getPageData());
+        byte[] data = page.getPageData();
+        ZoneMap zm = getZoneMap();
+        RandomAccessFile raw = rawFile();
+        synchronized (raw) {
+            raw.seek(pgno * pageSize);
+            raw.write(data);
+        }
+        if (committed)
+            zm.pageCommitted(pgno, data);
+        else
+            zm.pageWritten(pgno, data);
+        lsns.set(pgno, page.getLSN());
+    }
+
+    // see DbFile.java for javadocs
+    public long maxLSN() throws IOException {
+        return lsns.max();
+    }
+
+    // see DbFile.java for javadocs
+    public void sync() throws IOException {
+        rawFile().getChannel().force(true);
+        lsns.sync();
+    }
+
+    // see DbFile.java for javadocs
+    public void close() throws IOException {
+        RandomAccessFile raw;
+        ZoneMap zm;
+        synchronized (this) {
+            raw = rawFile;
+            rawFile = null;
+            zm = zoneMap;
+        }
+        if (raw != null) {
+            synchronized (raw) {
+                raw.close();
+            }
+        }
+        if (zm != null)
+            zm.close();
+        lsns.close();
     }
 
     /**
@@ -119,13 +197,17 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         ArrayList<Page> res = new ArrayList<>(1);
+        ZoneMap zm = getZoneMap();
         for (int i = numPages() - 1; i >= 0; i--) {
             // look for a empty slot
             HeapPageId hpid = new HeapPageId(id, i);
             HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, hpid, Permissions.READ_ONLY);
             if (p.getNumEmptySlots() > 0) {
-                Database.getBufferPool().updateToWriteLock(tid, p.pid);
+                // upgrades the read lock; an optimistic transaction gets its
+                // own copy of the page instead
+                p = (HeapPage) Database.getBufferPool().getPage(tid, hpid, Permissions.READ_WRITE);
                 p.insertTuple(t);
+                zm.tupleInserted(i, t);
                 res.add(p);
                 return res;
             }
@@ -136,9 +218,10 @@ public class HeapFile implements DbFile {
         // no more empty page
         // extend file
         HeapPageId hpid = new HeapPageId(id, numPages());
-        rawFile.setLength(backfile.length() + pageSize);
+        rawFile().setLength(backfile.length() + pageSize);
         HeapPage newPage = (HeapPage) Database.getBufferPool().getPage(tid, hpid, Permissions.READ_WRITE);
         newPage.insertTuple(t);
+        zm.tupleInserted(hpid.getPageNumber(), t);
         res.add(newPage);
         return res;
     }
@@ -148,9 +231,8 @@ public class HeapFile implements DbFile {
             TransactionAbortedException {
         // some code goes here
         if (t.getRecordId().getPageId().getTableId() != id) throw new DbException("mismatch table id");
-        Page p = Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
-        HeapPage hp = (HeapPage)p;
-        hp.deleteTuple(t);
+        // deleting only locks the tuple's record, see BufferPool.deleteRecord
+        Page p = Database.getBufferPool().deleteRecord(tid, t);
         ArrayList<Page> res = new ArrayList<>(1);
         res.add(p);
         return res;
@@ -160,28 +242,87 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapPageIterator(tid);
+        return new HeapPageIterator(tid, 0, numPages(), null);
+    }
+
+    /**
+     * Returns an iterator over the tuples stored on a range of pages of this
+     * file. Disjoint ranges can be scanned concurrently, so a table can be
+     * split into partitions that are read by different threads.
+     *
+     * @param tid
+     *            the transaction the scan is running as a part of
+     * @param startPage
+     *            the number of the first page to scan
+     * @param endPage
+     *            the number of the page to stop before
+     * @return an iterator over the tuples on pages [startPage, endPage)
+     */
+    public DbFileIterator iterator(TransactionId tid, int startPage, int endPage) {
+        return iterator(tid, startPage, endPage, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples stored on a range of pages of this
+     * file that satisfy a conjunction of predicates. The predicates are
+     * evaluated as each page is iterated over, so rejected tuples never
+     * leave the page, and pages whose {@link ZoneMap} summary rules out a
+     * match are skipped without being read.
+     *
+     * @param tid
+     *            the transaction the scan is running as a part of
+     * @param startPage
+     *            the number of the first page to scan
+     * @param endPage
+     *            the number of the page to stop before
+     * @param preds
+     *            the predicates every returned tuple satisfies, or null
+     * @return an iterator over the matching tuples on pages [startPage,
+     *         endPage)
+     */
+    public DbFileIterator iterator(TransactionId tid, int startPage, int endPage, Predicate[] preds) {
+        if (startPage < 0 || startPage > endPage)
+            throw new IllegalArgumentException("invalid page range [" + startPage + ", " + endPage + ")");
+        return new HeapPageIterator(tid, startPage, endPage, preds);
     }
 
     private class HeapPageIterator implements DbFileIterator {
-        private int pidx, n;
+        private int start, pidx, n;
         private Iterator<Tuple> it;
         private TransactionId tid;
+        private Predicate[] preds;
+        private ZoneMap zoneMap;
 
-        public HeapPageIterator(TransactionId tid) {
-            pidx = 0;
-            n = numPages();
+        public HeapPageIterator(TransactionId tid, int start, int end, Predicate[] preds) {
+            this.start = start;
+            pidx = start;
+            n = end;
             it = null;
             this.tid = tid;
+            this.preds = preds;
+            // the zone map summarizes the current pages, which may have lost
+            // tuples a read-only transaction still sees
+            if (preds != null && !Database.getBufferPool().isSnapshot(tid)) zoneMap = getZoneMap();
         }
 
         private void readPage()
                 throws DbException, TransactionAbortedException {
             while (pidx < n && (it == null || !it.hasNext())) {
-                Page p = Database.getBufferPool().getPage(tid, new HeapPageId(id, pidx), Permissions.READ_ONLY);
+                HeapPageId pid = new HeapPageId(id, pidx);
+                if (zoneMap != null) {
+                    // lock the page before its summary is consulted, so that
+                    // nobody widens it behind the back of this transaction
+                    Database.getBufferPool().lockPage(tid, pid, Permissions.READ_ONLY);
+                    if (!zoneMap.mayMatch(pidx, preds)) {
+                        it = null;
+                        pidx++;
+                        continue;
+                    }
+                }
+                Page p = Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
                 if (! (p instanceof HeapPage)) throw new DbException("HeapFile requires HeapPage");
                 HeapPage hp = (HeapPage) p;
-                it = hp.iterator();
+                it = hp.iterator(preds);
                 pidx++;
 //                log.info("" + pidx + "" + it.hasNext());
             }
@@ -209,13 +350,13 @@ public class HeapFile implements DbFile {
         }
 
         public void rewind() throws DbException, TransactionAbortedException {
-            pidx = 0;
+            pidx = start;
             it = null;
             readPage();
         }
 
         public void close() {
-            pidx = 0;
+            pidx = start;
             it = null;
         }
     }
@@ -24,6 +24,7 @@ public class HeapPage implements Page {
     final int numSlots;
     private boolean dirty;
     private TransactionId tid;
+    private volatile long lsn;
 
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
@@ -111,6 +112,19 @@ public class HeapPage implements Page {
         }
     }
 
+    /** Record data as the image of this page before its pending changes */
+    public void setBeforeImage(byte[] data) {
+        synchronized(oldDataLock)
+        {
+        oldData = data;
+        }
+    }
+
+    /** Log the tuples inserted and deleted one by one, see PageDelta */
+    public List<PageDelta> diff(byte[] before, byte[] after) {
+        return PageDelta.diffSlots(before, after, 0, header.length, numSlots, td.getSize());
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -257,6 +271,21 @@ public class HeapPage implements Page {
         tuples[idx] = null;
     }
 
+    /**
+     * Put a deleted tuple back into the slot it was deleted from.
+     * @throws DbException if this tuple is not from this page, or its slot
+     *         is in use.
+     * @param t The tuple to put back.
+     */
+    public void restoreTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        int idx = rid.getTupleNumber();
+        if (!rid.getPageId().equals(pid)) throw new DbException("invalid pid");
+        if (isSlotUsed(idx)) throw new DbException("slot in use");
+        tuples[idx] = t;
+        markSlotUsed(idx, true);
+    }
+
     /**
      * Adds the specified tuple to the page;  the tuple should be updated to reflect
      *  that it is now stored on this page.
@@ -310,6 +339,14 @@ public class HeapPage implements Page {
         return tid;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
@@ -357,14 +394,26 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        return new TupleIterator();
+        return new TupleIterator(null);
+    }
+
+    /**
+     * @param preds predicates that every returned tuple must satisfy, or null
+     * @return an iterator over the tuples on this page that satisfy all of
+     * preds. Evaluating them here saves handing every rejected tuple through
+     * a separate {@link Filter}.
+     */
+    public Iterator<Tuple> iterator(Predicate[] preds) {
+        return new TupleIterator(preds == null || preds.length == 0 ? null : preds);
     }
 
     private class TupleIterator implements Iterator<Tuple> {
         private int idx;
+        private final Predicate[] preds;
 
-        public TupleIterator() {
+        public TupleIterator(Predicate[] preds) {
             idx = 0;
+            this.preds = preds;
             findNext();
         }
 
@@ -385,10 +434,18 @@ public class HeapPage implements Page {
 
         private void findNext() {
             while (idx < numSlots) {
-                if (isSlotUsed(idx)) break;
+                if (isSlotUsed(idx) && matches(tuples[idx])) break;
                 idx++;
             }
         }
+
+        private boolean matches(Tuple t) {
+            if (preds == null) return true;
+            for (Predicate p : preds) {
+                if (!p.filter(t)) return false;
+            }
+            return true;
+        }
     }
 
 }
@@ -0,0 +1,115 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * IntHashTable is an open-addressing hash table keyed by primitive ints.
+ * Instead of storing values itself, it assigns each distinct key a dense
+ * slot number (0, 1, 2, ... in order of first insertion); callers keep the
+ * values for each key in their own parallel arrays indexed by that slot.
+ * This avoids boxing keys and values and keeps per-group state in flat,
+ * cache-friendly arrays.
+ */
+public class IntHashTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /** keys in slot order */
+    private int[] keys;
+    /** open-addressing buckets; each holds slot + 1, or 0 if empty */
+    private int[] buckets;
+    private int size;
+
+    /** Creates an empty table */
+    public IntHashTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty table sized to hold at least expected keys without
+     * rehashing.
+     *
+     * @param expected the number of distinct keys expected
+     */
+    public IntHashTable(int expected) {
+        int cap = DEFAULT_CAPACITY;
+        while (cap < expected * 2) cap <<= 1;
+        buckets = new int[cap];
+        keys = new int[cap / 2];
+        size = 0;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the slot of key, or -1 if key is not in the table
+     */
+    public int find(int key) {
+        int mask = buckets.length - 1;
+        for (int i = hash(key) & mask; buckets[i] != 0; i = (i + 1) & mask) {
+            int slot = buckets[i] - 1;
+            if (keys[slot] == key) return slot;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the slot of key, adding the key under the next free slot if it
+     * is not yet in the table. A newly added key always gets slot
+     * {@link #size()} - 1.
+     *
+     * @return the slot of key
+     */
+    public int put(int key) {
+        int mask = buckets.length - 1;
+        int i = hash(key) & mask;
+        for (; buckets[i] != 0; i = (i + 1) & mask) {
+            int slot = buckets[i] - 1;
+            if (keys[slot] == key) return slot;
+        }
+        if (size == keys.length) {
+            grow();
+            return put(key);
+        }
+        keys[size] = key;
+        buckets[i] = ++size;
+        return size - 1;
+    }
+
+    private void grow() {
+        keys = Arrays.copyOf(keys, keys.length * 2);
+        buckets = new int[buckets.length * 2];
+        int mask = buckets.length - 1;
+        for (int slot = 0; slot < size; slot++) {
+            int i = hash(keys[slot]) & mask;
+            while (buckets[i] != 0) i = (i + 1) & mask;
+            buckets[i] = slot + 1;
+        }
+    }
+
+    /**
+     * @return the key stored under the specified slot
+     */
+    public int keyAt(int slot) {
+        if (slot < 0 || slot >= size) throw new IndexOutOfBoundsException();
+        return keys[slot];
+    }
+
+    /**
+     * @return the number of distinct keys in the table
+     */
+    public int size() {
+        return size;
+    }
+
+    /** Remove all keys from the table, keeping its capacity */
+    public void clear() {
+        Arrays.fill(buckets, 0);
+        size = 0;
+    }
+}
@@ -49,6 +49,20 @@ public class IntHistogram {
         height[idx]++;
     }
 
+    /**
+     * Add the values counted by another histogram with the same buckets, so
+     * that partial histograms built over parts of a table can be combined.
+     * @param other the histogram to add; it is not modified
+     * @throws IllegalArgumentException if the buckets of other differ
+     */
+    public void merge(IntHistogram other) {
+        if (other.buckets != buckets || other.min != min || other.max != max)
+            throw new IllegalArgumentException("histograms have different buckets");
+        for (int i = 0; i < buckets; i++)
+            height[i] += other.height[i];
+        ntups += other.ntups;
+    }
+
     /**
      * Estimate the selectivity of a particular predicate and operand on this table.
      * 
@@ -15,6 +15,10 @@ public class IntegerAggregator implements Aggregator {
     private int agg, cnt;
     private HashMap<Field, Integer> aggGroup;
     private HashMap<Field, Integer> cntGroup;
+    // groups over an INT_TYPE field are kept unboxed: the table maps each
+    // group value to a slot in the parallel aggSlots / cntSlots arrays
+    private IntHashTable intGroups;
+    private int[] aggSlots, cntSlots;
     private boolean first;
 
     /**
@@ -41,7 +45,11 @@ public class IntegerAggregator implements Aggregator {
         this.cnt = this.agg = 0;
         aggGroup = cntGroup = null;
         first = true;
-        if (gbfield != Aggregator.NO_GROUPING) {
+        if (gbfield != Aggregator.NO_GROUPING && gbfieldtype == Type.INT_TYPE) {
+            intGroups = new IntHashTable();
+            aggSlots = new int[16];
+            cntSlots = new int[16];
+        } else if (gbfield != Aggregator.NO_GROUPING) {
             aggGroup = new HashMap<>();
             if (what == Op.AVG) {
                 cntGroup = new HashMap<>();
@@ -83,6 +91,22 @@ public class IntegerAggregator implements Aggregator {
                 agg += val;
                 cnt++;
             }
+        } else if (intGroups != null) {
+            int n = intGroups.size();
+            int slot = intGroups.put(((IntField) tup.getField(gbfield)).getValue());
+            if (slot == aggSlots.length) {
+                aggSlots = Arrays.copyOf(aggSlots, slot * 2);
+                cntSlots = Arrays.copyOf(cntSlots, slot * 2);
+            }
+            if (slot == n) {
+                // first tuple of this group
+                aggSlots[slot] = (what == Op.MIN || what == Op.MAX) ? val : 0;
+                cntSlots[slot] = 0;
+            }
+            if (what == Op.MIN) aggSlots[slot] = Math.min(aggSlots[slot], val);
+            else if (what == Op.MAX) aggSlots[slot] = Math.max(aggSlots[slot], val);
+            else if (what == Op.SUM || what == Op.AVG) aggSlots[slot] += val;
+            cntSlots[slot]++;
         } else {
             Field key = tup.getField(gbfield);
             if (what == Op.MIN) {
@@ -114,6 +138,8 @@ public class IntegerAggregator implements Aggregator {
         // some code goes here
         if (gbfield == Aggregator.NO_GROUPING) {
             return new NoGroupIterator();
+        } else if (intGroups != null) {
+            return new IntGroupIterator();
         } else {
             return new GroupIterator();
         }
@@ -167,6 +193,57 @@ public class IntegerAggregator implements Aggregator {
         }
     }
 
+    private class IntGroupIterator implements OpIterator {
+        private static final long serialVersionUID = 1L;
+        private int slot;
+        private TupleDesc td;
+
+        public IntGroupIterator() {
+            td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE});
+        }
+
+        @Override
+        public void open() {
+            slot = 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return slot < intGroups.size();
+        }
+
+        @Override
+        public Tuple next() throws NoSuchElementException {
+            if (!hasNext()) throw new NoSuchElementException();
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(intGroups.keyAt(slot)));
+            if (what == Op.AVG) {
+                t.setField(1, new IntField(aggSlots[slot] / cntSlots[slot]));
+            } else if (what == Op.COUNT) {
+                t.setField(1, new IntField(cntSlots[slot]));
+            } else {
+                t.setField(1, new IntField(aggSlots[slot]));
+            }
+            slot++;
+            return t;
+        }
+
+        @Override
+        public void rewind() {
+            open();
+        }
+
+        @Override
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        @Override
+        public void close() {
+            slot = 0;
+        }
+    }
+
     private class NoGroupIterator implements OpIterator {
         private Iterator<Tuple> it;
         private TupleDesc td;
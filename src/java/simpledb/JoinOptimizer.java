@@ -258,7 +258,8 @@ public class JoinOptimizer {
                 if (size == cnt) return bestCostCard.plan;
             }
         }
-        return null;
+        // no joins to order
+        return joins;
     }
 
     // ===================== Private Methods =================================
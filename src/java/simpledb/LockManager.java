@@ -2,159 +2,848 @@ package simpledb;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+/**
+ * LockManager grants shared and exclusive page and record locks to
+ * transactions.
+ * <p>
+ * Locks are hierarchical: before locking a page, a transaction takes an
+ * intention lock on its table, IS to read the page or IX to write it, and
+ * before locking a record, intention locks on its page and its table. Once
+ * a transaction holds more page locks on a table than the escalation
+ * threshold, the lock manager tries to trade them for a single S or X lock
+ * on the whole table, which covers every page of it from then on. The
+ * escalation never waits: if another transaction holds a conflicting
+ * intention lock on the table, the page locks are kept.
+ * <p>
+ * The lock table is split into buckets by the hash of the locked object,
+ * and each bucket is latched on its own, so requests for objects in
+ * different buckets never contend. Every locked object has a queue of
+ * pending requests, granted in FIFO order: a request waits for the
+ * conflicting holders of the object and for the conflicting requests queued
+ * before it, so writers are not starved by a stream of readers. A waiting
+ * request waits on the monitor of its bucket, which releases the latch, and
+ * is woken when a lock in the bucket is released. The locks each
+ * transaction holds are kept in concurrent maps, so they are read and
+ * updated without any latch.
+ * <p>
+ * How deadlocks are dealt with depends on the {@link Policy} the lock
+ * manager is created with. A transaction that is aborted to resolve or
+ * prevent a deadlock sees its pending and later lock requests fail with a
+ * {@link TransactionAbortedException}, and its caller is expected to abort
+ * it, which releases its locks.
+ * <p>
+ * Several threads may request locks for the same transaction at once, as
+ * the workers of a parallel query do. Each waiting request is recorded on
+ * its own: the transaction waits for the union of what its requests wait
+ * for, and a transaction chosen to be aborted is woken in every bucket one
+ * of its requests waits in.
+ * <p>
+ * A lock wait may also be bounded by a timeout, after which the request
+ * fails in the same way, and the number of locks a transaction holds may be
+ * capped, so that a runaway transaction is aborted instead of filling the
+ * lock table. Both are off by default. The time transactions spend waiting
+ * for locks is counted, see {@link #getWaitCount} and
+ * {@link #getTotalWaitTime}.
+ */
 public class LockManager {
     public static Logger log = Logger.getGlobal();
 
-    private final HashMap<PageId, ReadWriteLock> lockPool;
-    private final HashMap<TransactionId, HashSet<PageLock>> tidToPages;
+    /** the number of buckets of the lock table; a power of two */
+    private static final int BUCKETS = 64;
 
-    private class PageLock {
-        Permissions p;
-        PageId pid;
+    /** the default number of page locks on a table that triggers escalation */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 512;
 
-        PageLock(Permissions p, PageId pid) {
-            this.p = p;
-            this.pid = pid;
+    /**
+     * How deadlocks are handled. Transactions are ordered by their
+     * TransactionId: a smaller id is an older transaction.
+     */
+    public enum Policy {
+        /**
+         * Every time a request has to wait, the transactions it waits for
+         * are recorded in a wait-for graph, and a cycle through the
+         * requester is searched. The youngest transaction of a cycle is
+         * aborted.
+         */
+        DETECT,
+        /**
+         * An older transaction waits for younger ones; a younger transaction
+         * that requests a lock held by an older one is aborted at once.
+         */
+        WAIT_DIE,
+        /**
+         * An older transaction wounds the younger holders of the lock it
+         * requests, which are aborted, and waits for them to release it; a
+         * younger transaction waits for older ones.
+         */
+        WOUND_WAIT
+    }
+
+    /**
+     * Lock modes. Records are only locked in S and X mode; pages and
+     * tables in any.
+     */
+    public enum Mode {
+        /** intention to read pages of the table */
+        IS,
+        /** intention to write pages of the table */
+        IX,
+        /** shared */
+        S,
+        /** shared, with the intention to write some pages */
+        SIX,
+        /** exclusive */
+        X;
+
+        private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+        };
+
+        /** @return true if two transactions may hold this mode and other at once */
+        public boolean compatibleWith(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
         }
 
-        @Override
-        public int hashCode() {
-            return pid.hashCode();
+        /** @return true if holding this mode grants everything other does */
+        public boolean covers(Mode other) {
+            switch (this) {
+                case X:
+                    return true;
+                case SIX:
+                    return other != X;
+                case S:
+                    return other == S || other == IS;
+                case IX:
+                    return other == IX || other == IS;
+                default:
+                    return other == IS;
+            }
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (!(obj instanceof PageLock)) return false;
-            PageLock other = (PageLock) obj;
-            return pid.equals(other.pid);
+        /** @return the weakest mode that covers both this mode and other */
+        public Mode combine(Mode other) {
+            if (covers(other)) return this;
+            if (other.covers(this)) return other;
+            // only S and IX are left
+            return SIX;
         }
     }
 
+    /** A pending lock request */
+    private static class Request {
+        final TransactionId tid;
+        /** the mode tid holds once the request is granted */
+        final Mode mode;
+        /** whether tid holds a weaker lock on the object already */
+        final boolean upgrade;
+
+        Request(TransactionId tid, Mode mode, boolean upgrade) {
+            this.tid = tid;
+            this.mode = mode;
+            this.upgrade = upgrade;
+        }
+    }
+
+    /** The holders of the lock on an object, and the requests waiting for it */
+    private static class LockQueue {
+        final HashMap<TransactionId, Mode> holders = new HashMap<>();
+        final ArrayList<Request> waiters = new ArrayList<>();
+    }
+
+    /**
+     * A partition of the lock table; its monitor is the latch of the
+     * partition. Records are locked by their RecordId, pages by their
+     * PageId, and tables by their id as an Integer.
+     */
+    private static class Bucket {
+        final HashMap<Object, LockQueue> queues = new HashMap<>();
+    }
+
+    /** The locks held by a transaction */
+    private static class TransactionLocks {
+        final ConcurrentHashMap<RecordId, Mode> records = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<PageId, Mode> pages = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<Integer, Mode> tables = new ConcurrentHashMap<>();
+        /** the number of pages locked on each table */
+        final ConcurrentHashMap<Integer, AtomicInteger> pageCounts = new ConcurrentHashMap<>();
+    }
+
+    private final Policy policy;
+    private final int escalationThreshold;
+    private final Bucket[] buckets;
+    private final ConcurrentHashMap<TransactionId, TransactionLocks> transactions;
+    /** for each waiting transaction, its waiting requests and the bucket each waits in */
+    private final ConcurrentHashMap<TransactionId, Map<Request, Bucket>> waiting;
+    /** transactions that were chosen to be aborted, until they complete */
+    private final Set<TransactionId> victims;
+    /**
+     * for each waiting transaction, the transactions each of its waiting
+     * requests waits for; guarded by itself
+     */
+    private final HashMap<TransactionId, Map<Request, Set<TransactionId>>> waitsFor;
+
+    /** how long a request waits for a lock before it fails, in ms, or 0 */
+    private volatile long lockTimeout;
+    /** the number of locks a transaction may hold, or 0 */
+    private volatile int maxLocks;
+
+    /** the number of requests that had to wait */
+    private final AtomicLong waits = new AtomicLong();
+    /** the number of waits that timed out */
+    private final AtomicLong timeouts = new AtomicLong();
+    /** the time requests spent waiting, in ns */
+    private final AtomicLong waitNanos = new AtomicLong();
+    /** the longest time a request spent waiting, in ns */
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * Create a lock manager that detects deadlocks.
+     */
     public LockManager() {
-        lockPool = new HashMap<>();
-        tidToPages = new HashMap<>();
-    }
-
-    private ReadWriteLock getLock(TransactionId tid, PageId pid) {
-//        log.info(tid + " get page " + pid);
-        if (!lockPool.containsKey(pid)) {
-            log.info("new lock " + tid + " " + pid);
-            ReadWriteLock lock = new ReentrantReadWriteLock();
-            synchronized (lockPool) {
-                if (!lockPool.containsKey(pid)) {
-                    log.info(tid + " put lock " + pid);
-                    lockPool.put(pid, lock);
+        this(Policy.DETECT);
+    }
+
+    /**
+     * Create a lock manager.
+     *
+     * @param policy
+     *            how to handle deadlocks
+     */
+    public LockManager(Policy policy) {
+        this(policy, DEFAULT_ESCALATION_THRESHOLD);
+    }
+
+    /**
+     * Create a lock manager.
+     *
+     * @param policy
+     *            how to handle deadlocks
+     * @param escalationThreshold
+     *            the number of page locks a transaction may hold on a table
+     *            before they are escalated to a table lock, or 0 to never
+     *            escalate
+     */
+    public LockManager(Policy policy, int escalationThreshold) {
+        this.policy = policy;
+        this.escalationThreshold = escalationThreshold;
+        buckets = new Bucket[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = new Bucket();
+        transactions = new ConcurrentHashMap<>();
+        waiting = new ConcurrentHashMap<>();
+        victims = ConcurrentHashMap.newKeySet();
+        waitsFor = new HashMap<>();
+    }
+
+    /**
+     * @return how this lock manager handles deadlocks
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Bound the time a lock request waits for conflicting locks to be
+     * released. A request that waits longer fails with a
+     * TransactionAbortedException, as if its transaction were chosen to
+     * be aborted to resolve a deadlock.
+     *
+     * @param millis
+     *            the longest wait in ms, or 0 to wait as long as needed
+     */
+    public void setLockTimeout(long millis) {
+        if (millis < 0) throw new IllegalArgumentException("negative lock timeout " + millis);
+        lockTimeout = millis;
+    }
+
+    /**
+     * @return the longest time a lock request waits, in ms, or 0 if it
+     *         waits as long as needed
+     */
+    public long getLockTimeout() {
+        return lockTimeout;
+    }
+
+    /**
+     * Cap the number of record, page and table locks a transaction may
+     * hold at once. A request for a new lock beyond the cap fails with a
+     * TransactionAbortedException. Page locks traded for a table lock by an
+     * escalation no longer count.
+     *
+     * @param maxLocks
+     *            the number of locks, or 0 for no cap
+     */
+    public void setMaxLocks(int maxLocks) {
+        if (maxLocks < 0) throw new IllegalArgumentException("negative lock cap " + maxLocks);
+        this.maxLocks = maxLocks;
+    }
+
+    /**
+     * @return the number of locks a transaction may hold, or 0 if there is
+     *         no cap
+     */
+    public int getMaxLocks() {
+        return maxLocks;
+    }
+
+    /** @return the number of lock requests that had to wait so far */
+    public long getWaitCount() {
+        return waits.get();
+    }
+
+    /** @return the number of lock requests that failed because they waited too long */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /** @return the time lock requests spent waiting so far, in ms */
+    public long getTotalWaitTime() {
+        return waitNanos.get() / 1000000;
+    }
+
+    /** @return the longest time a lock request spent waiting so far, in ms */
+    public long getMaxWaitTime() {
+        return maxWaitNanos.get() / 1000000;
+    }
+
+    private Bucket bucket(Object key) {
+        int h = key.hashCode();
+        return buckets[(h ^ (h >>> 16)) & (BUCKETS - 1)];
+    }
+
+    private TransactionLocks locks(TransactionId tid) {
+        return transactions.computeIfAbsent(tid, t -> new TransactionLocks());
+    }
+
+    private static Mode mode(Permissions perm) {
+        return perm == Permissions.READ_ONLY ? Mode.S : Mode.X;
+    }
+
+    /**
+     * Acquire a lock on a page, waiting while other transactions hold
+     * conflicting locks. A transaction that holds a shared lock on the page
+     * and asks for an exclusive one is upgraded in place once it is the only
+     * holder, ahead of the requests that were already waiting. The matching
+     * intention lock on the table of the page is acquired first, unless a
+     * lock on the whole table covers the page already.
+     *
+     * @throws TransactionAbortedException if tid was chosen to be aborted
+     *             to resolve or prevent a deadlock, waited longer than the
+     *             lock timeout, or would hold more locks than the cap
+     */
+    public void lock(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        TransactionLocks tl = locks(tid);
+        Integer table = pid.getTableId();
+        Mode held = tl.tables.get(table);
+        if (held != null && held.covers(mode(perm))) return;
+        acquire(tid, table, intention(perm), true);
+        acquire(tid, pid, mode(perm), true);
+        escalateIfMany(tid, tl, table);
+    }
+
+    /**
+     * Acquire a lock on a page like {@link #lock}, but only if it can be
+     * granted right away.
+     *
+     * @return false if another transaction holds a conflicting lock on the
+     *         page or its table; no lock is taken then, although an
+     *         intention lock on the table may have been granted
+     */
+    public boolean tryLock(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        TransactionLocks tl = locks(tid);
+        Integer table = pid.getTableId();
+        Mode held = tl.tables.get(table);
+        if (held != null && held.covers(mode(perm))) return true;
+        if (!acquire(tid, table, intention(perm), false)
+                || !acquire(tid, pid, mode(perm), false))
+            return false;
+        escalateIfMany(tid, tl, table);
+        return true;
+    }
+
+    /**
+     * Wait until no other transaction holds an exclusive lock on a page or
+     * its table. tid is left holding the locks it held before, and no others
+     * except an intention lock on the table.
+     *
+     * @throws TransactionAbortedException if tid was chosen to be aborted
+     *             to resolve or prevent a deadlock
+     */
+    public void awaitWriters(TransactionId tid, PageId pid)
+            throws TransactionAbortedException {
+        boolean held = holdsLock(tid, pid);
+        lock(tid, pid, Permissions.READ_ONLY);
+        if (!held) unlock(tid, pid);
+    }
+
+    private void escalateIfMany(TransactionId tid, TransactionLocks tl, Integer table) {
+        if (escalationThreshold > 0) {
+            int count = tl.pageCounts.get(table).get();
+            // retry a failed escalation every escalationThreshold pages
+            if (count > escalationThreshold && (count - 1) % escalationThreshold == 0)
+                escalate(tid, tl, table);
+        }
+    }
+
+    /**
+     * Acquire a lock on a record, after the matching intention locks on its
+     * page and its table, unless a lock on either covers the record already.
+     * Record locks let transactions update different records of the same
+     * page concurrently; they are held until the transaction completes.
+     *
+     * @throws TransactionAbortedException if tid was chosen to be aborted
+     *             to resolve or prevent a deadlock
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        TransactionLocks tl = locks(tid);
+        PageId pid = rid.getPageId();
+        Integer table = pid.getTableId();
+        Mode held = tl.tables.get(table);
+        if (held != null && held.covers(mode(perm))) return;
+        acquire(tid, table, intention(perm), true);
+        held = tl.pages.get(pid);
+        if (held != null && held.covers(mode(perm))) return;
+        acquire(tid, pid, intention(perm), true);
+        acquire(tid, rid, mode(perm), true);
+    }
+
+    private static Mode intention(Permissions perm) {
+        return perm == Permissions.READ_ONLY ? Mode.IS : Mode.IX;
+    }
+
+    /**
+     * Acquire a lock on a record, a page or a table.
+     *
+     * @param key
+     *            the RecordId of the record, the PageId of the page, or the
+     *            id of the table
+     * @param wait
+     *            whether to wait for conflicting locks to be released
+     * @return false if the lock was not granted because wait is false
+     */
+    private boolean acquire(TransactionId tid, Object key, Mode mode, boolean wait)
+            throws TransactionAbortedException {
+        Bucket b = bucket(key);
+        Request req = null;
+        // the request, which stays set once it is granted
+        Request queued = null;
+        // when the request started to wait, and until when it may wait, in ns
+        long waitStart = 0;
+        long deadline = 0;
+        try {
+            while (true) {
+                List<TransactionId> wounded = new ArrayList<>();
+                synchronized (b) {
+                    if (victims.contains(tid))
+                        throw new TransactionAbortedException();
+                    LockQueue q = b.queues.get(key);
+                    if (q == null) {
+                        q = new LockQueue();
+                        b.queues.put(key, q);
+                    }
+                    if (req == null) {
+                        Mode held = q.holders.get(tid);
+                        if (held != null && held.covers(mode)) return true;
+                        if (held == null && maxLocks > 0 && numLocks(tid) >= maxLocks) {
+                            log.info(tid + " holds too many locks, aborting it");
+                            throw new TransactionAbortedException();
+                        }
+                        req = new Request(tid, held == null ? mode : held.combine(mode), held != null);
+                        queued = req;
+                        enqueue(q, req);
+                    }
+                    Set<TransactionId> blockers = blockers(q, req);
+                    if (blockers.isEmpty()) {
+                        q.waiters.remove(req);
+                        grant(q, tid, key, req.mode);
+                        req = null;
+                        return true;
+                    }
+                    if (!wait) return false;
+                    switch (policy) {
+                        case DETECT:
+                            TransactionId victim;
+                            synchronized (waitsFor) {
+                                waitsFor.computeIfAbsent(tid, t -> new HashMap<>()).put(req, blockers);
+                                victim = findVictim(tid);
+                            }
+                            if (victim != null) {
+                                log.info("deadlock, aborting " + victim);
+                                // every request of the victim fails, this
+                                // one included if tid is the victim
+                                if (victims.add(victim)) wounded.add(victim);
+                            }
+                            break;
+                        case WAIT_DIE:
+                            for (TransactionId other : blockers) {
+                                if (other.getId() < tid.getId()) {
+                                    // other requests of tid die as well
+                                    victims.add(tid);
+                                    wounded.add(tid);
+                                    break;
+                                }
+                            }
+                            break;
+                        case WOUND_WAIT:
+                            for (TransactionId other : blockers) {
+                                if (other.getId() > tid.getId() && victims.add(other))
+                                    wounded.add(other);
+                            }
+                            break;
+                    }
+                    if (wounded.isEmpty()) {
+                        long now = System.nanoTime();
+                        if (waitStart == 0) {
+                            waitStart = now;
+                            deadline = now + lockTimeout * 1000000;
+                            waits.incrementAndGet();
+                        }
+                        long timeout = lockTimeout;
+                        if (timeout > 0) {
+                            if (now - deadline >= 0) {
+                                timeouts.incrementAndGet();
+                                log.info(tid + " timed out waiting for a lock on " + key);
+                                throw new TransactionAbortedException();
+                            }
+                            // wait at least 1 ms, as wait(0) never times out
+                            timeout = Math.max(1, (deadline - now) / 1000000);
+                        }
+                        final Request waiter = req;
+                        waiting.compute(tid, (t, requests) -> {
+                            if (requests == null) requests = new ConcurrentHashMap<>();
+                            requests.put(waiter, b);
+                            return requests;
+                        });
+                        try {
+                            // a victim chosen after this check wakes us up
+                            if (!victims.contains(tid))
+                                b.wait(timeout);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new TransactionAbortedException();
+                        } finally {
+                            waiting.computeIfPresent(tid, (t, requests) -> {
+                                requests.remove(waiter);
+                                return requests.isEmpty() ? null : requests;
+                            });
+                        }
+                        continue;
+                    }
+                }
+                // wake the victims up without holding the latch of our bucket
+                for (TransactionId victim : wounded)
+                    wake(victim);
+            }
+        } finally {
+            if (waitStart != 0) {
+                long waited = System.nanoTime() - waitStart;
+                waitNanos.addAndGet(waited);
+                maxWaitNanos.accumulateAndGet(waited, Math::max);
+            }
+            if (req != null) {
+                // the request failed; those queued behind it may go ahead
+                synchronized (b) {
+                    LockQueue q = b.queues.get(key);
+                    q.waiters.remove(req);
+                    if (q.holders.isEmpty() && q.waiters.isEmpty())
+                        b.queues.remove(key);
+                    b.notifyAll();
+                }
+            }
+            if (policy == Policy.DETECT && queued != null) {
+                synchronized (waitsFor) {
+                    Map<Request, Set<TransactionId>> requests = waitsFor.get(tid);
+                    if (requests != null) {
+                        requests.remove(queued);
+                        if (requests.isEmpty())
+                            waitsFor.remove(tid);
+                    }
                 }
             }
         }
-        HashSet<PageLock> lockList;
-        if (!tidToPages.containsKey(tid)) {
-            lockList = new HashSet<>();
-            tidToPages.put(tid, lockList);
-        }
-        return lockPool.get(pid);
     }
 
-    public synchronized void lock(TransactionId tid, PageId pid, Permissions perm) {
-        if (perm == Permissions.READ_ONLY) readLock(tid, pid);
-        if (perm == Permissions.READ_WRITE) writeLock(tid, pid);
+    /** @return the number of record, page and table locks tid holds */
+    private int numLocks(TransactionId tid) {
+        TransactionLocks tl = transactions.get(tid);
+        if (tl == null) return 0;
+        return tl.records.size() + tl.pages.size() + tl.tables.size();
     }
 
-    public synchronized void unlock(TransactionId tid, PageId pid) {
-        for (PageLock plk : tidToPages.get(tid)) {
-            if (plk.pid.equals(pid)) {
-                if (plk.p == Permissions.READ_ONLY) {
-                    readUnlock(tid, pid);
-                } else {
-                    writeUnlock(tid, pid);
-                }
-                break;
+    /**
+     * Replace the page locks of a transaction on a table with a lock on the
+     * whole table, if that lock can be granted right away.
+     */
+    private void escalate(TransactionId tid, TransactionLocks tl, Integer table) {
+        synchronized (tl) {
+            Mode mode = Mode.S;
+            List<PageId> pages = new ArrayList<>();
+            for (Map.Entry<PageId, Mode> e : tl.pages.entrySet()) {
+                if (e.getKey().getTableId() != table) continue;
+                pages.add(e.getKey());
+                if (!Mode.S.covers(e.getValue())) mode = Mode.X;
             }
+            Bucket b = bucket(table);
+            synchronized (b) {
+                LockQueue q = b.queues.get(table);
+                Mode held = q.holders.get(tid);
+                Request req = new Request(tid, held.combine(mode), true);
+                if (!blockers(q, req).isEmpty()) return;
+                grant(q, tid, table, req.mode);
+            }
+            for (PageId pid : pages) {
+                if (tl.pages.remove(pid) != null)
+                    release(tid, pid);
+            }
+            tl.pageCounts.get(table).set(0);
         }
     }
 
-    public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
-        return tidToPages.get(tid).contains(new PageLock(null, pid));
+    /**
+     * Queue a request. Upgrades go ahead of every other waiting request, in
+     * the order they are made, since their transactions already hold the
+     * lock and the requests behind them have to wait for them anyway.
+     */
+    private static void enqueue(LockQueue q, Request req) {
+        if (!req.upgrade) {
+            q.waiters.add(req);
+            return;
+        }
+        int i = 0;
+        while (i < q.waiters.size() && q.waiters.get(i).upgrade)
+            i++;
+        q.waiters.add(i, req);
     }
 
-    public synchronized boolean holdsLock(TransactionId tid, PageId pid, Permissions perm) {
-        for (PageLock plk : tidToPages.get(tid)) {
-            if (plk.pid.equals(pid) && plk.p == perm) {
-                return true;
+    /** Wake a victim up in every bucket it waits for a lock in */
+    private void wake(TransactionId victim) {
+        Map<Request, Bucket> requests = waiting.get(victim);
+        if (requests == null) return;
+        for (Bucket b : new HashSet<>(requests.values())) {
+            synchronized (b) {
+                b.notifyAll();
             }
         }
-        return false;
     }
 
-    public synchronized void updateToWriteLock(TransactionId tid, PageId pid) {
-        for (PageLock plk : tidToPages.get(tid)) {
-            if (plk.pid.equals(pid)) {
-                if (plk.p == Permissions.READ_ONLY) {
-                    readUnlock(tid, pid);
-                    writeLock(tid, pid);
+    /**
+     * @return the transactions other than that of req which hold a lock on
+     *         the object that conflicts with req, or which queued a
+     *         conflicting request before it
+     */
+    private static Set<TransactionId> blockers(LockQueue q, Request req) {
+        Set<TransactionId> blockers = new HashSet<>();
+        for (Map.Entry<TransactionId, Mode> e : q.holders.entrySet()) {
+            if (!e.getKey().equals(req.tid) && !req.mode.compatibleWith(e.getValue()))
+                blockers.add(e.getKey());
+        }
+        // a transaction that holds the lock already is not queued behind
+        // others, or it could wait for requests that wait for it
+        if (q.holders.containsKey(req.tid)) return blockers;
+        for (Request ahead : q.waiters) {
+            if (ahead == req) break;
+            if (!ahead.tid.equals(req.tid) && !req.mode.compatibleWith(ahead.mode))
+                blockers.add(ahead.tid);
+        }
+        return blockers;
+    }
+
+    /**
+     * Look for a cycle through tid in the wait-for graph.
+     *
+     * @return the youngest transaction on the cycle, or null if there is none
+     */
+    private TransactionId findVictim(TransactionId tid) {
+        // depth first search, keeping the path from tid to the current node
+        Deque<TransactionId> path = new ArrayDeque<>();
+        Deque<Iterator<TransactionId>> edges = new ArrayDeque<>();
+        Set<TransactionId> visited = new HashSet<>();
+        path.push(tid);
+        edges.push(waitsForOf(tid).iterator());
+        visited.add(tid);
+        while (!edges.isEmpty()) {
+            if (!edges.peek().hasNext()) {
+                edges.pop();
+                path.pop();
+                continue;
+            }
+            TransactionId next = edges.peek().next();
+            if (next.equals(tid)) {
+                TransactionId victim = tid;
+                for (TransactionId t : path) {
+                    if (t.getId() > victim.getId()) victim = t;
                 }
-                break;
+                return victim;
+            }
+            Set<TransactionId> out = waitsForOf(next);
+            if (out != null && visited.add(next)) {
+                path.push(next);
+                edges.push(out.iterator());
             }
         }
+        return null;
     }
 
-    private void readLock(TransactionId tid, PageId pid) {
-        ReadWriteLock lock = getLock(tid, pid);
-        HashSet<PageLock> lockList = tidToPages.get(tid);
-        PageLock plk = new PageLock(Permissions.READ_ONLY, pid);
-        if (lockList.contains(plk)) return;
-        lock.readLock().lock();
-        lockList.add(plk);
-        log.info(tid + " read lock success " + pid);
+    /**
+     * @return the transactions tid waits for through any of its waiting
+     *         requests, or null if it does not wait; the caller holds the
+     *         monitor of waitsFor
+     */
+    private Set<TransactionId> waitsForOf(TransactionId tid) {
+        Map<Request, Set<TransactionId>> requests = waitsFor.get(tid);
+        if (requests == null) return null;
+        Set<TransactionId> out = new HashSet<>();
+        for (Set<TransactionId> blockers : requests.values())
+            out.addAll(blockers);
+        return out;
     }
 
-    private void writeLock(TransactionId tid, PageId pid) {
-        ReadWriteLock lock = getLock(tid, pid);
-        HashSet<PageLock> lockList = tidToPages.get(tid);
-        PageLock plk = new PageLock(Permissions.READ_WRITE, pid);
-        if (lockList.contains(plk)) return;
-        lock.writeLock().lock();
-        lockList.add(plk);
-        log.info(tid + " write lock success " + pid);
+    /** Record a granted lock; the caller holds the latch of the bucket of key */
+    private void grant(LockQueue q, TransactionId tid, Object key, Mode mode) {
+        q.holders.put(tid, mode);
+        TransactionLocks tl = locks(tid);
+        if (key instanceof RecordId) {
+            tl.records.put((RecordId) key, mode);
+        } else if (key instanceof PageId) {
+            if (tl.pages.put((PageId) key, mode) == null) {
+                tl.pageCounts.computeIfAbsent(((PageId) key).getTableId(), t -> new AtomicInteger())
+                        .incrementAndGet();
+            }
+        } else {
+            tl.tables.put((Integer) key, mode);
+        }
     }
 
-    public void readUnlock(TransactionId tid, PageId pid) {
-        ReadWriteLock lock = getLock(tid, pid);
-        lock.readLock().unlock();
-        PageLock plk = new PageLock(Permissions.READ_ONLY, pid);
-        tidToPages.get(tid).remove(plk);
-        log.info(tid + " read unlock success " + pid);
+    public void unlock(TransactionId tid, PageId pid) {
+        TransactionLocks tl = transactions.get(tid);
+        if (tl == null || tl.pages.remove(pid) == null) return;
+        tl.pageCounts.get(pid.getTableId()).decrementAndGet();
+        release(tid, pid);
+    }
+
+    private void release(TransactionId tid, Object key) {
+        Bucket b = bucket(key);
+        synchronized (b) {
+            LockQueue q = b.queues.get(key);
+            if (q == null) return;
+            q.holders.remove(tid);
+            if (q.holders.isEmpty() && q.waiters.isEmpty())
+                b.queues.remove(key);
+            b.notifyAll();
+        }
     }
 
-    private void writeUnlock(TransactionId tid, PageId pid) {
-        ReadWriteLock lock = getLock(tid, pid);
-        lock.writeLock().unlock();
-        PageLock plk = new PageLock(Permissions.READ_WRITE, pid);
-        tidToPages.get(tid).remove(plk);
-        log.info(tid + " write unlock success " + pid);
+    /**
+     * @return true if tid holds a lock on the page, or may read it through
+     *         a lock on its table
+     */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        TransactionLocks tl = transactions.get(tid);
+        if (tl == null) return false;
+        Mode table = tl.tables.get(pid.getTableId());
+        return tl.pages.containsKey(pid) || (table != null && table.covers(Mode.S));
+    }
+
+    /**
+     * @return true if tid holds a lock on the page, or on its table, that
+     *         grants exactly perm on the page
+     */
+    public boolean holdsLock(TransactionId tid, PageId pid, Permissions perm) {
+        TransactionLocks tl = transactions.get(tid);
+        if (tl == null) return false;
+        return grants(tl.pages.get(pid), perm) || grants(tl.tables.get(pid.getTableId()), perm);
+    }
+
+    /**
+     * @return true if tid holds a lock on the record, its page or its table
+     *         that grants perm on the record
+     */
+    public boolean holdsRecordLock(TransactionId tid, RecordId rid, Permissions perm) {
+        TransactionLocks tl = transactions.get(tid);
+        if (tl == null) return false;
+        for (Mode m : new Mode[] { tl.records.get(rid), tl.pages.get(rid.getPageId()),
+                tl.tables.get(rid.getPageId().getTableId()) }) {
+            if (m != null && m.covers(mode(perm))) return true;
+        }
+        return false;
+    }
+
+    private static boolean grants(Mode m, Permissions perm) {
+        if (m == null) return false;
+        return perm == Permissions.READ_WRITE ? m == Mode.X : m == Mode.S || m == Mode.SIX;
+    }
+
+    /**
+     * @return the mode tid holds on a table, or null
+     */
+    public Mode tableLock(TransactionId tid, int tableId) {
+        TransactionLocks tl = transactions.get(tid);
+        return tl == null ? null : tl.tables.get(tableId);
+    }
+
+    /**
+     * Upgrade the shared lock of a transaction on a page to an exclusive one,
+     * without releasing it in between, so no other writer can get ahead.
+     * The upgrade waits only for the other holders of the shared lock.
+     *
+     * @throws TransactionAbortedException if tid was chosen to be aborted
+     *             to resolve or prevent a deadlock, e.g. because another
+     *             holder of the shared lock upgrades at the same time
+     */
+    public void updateToWriteLock(TransactionId tid, PageId pid)
+            throws TransactionAbortedException {
+        if (holdsLock(tid, pid, Permissions.READ_ONLY))
+            lock(tid, pid, Permissions.READ_WRITE);
+    }
+
+    public void readUnlock(TransactionId tid, PageId pid) {
+        if (holdsLock(tid, pid, Permissions.READ_ONLY))
+            unlock(tid, pid);
     }
 
     public void releaseAll(TransactionId tid) {
-        HashSet<PageLock> pageLocks = tidToPages.remove(tid);
-        for (PageLock l : pageLocks) {
-            if (l.p == Permissions.READ_ONLY) {
-                lockPool.get(l.pid).readLock().unlock();
-            } else {
-                lockPool.get(l.pid).writeLock().unlock();
+        TransactionLocks tl = transactions.remove(tid);
+        if (tl != null) {
+            for (RecordId rid : tl.records.keySet())
+                release(tid, rid);
+            for (PageId pid : tl.pages.keySet())
+                release(tid, pid);
+            for (Integer table : tl.tables.keySet())
+                release(tid, table);
+        }
+        victims.remove(tid);
+        if (policy == Policy.DETECT) {
+            // nobody waits for a finished transaction any more
+            synchronized (waitsFor) {
+                for (Map<Request, Set<TransactionId>> requests : waitsFor.values()) {
+                    for (Set<TransactionId> out : requests.values())
+                        out.remove(tid);
+                }
             }
         }
     }
 
+    /**
+     * @return the pages tid holds a lock on; pages covered by a lock on
+     *         their table are not included
+     */
     public Collection<PageId> lockedPages(TransactionId tid) {
-        HashSet<PageLock> pageLocks = tidToPages.get(tid);
-        List<PageId> pages = new LinkedList<>();
-        for (PageLock plk : pageLocks) {
-            pages.add(plk.pid);
-        }
-        return pages;
+        TransactionLocks tl = transactions.get(tid);
+        List<PageId> res = new LinkedList<>();
+        if (tl == null) return res;
+        res.addAll(tl.pages.keySet());
+        return res;
     }
 }
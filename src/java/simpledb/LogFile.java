@@ -2,8 +2,16 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -17,8 +25,8 @@ two-phase locking discipline are followed.  <p>
 Many of the methods here are synchronized (to prevent concurrent log
 writes from happening); many of the methods in BufferPool are also
 synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
+log records (on page flushed) and the log file discards BufferPool
+pages (on rollback and recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
 must not be declared synchronized and must begin with a block like:
 
@@ -32,6 +40,58 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<u> Group commit: </u>
+<p>
+
+A committing transaction appends the changes to its pages and its COMMIT
+record, and then waits until the log is forced past them, without holding
+the lock of the log file or of the buffer pool; the buffer pool writes the
+pages once the force is done.  The
+first committer that finds no force in progress becomes the flusher: it
+waits up to the group commit delay for others to append their COMMIT
+records, and then forces the log once for all of them.  Those that
+appended while the force was in progress are served by the next flusher.
+
+<u> Log buffer: </u>
+<p>
+
+Records are not written to the file one field at a time.  They are
+serialized into an in-memory log buffer, which is written out in one
+sequential write when it fills up, or when the log has to be forced, e.g.
+by a commit or by flushToLSN.  The buffer pool calls flushToLSN before it
+writes a page, so that the records that describe the page are on disk
+first.
+
+<u> Checkpoints: </u>
+<p>
+
+Checkpoints are fuzzy: a checkpoint writes no pages and does not hold
+up the buffer pool.  It records the running transactions and the dirty
+page table, the pages whose logged changes may not be on disk yet with
+the LSN of the first such change, and holds the log file only while it
+appends its record.  Recovery redoes changes from the first of these LSNs
+on, so the table files and their page LSNs are synced before the header
+points at the checkpoint.  Once no more of the log is needed than can go, the log is truncated
+before the first record that recovery may still need; the records kept
+are copied while appends go on.  Checkpoints can be taken in the background, see
+startCheckpointer.
+
+<u> Recovery: </u>
+<p>
+
+Every page carries the LSN of the last record whose change it holds, see
+Page.getLSN.  Recovery repeats history from the last checkpoint: it reads
+the log forward to find the transactions that did not finish (analysis),
+applies every change a page on disk does not hold yet (redo), and then
+rolls back the unfinished transactions (undo).  Redo works on each page on
+its own, so the pages are redone by several threads at once.  Undo, like
+the rollback of an aborting transaction, reads the log backwards and logs
+a COMPENSATION record for every change it reverts; compensated changes are
+not undone again if recovery is interrupted and started over.  Changes to
+the structure of a table that are committed at once, such as the split of
+a B+ tree page, are logged as transactions of their own, see
+logCommittedChange.
 */
 
 /**
@@ -39,33 +99,44 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The file begins with a header of two long integers: the LSN of the
+last written checkpoint, or -1 if there are no checkpoints, and the LSN
+of the first record in the file.
 
 <li> All additional data in the log consists of log records.  Log
-records are variable length.
+records are variable length.  Every record is identified by its LSN (log
+sequence number), the position where it begins in the sequence of all
+bytes ever appended to the log.  LSNs grow monotonically, and do not
+change when the beginning of the log is truncated away.
 
-<li> Each log record begins with an integer type and a long integer
+<li> Each log record begins with a byte type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer, its own LSN, so that the
+log can be read backwards.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT and COMPENSATION
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS describe how a page changed: the byte code of the
+type of the page and the integers of its serialized id, followed by an
+integer count of changes and the changes, each serialized by
+PageDelta.write().  Page types are registered with their code by
+registerPageType.
+
+<li> COMPENSATION records describe the undo of an UPDATE record: the type
+and id of the page, as in UPDATE records, followed by the long integer LSN
+of the UPDATE record, and the count and list of the changes that revert it.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+as a long integer transaction id and a long integer first record LSN
+for each active transaction.  It is followed by the dirty page table: an
+integer count of pages, and the type and id of each page, as in UPDATE
+records, with the long integer LSN of its first change not on disk.
 
 </ul>
 
@@ -77,21 +148,147 @@ public class LogFile {
     private RandomAccessFile raf;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
-    static final int ABORT_RECORD = 1;
-    static final int COMMIT_RECORD = 2;
-    static final int UPDATE_RECORD = 3;
-    static final int BEGIN_RECORD = 4;
-    static final int CHECKPOINT_RECORD = 5;
+    static final byte ABORT_RECORD = 1;
+    static final byte COMMIT_RECORD = 2;
+    static final byte UPDATE_RECORD = 3;
+    static final byte BEGIN_RECORD = 4;
+    static final byte CHECKPOINT_RECORD = 5;
+    static final byte COMPENSATION_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    /** the checkpoint LSN and the LSN of the first record */
+    final static int HEADER_SIZE = 2 * LONG_SIZE;
+    /** the type, the transaction id and the trailing LSN of a record */
+    final static int RECORD_OVERHEAD = 1 + 2 * LONG_SIZE;
+
+    /** Creates the id of a page read back from the log */
+    public interface PageIdFactory {
+        /**
+         * @param id the serialized id of the page, see PageId.serialize
+         */
+        PageId create(int[] id);
+    }
+
+    /** Creates a page read back from the log */
+    public interface PageFactory {
+        /**
+         * @param pid the id of the page
+         * @param data the data of the page, see Page.getPageData
+         */
+        Page create(PageId pid, byte[] data) throws IOException;
+    }
+
+    /** A type of page that can be logged */
+    static class PageType {
+        final byte code;
+        /** the number of integers of a serialized page id */
+        final int idLength;
+        final PageIdFactory ids;
+        final PageFactory pages;
+
+        PageType(byte code, int idLength, PageIdFactory ids, PageFactory pages) {
+            this.code = code;
+            this.idLength = idLength;
+            this.ids = ids;
+            this.pages = pages;
+        }
+    }
+
+    private static final ConcurrentHashMap<Class<? extends Page>, PageType> pageTypes =
+        new ConcurrentHashMap<>();
+    private static final PageType[] pageTypesByCode = new PageType[Byte.MAX_VALUE + 1];
+
+    static {
+        PageIdFactory btreeIds = id -> new BTreePageId(id[0], id[1], id[2]);
+        registerPageType(1, HeapPage.class, 2, id -> new HeapPageId(id[0], id[1]),
+                         (pid, data) -> new HeapPage((HeapPageId) pid, data));
+        registerPageType(2, BTreeRootPtrPage.class, 3, btreeIds,
+                         (pid, data) -> new BTreeRootPtrPage((BTreePageId) pid, data));
+        registerPageType(3, BTreeInternalPage.class, 3, btreeIds,
+                         (pid, data) -> new BTreeInternalPage((BTreePageId) pid, data,
+                                                              keyField(pid.getTableId())));
+        registerPageType(4, BTreeLeafPage.class, 3, btreeIds,
+                         (pid, data) -> new BTreeLeafPage((BTreePageId) pid, data,
+                                                          keyField(pid.getTableId())));
+        registerPageType(5, BTreeHeaderPage.class, 3, btreeIds,
+                         (pid, data) -> new BTreeHeaderPage((BTreePageId) pid, data));
+    }
+
+    private static int keyField(int tableId) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableId)).keyField();
+    }
+
+    /** Register a type of page, so that pages of it can be logged.
+
+        @param code The code of the type in the log, from 0 to 127; it
+               must not change while there are logs written with it
+        @param type The class of the pages
+        @param idLength The number of integers the ids of the pages
+               serialize to
+        @param ids Creates the id of a page from its serialized form
+        @param pages Creates a page of the type from its id and data
+    */
+    public static synchronized void registerPageType(int code, Class<? extends Page> type,
+                                                     int idLength, PageIdFactory ids,
+                                                     PageFactory pages) {
+        if (code < 0 || code > Byte.MAX_VALUE)
+            throw new IllegalArgumentException("page type code out of range: " + code);
+        if (pageTypesByCode[code] != null)
+            throw new IllegalArgumentException("page type code " + code + " is taken");
+        PageType t = new PageType((byte) code, idLength, ids, pages);
+        pageTypesByCode[code] = t;
+        pageTypes.put(type, t);
+    }
+
+    private static PageType pageType(Page p) throws IOException {
+        PageType t = pageTypes.get(p.getClass());
+        if (t == null)
+            throw new IOException("cannot log pages of " + p.getClass().getName());
+        return t;
+    }
+    /** the size of the log buffer, in bytes */
+    final static int BUFFER_SIZE = 1 << 16;
+    /** the number of threads recovery redoes pages with */
+    static final int REDO_PARALLELISM = Runtime.getRuntime().availableProcessors();
 
-    long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // the running transactions that logged an UPDATE record //protected by this
+    HashSet<Long> tidsWithUpdates = new HashSet<Long>();
+
+    /** A page whose logged changes may not be on disk yet */
+    static class DirtyPage {
+        final PageType type;
+        /** the LSN of the first change to the page that is not on disk */
+        final long recLSN;
+
+        DirtyPage(PageType type, long recLSN) {
+            this.type = type;
+            this.recLSN = recLSN;
+        }
+    }
+
+    // the dirty page table, see pageWritten //protected by this
+    HashMap<PageId, DirtyPage> dirtyPages = new HashMap<PageId, DirtyPage>();
+    long checkpointLSN = NO_CHECKPOINT_ID; // the last checkpoint //protected by this
+    // the background checkpointer, see startCheckpointer //protected by this
+    private Checkpointer checkpointer;
+
+    // the log holds the records from baseLSN to nextLSN, and those from
+    // writtenLSN on are still in the buffer
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE); //protected by this
+    long baseLSN = HEADER_SIZE; //protected by this
+    long nextLSN = HEADER_SIZE; //protected by this
+    long writtenLSN = HEADER_SIZE; //protected by this
+    long flushedLSN = HEADER_SIZE; // the log before it is on disk //protected by this
+    boolean flushing = false; // a thread is forcing the log //protected by this
+    boolean truncating = false; // a thread is truncating the log //protected by this
+    int totalForces = 0; // for tests //protected by this
+    private volatile long groupCommitDelay = 0;
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -127,30 +324,159 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
+            long first = firstLSN();
+            raf.setLength(0);
+            buffer.clear();
+            baseLSN = nextLSN = writtenLSN = flushedLSN = first;
+            checkpointLSN = NO_CHECKPOINT_ID;
+            writeHeader(NO_CHECKPOINT_ID);
+        }
+    }
+
+    /** @return the LSN of the first record of a new log, which replaces
+        the log on disk, if any.  It is past the end of that log, as its
+        header records, and past the LSN of every page of the tables in
+        the catalog, so that pages written under an earlier log never seem
+        to hold records of the new one.
+    */
+    long firstLSN() throws IOException {
+        long lsn = HEADER_SIZE;
+        if (raf.length() >= HEADER_SIZE) {
+            raf.seek(LONG_SIZE);
+            lsn = Math.max(lsn, raf.readLong() + raf.length() - HEADER_SIZE);
+        }
+        Catalog catalog = Database.getCatalog();
+        for (Iterator<Integer> it = catalog.tableIdIterator(); it.hasNext(); )
+            lsn = Math.max(lsn, catalog.getDatabaseFile(it.next()).maxLSN() + 1);
+        return lsn;
+    }
+
+    // continue the log that is on disk, rather than truncate it
+    void openLog() throws IOException {
+        if (raf.length() < HEADER_SIZE) {
             raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            buffer.clear();
+            baseLSN = nextLSN = writtenLSN = flushedLSN = firstLSN();
+            checkpointLSN = NO_CHECKPOINT_ID;
+            writeHeader(NO_CHECKPOINT_ID);
+            return;
         }
+        raf.seek(0);
+        checkpointLSN = raf.readLong();
+        baseLSN = raf.readLong();
+        buffer.clear();
+        nextLSN = writtenLSN = flushedLSN = baseLSN + raf.length() - HEADER_SIZE;
+    }
+
+    void writeHeader(long checkpoint) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(checkpoint);
+        header.putLong(baseLSN);
+        header.flip();
+        write(raf.getChannel(), header, 0);
+    }
+
+    /** @return the offset in the log file of the record at lsn */
+    long offset(long lsn) {
+        return lsn - baseLSN + HEADER_SIZE;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer data, long offset)
+        throws IOException {
+        while (data.hasRemaining())
+            offset += channel.write(data, offset);
+    }
+
+    /** Start appending a record, in the log buffer if it fits there.
+        The caller puts payloadSize bytes into the buffer returned, and
+        then calls endRecord.
+    */
+    ByteBuffer beginRecord(byte type, long tid, int payloadSize)
+        throws IOException {
+        preAppend();
+        if (checkpointer != null)
+            checkpointer.appending();
+        int size = payloadSize + RECORD_OVERHEAD;
+        if (buffer.remaining() < size)
+            writeBuffer();
+        ByteBuffer out = size <= buffer.capacity() ? buffer : ByteBuffer.allocate(size);
+        out.put(type);
+        out.putLong(tid);
+        return out;
+    }
+
+    /** Finish the record begun by beginRecord.
+        @return the LSN of the record
+    */
+    long endRecord(ByteBuffer out) throws IOException {
+        long lsn = nextLSN;
+        out.putLong(lsn);
+        if (out == buffer) {
+            nextLSN = writtenLSN + buffer.position();
+        } else {
+            // the record is too large for the buffer, which beginRecord
+            // emptied; write it out on its own
+            out.flip();
+            nextLSN += out.limit();
+            write(raf.getChannel(), out, offset(writtenLSN));
+            writtenLSN = nextLSN;
+        }
+        return lsn;
+    }
+
+    // write the log buffer to the file, without forcing it
+    void writeBuffer() throws IOException {
+        if (buffer.position() == 0)
+            return;
+        buffer.flip();
+        write(raf.getChannel(), buffer, offset(writtenLSN));
+        buffer.clear();
+        writtenLSN = nextLSN;
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
-    
+
+    /** @return the LSN the next record appended will have; every record
+        before it describes a change made before this call
+    */
+    public synchronized long getNextLSN() {
+        return nextLSN;
+    }
+
+    /** @return the number of times the log was forced to disk */
+    public synchronized int getTotalForces() {
+        return totalForces;
+    }
+
+    /** Set how long a committing transaction waits for others to
+        commit along with it, so that one force of the log covers them
+        all.  A longer delay means fewer forces under load, but slower
+        commits when there is little to share them with.
+
+        @param millis The delay in ms, or 0 to force at once
+    */
+    public void setGroupCommitDelay(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("negative group commit delay " + millis);
+        groupCommitDelay = millis;
+    }
+
     /** Write an abort record to the log for the specified tid, force
-        the log to disk, and perform a rollback
+        the log to disk, and perform a rollback.  The force is done once
+        the buffer pool and the log file are released, and may be shared
+        with committing transactions.
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
         // must have buffer pool lock before proceeding, since this
         // calls rollback
 
+        long lsn;
         synchronized (Database.getBufferPool()) {
 
             synchronized(this) {
-                preAppend();
                 //Debug.log("ABORT");
                 //should we verify that this is a live transaction?
 
@@ -158,141 +484,250 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
+                lsn = endRecord(beginRecord(ABORT_RECORD, tid.getId(), 0));
                 tidToFirstLogRecord.remove(tid.getId());
+                tidsWithUpdates.remove(tid.getId());
             }
         }
+        awaitForce(lsn, 0);
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The force may be shared with other
+        committing transactions, see setGroupCommitDelay.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
+    public void logCommit(TransactionId tid) throws IOException {
+        awaitCommit(appendCommit(tid));
+    }
+
+    /** Append a commit record for the specified tid, without forcing
+        it.  The buffer pool appends it right after the changes of the
+        transaction, so that awaitCommit forces both at once.
+
+        @param tid The committing transaction.
+        @return the LSN of the record
+    */
+    public synchronized long appendCommit(TransactionId tid) throws IOException {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
+        long lsn = endRecord(beginRecord(COMMIT_RECORD, tid.getId(), 0));
         tidToFirstLogRecord.remove(tid.getId());
+        tidsWithUpdates.remove(tid.getId());
+        return lsn;
+    }
+
+    /** Wait until the commit record at lsn is forced to disk.  The force
+        may be shared with other committing transactions, see
+        setGroupCommitDelay.
+
+        @param lsn The LSN returned by appendCommit
+    */
+    public void awaitCommit(long lsn) throws IOException {
+        awaitForce(lsn, groupCommitDelay);
+    }
+
+    /** Force the log to disk up to and including the record at lsn, if
+        it is not there yet.  The buffer pool calls this before it writes a
+        page, with the LSN of the last record that describes the page.
+        The force may be shared with committing transactions.
+
+        @param lsn The LSN of a record appended to the log
+    */
+    public void flushToLSN(long lsn) throws IOException {
+        awaitForce(lsn, 0);
+    }
+
+    /** Wait until the record at lsn is forced to disk, forcing the log
+        if no other thread is doing so.
+
+        @param delay How long to wait for others to join a force, in ms
+    */
+    void awaitForce(long lsn, long delay) throws IOException {
+        synchronized (this) {
+            while (flushing && flushedLSN <= lsn) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while forcing the log");
+                }
+            }
+            if (flushedLSN > lsn)
+                return;
+            flushing = true;
+        }
+        // we are the flusher: give others the chance to join the force
+        try {
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            long target;
+            FileChannel channel;
+            synchronized (this) {
+                writeBuffer();
+                target = nextLSN;
+                channel = raf.getChannel();
+                totalForces++;
+            }
+            // appends go on while the log is forced
+            channel.force(true);
+            synchronized (this) {
+                flushedLSN = Math.max(flushedLSN, target);
+            }
+        } finally {
+            synchronized (this) {
+                flushing = false;
+                notifyAll();
+            }
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  Only the
+        changes between the images are logged, see Page.diff.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
+        Debug.log("WRITE, LSN = " + nextLSN);
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
+           page type and id (see writePageId)
+           number of changes
+           changes (see PageDelta)
+           start LSN
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        List<PageDelta> deltas = after.diff(before.getPageData(), after.getPageData());
+        long lsn = logUpdate(tid.getId(), pageType(after), after.getId(), deltas);
+        tidsWithUpdates.add(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        Debug.log("WRITE OFFSET = " + currentOffset);
+        Debug.log("WRITE LSN = " + lsn);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /** Append an UPDATE record, and note the page in the dirty page table
+        @return the LSN of the record
+    */
+    private long logUpdate(long tid, PageType type, PageId pid, List<PageDelta> deltas)
+        throws IOException {
+        int size = 1 + type.idLength * INT_SIZE + INT_SIZE;
+        for (PageDelta d : deltas)
+            size += d.size();
+        ByteBuffer out = beginRecord(UPDATE_RECORD, tid, size);
+        writePageId(out, type, pid);
+        out.putInt(deltas.size());
+        for (PageDelta d : deltas)
+            d.write(out);
+        long lsn = endRecord(out);
+        if (!dirtyPages.containsKey(pid))
+            dirtyPages.put(pid, new DirtyPage(type, lsn));
+        return lsn;
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+    /** Log a change to the structure of a table that is committed at
+        once, whatever becomes of the transaction it is made for, see
+        BufferPool.changeCommitted.  The change is logged as a transaction
+        of its own, under a new transaction id: a BEGIN record, an UPDATE
+        record for each page that changed, and a COMMIT record.  The log is
+        forced through the COMMIT record before this returns, so the pages
+        may then be written in any order: recovery redoes those that a
+        crash kept from being written.  If the crash comes before the
+        COMMIT record is on disk, no page was written yet, and recovery
+        rolls the change back like any unfinished transaction.
+
+        @param befores The data of each page before the change, or null
+               for a page that was free, whose data on disk is not known
+        @param afters The pages after the change; each page that changed
+               is stamped with the LSN of its record
+        @return the pages that changed
+    */
+    public List<Page> logCommittedChange(Map<PageId, byte[]> befores, Collection<Page> afters)
+        throws IOException {
+        List<Page> changed = new ArrayList<Page>();
+        long commit;
+        synchronized (this) {
+            long tid = new TransactionId().getId();
+            for (Page after : afters) {
+                byte[] before = befores.get(after.getId());
+                byte[] data = after.getPageData();
+                List<PageDelta> deltas = before != null ? after.diff(before, data)
+                    : Collections.singletonList(PageDelta.wholePage(new byte[data.length], data));
+                if (deltas.isEmpty())
+                    continue;
+                if (changed.isEmpty())
+                    endRecord(beginRecord(BEGIN_RECORD, tid, 0));
+                after.setLSN(logUpdate(tid, pageType(after), after.getId(), deltas));
+                changed.add(after);
+            }
+            if (changed.isEmpty())
+                return changed;
+            commit = endRecord(beginRecord(COMMIT_RECORD, tid, 0));
+            Debug.log("COMMITTED CHANGE " + tid + ", " + changed.size() + " pages");
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        awaitForce(commit, 0);
+        return changed;
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    /** The buffer pool calls this when it wrote a page, so that the
+        changes logged for it are not redone from the log any more.
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        @param pid The page written
+    */
+    public synchronized void pageWritten(PageId pid) {
+        dirtyPages.remove(pid);
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    /** @return the number of bytes writePageId writes for p */
+    static int pageIdSize(Page p) throws IOException {
+        return 1 + pageType(p).idLength * INT_SIZE;
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    void writePageId(ByteBuffer out, Page p) throws IOException {
+        writePageId(out, pageType(p), p.getId());
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    void writePageId(ByteBuffer out, PageType type, PageId pid) {
+        int pageInfo[] = pid.serialize();
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        //page id is:
+        // page type code
+        // id data
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+        out.put(type.code);
+        for (int i = 0; i < type.idLength; i++) {
+            out.putInt(pageInfo[i]);
         }
-        return newPage;
+    }
+
+    PageType readPageType(DataInput in) throws IOException {
+        int code = in.readByte();
+        PageType type = code >= 0 ? pageTypesByCode[code] : null;
+        if (type == null)
+            throw new IOException("unknown page type code " + code);
+        return type;
+    }
 
+    PageId readPageId(DataInput in, PageType type) throws IOException {
+        int[] id = new int[type.idLength];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = in.readInt();
+        }
+        return type.ids.create(id);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -306,151 +741,292 @@ public class LogFile {
             System.err.printf("logXactionBegin: already began this tid\n");
             throw new IOException("double logXactionBegin()");
         }
-        preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long lsn = endRecord(beginRecord(BEGIN_RECORD, tid.getId(), 0));
+        tidToFirstLogRecord.put(tid.getId(), lsn);
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN LSN = " + lsn);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+        is fuzzy: no page is written, and the log file is held only while
+        the record is appended.  The tables in the catalog are synced
+        before the header points at the record.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        long checkpoint;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, LSN = " + nextLSN);
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            int size = INT_SIZE + keys.size() * 2 * LONG_SIZE + INT_SIZE;
+            for (DirtyPage d : dirtyPages.values())
+                size += 1 + d.type.idLength * INT_SIZE + LONG_SIZE;
+            ByteBuffer out = beginRecord(CHECKPOINT_RECORD, -1, //no tid , but leave space for convenience
+                                         size);
+
+            //write list of outstanding transactions
+            out.putInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                out.putLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION LSN: " + tidToFirstLogRecord.get(key));
+                out.putLong(tidToFirstLogRecord.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            out.putInt(dirtyPages.size());
+            for (Map.Entry<PageId, DirtyPage> e : dirtyPages.entrySet()) {
+                writePageId(out, e.getValue().type, e.getKey());
+                out.putLong(e.getValue().recLSN);
             }
+            checkpoint = endRecord(out);
+            if (checkpointer != null)
+                checkpointer.since = nextLSN;
         }
 
-        logTruncate();
+        // appends go on while the checkpoint is forced
+        awaitForce(checkpoint, 0);
+
+        // the pages written before the checkpoint are not in its dirty page
+        // table, so they and their LSNs must be on disk before the log
+        // is recovered from it
+        Catalog catalog = Database.getCatalog();
+        for (Iterator<Integer> it = catalog.tableIdIterator(); it.hasNext(); )
+            catalog.getDatabaseFile(it.next()).sync();
+
+        synchronized (this) {
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated, unless a later
+            // checkpoint got there first
+            if (checkpoint <= checkpointLSN)
+                return;
+            writeHeader(checkpoint);
+            checkpointLSN = checkpoint;
+            //Debug.log("CP LSN = " + checkpoint);
+        }
+
+        truncate(true);
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+    /** Take checkpoints in a background thread, in place of the one
+        started earlier if any.  The log must be in use already, i.e.
+        recover() was called or a record was appended, since a checkpoint
+        appends to the log.
 
-        long minLogRecord = cpLoc;
+        @param intervalMillis Take a checkpoint this often, in ms, or 0
+               for no schedule
+        @param logBytes Take a checkpoint whenever the log grew by this
+               many bytes since the last one, or 0 for no threshold
+    */
+    public void startCheckpointer(long intervalMillis, long logBytes) {
+        if (intervalMillis < 0 || logBytes < 0)
+            throw new IllegalArgumentException("negative checkpoint interval or threshold");
+        stopCheckpointer();
+        synchronized (this) {
+            checkpointer = new Checkpointer(intervalMillis, logBytes);
+            checkpointer.start();
+        }
+    }
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+    /** Stop taking checkpoints in the background, and wait for the
+        checkpoint in progress, if any, to finish */
+    public void stopCheckpointer() {
+        Checkpointer c;
+        synchronized (this) {
+            c = checkpointer;
+            if (c == null)
+                return;
+            checkpointer = null;
+        }
+        c.halt();
+        if (c == Thread.currentThread())
+            return;
+        try {
+            c.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+    /** Takes checkpoints on a schedule, or when the log grew enough */
+    private class Checkpointer extends Thread {
+        private final long interval;
+        private final long logBytes;
+        /** the end of the log after the last checkpoint */
+        long since = nextLSN; //protected by LogFile.this
+        private boolean due = false; //protected by this
+        private boolean halted = false; //protected by this
+
+        Checkpointer(long interval, long logBytes) {
+            super("checkpointer");
+            this.interval = interval;
+            this.logBytes = logBytes;
+            setDaemon(true);
+        }
+
+        /** Called with the lock of the log file held, when a record is
+            about to be appended */
+        void appending() {
+            if (logBytes > 0 && nextLSN - since >= logBytes) {
+                synchronized (this) {
+                    due = true;
+                    notifyAll();
+                }
             }
+        }
 
-            int numOutstanding = raf.readInt();
+        synchronized void halt() {
+            halted = true;
+            notifyAll();
+        }
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
+        public void run() {
+            while (true) {
+                synchronized (this) {
+                    try {
+                        // with no schedule, wait for the log to grow
+                        if (!due && !halted)
+                            wait(interval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (halted)
+                        return;
+                    due = false;
+                }
+                try {
+                    logCheckpoint();
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
             }
         }
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption.  The records that are kept are copied to a new file
+        without holding the log file, so that appends, commits and aborts
+        go on meanwhile; it is held only to copy the records appended during
+        the copy, and to switch to the new file. */
+    public void logTruncate() throws IOException {
+        truncate(false);
+    }
 
-        raf.seek(minLogRecord);
+    /** Truncate the log, see logTruncate.
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+        @param halve Only truncate if no more of the log is kept than
+               dropped, so that the records kept are copied a bounded number
+               of times on average
+    */
+    private void truncate(boolean halve) throws IOException {
+        long minLogRecord;
+        long copied;
+        long pos;
+        long end;
+        FileChannel from;
+        synchronized (this) {
+            if (truncating)
+                return;
+            preAppend();
+            if (checkpointLSN == NO_CHECKPOINT_ID)
+                return;
+
+            minLogRecord = checkpointLSN;
+            raf.seek(offset(checkpointLSN));
+            LogRecord cp = readRecord(raf);
+
+            if (cp.type != CHECKPOINT_RECORD) {
+                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+            }
 
-                Debug.log("NEW START = " + newStart);
+            // keep the records of running transactions, and those recovery
+            // may have to redo
+            for (long firstLogRecord : cp.active.values()) {
+                if (firstLogRecord < minLogRecord) {
+                    minLogRecord = firstLogRecord;
+                }
+            }
+            for (long recLSN : cp.dirty.values()) {
+                if (recLSN < minLogRecord) {
+                    minLogRecord = recLSN;
+                }
+            }
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+            if (minLogRecord <= baseLSN)
+                return;
+            if (halve && nextLSN - minLogRecord > minLogRecord - baseLSN)
+                return;
+
+            // the records up to copied are in the file, and are copied
+            // without the lock; appends go past them meanwhile
+            writeBuffer();
+            copied = writtenLSN;
+            pos = offset(minLogRecord);
+            end = offset(copied);
+            from = raf.getChannel();
+            truncating = true;
+        }
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+        // we can truncate everything before minLogRecord.  LSNs stay the
+        // same, so the records are copied as they are
+        File newFile = new File("logtmp" + System.currentTimeMillis());
+        RandomAccessFile logNew = null;
+        try {
+            logNew = new RandomAccessFile(newFile, "rw");
+            logNew.setLength(0);
+            FileChannel to = logNew.getChannel();
+            to.position(HEADER_SIZE);
+            while (pos < end)
+                pos += from.transferTo(pos, end - pos, to);
+            to.force(true);
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
+            synchronized (this) {
+                // the file is replaced below; wait for the flusher to be
+                // done with it
+                while (flushing) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted while truncating the log");
                     }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+                writeBuffer();
+                pos = offset(copied);
+                end = offset(writtenLSN);
+                while (pos < end)
+                    pos += from.transferTo(pos, end - pos, to);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putLong(checkpointLSN);
+                header.putLong(minLogRecord);
+                header.flip();
+                write(to, header, 0);
+
+                Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - offset(minLogRecord)));
+
+                // the new file holds every record appended so far
+                to.force(true);
+                logNew.close();
+                logNew = null;
+                raf.close();
+                // the new file replaces the old one at once, so that a crash
+                // leaves one of them in place
+                Files.move(newFile.toPath(), logFile.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                raf = new RandomAccessFile(logFile, "rw");
+
+                baseLSN = minLogRecord;
+                //print();
+            }
+        } finally {
+            if (logNew != null)
+                logNew.close();
+            newFile.delete();
+            synchronized (this) {
+                truncating = false;
             }
         }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -466,7 +1042,12 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null)
+                    throw new NoSuchElementException("transaction " + tid + " did not begin");
+                // under NO STEAL, most transactions never wrote a page
+                if (tidsWithUpdates.contains(tid.getId()))
+                    undo(Collections.singletonMap(tid.getId(), first));
             }
         }
     }
@@ -493,18 +1074,421 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                openLog();
+
+                // changes before the checkpoint are on disk, except those to
+                // the pages of its dirty page table
+                long redoLSN = baseLSN;
+                Map<PageId, Long> dirty = Collections.emptyMap();
+                if (checkpointLSN != NO_CHECKPOINT_ID) {
+                    raf.seek(offset(checkpointLSN));
+                    dirty = readRecord(raf).dirty;
+                    redoLSN = checkpointLSN;
+                    for (long recLSN : dirty.values())
+                        redoLSN = Math.max(Math.min(redoLSN, recLSN), baseLSN);
+                }
+
+                // analysis: the transactions that did not finish, and the
+                // changes to redo, by page
+                Map<Long, Long> losers = new HashMap<Long, Long>();
+                Map<PageId, List<LogRecord>> changes = new HashMap<PageId, List<LogRecord>>();
+                List<LogRecord> records = readRecords(redoLSN);
+                for (LogRecord r : records) {
+                    switch (r.type) {
+                    case CHECKPOINT_RECORD:
+                        losers.putAll(r.active);
+                        break;
+                    case BEGIN_RECORD:
+                        losers.put(r.tid, r.lsn);
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        losers.remove(r.tid);
+                        break;
+                    case UPDATE_RECORD:
+                    case COMPENSATION_RECORD:
+                        if (r.lsn < checkpointLSN) {
+                            Long recLSN = dirty.get(r.pid);
+                            if (recLSN == null || r.lsn < recLSN)
+                                break;
+                        }
+                        List<LogRecord> l = changes.get(r.pid);
+                        if (l == null) {
+                            l = new ArrayList<LogRecord>();
+                            changes.put(r.pid, l);
+                        }
+                        l.add(r);
+                        break;
+                    }
+                }
+                Debug.log("RECOVERY: " + records.size() + " records, " + changes.size()
+                          + " pages, " + losers.size() + " unfinished transactions");
+
+                redo(changes);
+                if (!losers.isEmpty()) {
+                    undo(losers);
+                    for (Long tid : losers.keySet())
+                        endRecord(beginRecord(ABORT_RECORD, tid, 0));
+                    force();
+                }
             }
          }
     }
 
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        // some code goes here
+        List<LogRecord> records;
+        synchronized (this) {
+            if (recoveryUndecided)
+                openLog();
+            records = readRecords(baseLSN);
+        }
+        for (LogRecord r : records)
+            System.out.println(r);
+    }
+
+    /** A record read back from the log */
+    class LogRecord {
+        final byte type;
+        final long tid;
+        long lsn;
+        // UPDATE and COMPENSATION records
+        PageType pageType;
+        PageId pid;
+        List<PageDelta> deltas;
+        /** the LSN of the UPDATE record a COMPENSATION record reverts */
+        long undone;
+        /** the first LSN of each active transaction of a CHECKPOINT record */
+        Map<Long, Long> active;
+        /** the dirty page table of a CHECKPOINT record */
+        Map<PageId, Long> dirty;
+
+        LogRecord(byte type, long tid) {
+            this.type = type;
+            this.tid = tid;
+        }
+
+        public String toString() {
+            String[] names = { "?", "ABORT", "COMMIT", "UPDATE", "BEGIN", "CHECKPOINT", "COMPENSATION" };
+            String s = lsn + " " + names[type] + " tid=" + tid;
+            if (pid != null)
+                s += " page=" + pid + " changes=" + deltas.size();
+            if (type == COMPENSATION_RECORD)
+                s += " undoes=" + undone;
+            if (active != null)
+                s += " active=" + active + " dirty=" + dirty;
+            return s;
+        }
+    }
+
+    /** Read the record that starts at the current position of in */
+    LogRecord readRecord(DataInput in) throws IOException {
+        byte type = in.readByte();
+        LogRecord r = new LogRecord(type, in.readLong());
+        switch (type) {
+        case UPDATE_RECORD:
+        case COMPENSATION_RECORD:
+            r.pageType = readPageType(in);
+            r.pid = readPageId(in, r.pageType);
+            if (type == COMPENSATION_RECORD)
+                r.undone = in.readLong();
+            int numDeltas = in.readInt();
+            r.deltas = new ArrayList<PageDelta>(numDeltas);
+            for (int i = 0; i < numDeltas; i++)
+                r.deltas.add(PageDelta.read(in));
+            break;
+        case CHECKPOINT_RECORD:
+            int numActive = in.readInt();
+            r.active = new HashMap<Long, Long>();
+            for (int i = 0; i < numActive; i++)
+                r.active.put(in.readLong(), in.readLong());
+            int numDirty = in.readInt();
+            r.dirty = new HashMap<PageId, Long>();
+            for (int i = 0; i < numDirty; i++)
+                r.dirty.put(readPageId(in, readPageType(in)), in.readLong());
+            break;
+        case ABORT_RECORD:
+        case COMMIT_RECORD:
+        case BEGIN_RECORD:
+            break;
+        default:
+            throw new IOException("unknown log record type " + type);
+        }
+        r.lsn = in.readLong();
+        return r;
+    }
+
+    /** Counts the bytes read through it, to find where records begin */
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /** Read the records from the one at lsn to the end of the log.  A
+        record cut short by a crash ends the log, which is truncated there.
+
+        @return the records, in the order they were appended
+    */
+    List<LogRecord> readRecords(long lsn) throws IOException {
+        writeBuffer();
+        List<LogRecord> records = new ArrayList<LogRecord>();
+        long pos = lsn;
+        CountingInputStream counter = new CountingInputStream(
+            new BufferedInputStream(new FileInputStream(logFile)));
+        try {
+            DataInputStream in = new DataInputStream(counter);
+            while (counter.count < offset(lsn)) {
+                if (counter.skip(offset(lsn) - counter.count) <= 0)
+                    throw new IOException("log ends before LSN " + lsn);
+            }
+            while (pos < nextLSN) {
+                long start = counter.count;
+                LogRecord r;
+                try {
+                    r = readRecord(in);
+                } catch (IOException e) {
+                    break;
+                }
+                if (r.lsn != pos)
+                    break;
+                records.add(r);
+                pos += counter.count - start;
+            }
+        } finally {
+            counter.close();
+        }
+        if (pos < nextLSN) {
+            Debug.log("LOG ENDS WITH A PARTIAL RECORD AT " + pos);
+            raf.setLength(offset(pos));
+            nextLSN = writtenLSN = flushedLSN = pos;
+        }
+        return records;
+    }
+
+    /** Read the record that ends where the record at lsn begins */
+    LogRecord readRecordBefore(long lsn) throws IOException {
+        raf.seek(offset(lsn) - LONG_SIZE);
+        long start = raf.readLong();
+        if (start < baseLSN || start >= lsn)
+            throw new IOException("corrupt log record before LSN " + lsn);
+        byte[] data = new byte[(int) (lsn - start)];
+        raf.seek(offset(start));
+        raf.readFully(data);
+        LogRecord r = readRecord(new DataInputStream(new ByteArrayInputStream(data)));
+        if (r.lsn != start)
+            throw new IOException("corrupt log record at LSN " + start);
+        return r;
+    }
+
+    /** @return the file of the table of a page, or null if it is not in
+        the catalog any more
+    */
+    private static DbFile tableOf(PageId pid) {
+        try {
+            return Database.getCatalog().getDatabaseFile(pid.getTableId());
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    /** @return the page as it is on disk, or null if it is past the end
+        of its file
+    */
+    private static Page readDiskPage(DbFile f, PageId pid) {
+        try {
+            return f.readPage(pid);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /** Write the data of a page recovered from the log */
+    private static void writeRecovered(DbFile f, PageType type, PageId pid, byte[] data, long lsn)
+        throws IOException {
+        Page p = type.pages.create(pid, data);
+        p.setLSN(lsn);
+        f.writePage(p);
+    }
+
+    /** Apply the changes of the log that the pages on disk do not hold
+        yet.  Pages are independent of each other, so they are divided
+        among REDO_PARALLELISM threads.
+
+        @param changes The UPDATE and COMPENSATION records of each page, in
+               the order they were appended
+    */
+    private void redo(Map<PageId, List<LogRecord>> changes) throws IOException {
+        final List<List<Map.Entry<PageId, List<LogRecord>>>> parts =
+            new ArrayList<List<Map.Entry<PageId, List<LogRecord>>>>();
+        for (int i = 0; i < REDO_PARALLELISM; i++)
+            parts.add(new ArrayList<Map.Entry<PageId, List<LogRecord>>>());
+        for (Map.Entry<PageId, List<LogRecord>> e : changes.entrySet())
+            parts.get(Math.floorMod(e.getKey().hashCode(), REDO_PARALLELISM)).add(e);
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final List<Map.Entry<PageId, List<LogRecord>>> part : parts) {
+            if (part.isEmpty())
+                continue;
+            tasks.add(new Callable<Void>() {
+                public Void call() throws IOException {
+                    for (Map.Entry<PageId, List<LogRecord>> e : part)
+                        redoPage(e.getKey(), e.getValue());
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> f : ForkJoinPool.commonPool().invokeAll(tasks))
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while redoing the log");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException("could not redo the log", cause);
+        }
+    }
+
+    private void redoPage(PageId pid, List<LogRecord> records) throws IOException {
+        DbFile f = tableOf(pid);
+        if (f == null)
+            return;
+        Page disk = readDiskPage(f, pid);
+        long pageLSN = disk != null ? disk.getLSN() : 0;
+        byte[] data = disk != null ? disk.getPageData() : new byte[BufferPool.getPageSize()];
+        LogRecord last = null;
+        for (LogRecord r : records) {
+            if (r.lsn <= pageLSN)
+                continue;
+            for (PageDelta d : r.deltas)
+                d.redo(data);
+            last = r;
+        }
+        if (last != null)
+            writeRecovered(f, last.pageType, pid, data, last.lsn);
+    }
+
+    /** Revert the changes of transactions, from the end of the log back to
+        the first record of the earliest one.  A COMPENSATION record is
+        logged for each UPDATE record reverted, and the log is forced before
+        the pages are written.  Their copies in the buffer pool are
+        discarded, unless another transaction dirtied them.
+
+        @param firstLSNs The transactions, with the LSN of their first record
+    */
+    private void undo(Map<Long, Long> firstLSNs) throws IOException {
+        writeBuffer();
+        long first = Math.max(Collections.min(firstLSNs.values()), baseLSN);
+        // the first UPDATE record of each transaction that is compensated
+        // already, by an earlier rollback that was interrupted
+        Map<Long, Long> undoneFrom = new HashMap<Long, Long>();
+        Map<PageId, byte[]> pages = new LinkedHashMap<PageId, byte[]>();
+        Map<PageId, LogRecord> lastUndo = new HashMap<PageId, LogRecord>();
+        Map<PageId, Long> pageLSNs = new HashMap<PageId, Long>();
+        for (long pos = nextLSN; pos > first; ) {
+            LogRecord r = readRecordBefore(pos);
+            pos = r.lsn;
+            if (!firstLSNs.containsKey(r.tid))
+                continue;
+            if (r.type == COMPENSATION_RECORD) {
+                Long from = undoneFrom.get(r.tid);
+                undoneFrom.put(r.tid, from == null ? r.undone : Math.min(from, r.undone));
+                continue;
+            }
+            if (r.type != UPDATE_RECORD)
+                continue;
+            Long from = undoneFrom.get(r.tid);
+            if (from != null && r.lsn >= from)
+                continue;
+            DbFile f = tableOf(r.pid);
+            if (f == null)
+                continue;
+            byte[] data = pages.get(r.pid);
+            if (data == null) {
+                Page disk = readDiskPage(f, r.pid);
+                if (disk == null)
+                    continue;
+                data = disk.getPageData();
+                pages.put(r.pid, data);
+            }
+            List<PageDelta> applied = new ArrayList<PageDelta>();
+            for (int i = r.deltas.size() - 1; i >= 0; i--) {
+                if (r.deltas.get(i).undo(data))
+                    applied.add(r.deltas.get(i).inverse());
+            }
+            pageLSNs.put(r.pid, logCompensation(r, applied));
+            lastUndo.put(r.pid, r);
+        }
+        force();
+
+        BufferPool bp = Database.getBufferPool();
+        for (Map.Entry<PageId, byte[]> e : pages.entrySet()) {
+            PageId pid = e.getKey();
+            LogRecord r = lastUndo.get(pid);
+            if (r == null)
+                continue;
+            writeRecovered(tableOf(pid), r.pageType, pid, e.getValue(), pageLSNs.get(pid));
+            Page cached = bp.cachedPage(pid);
+            if (cached == null)
+                continue;
+            TransactionId dirtier = cached.isDirty();
+            if (dirtier == null || firstLSNs.containsKey(dirtier.getId()))
+                bp.discardPage(pid);
+        }
+    }
+
+    /** Write a COMPENSATION record for the undo of an UPDATE record
+        @param update The UPDATE record undone
+        @param deltas The changes that reverted it
+        @return the LSN of the record
+    */
+    private long logCompensation(LogRecord update, List<PageDelta> deltas) throws IOException {
+        int size = 1 + update.pageType.idLength * INT_SIZE + LONG_SIZE + INT_SIZE;
+        for (PageDelta d : deltas)
+            size += d.size();
+        ByteBuffer out = beginRecord(COMPENSATION_RECORD, update.tid, size);
+        writePageId(out, update.pageType, update.pid);
+        out.putLong(update.lsn);
+        out.putInt(deltas.size());
+        for (PageDelta d : deltas)
+            d.write(out);
+        return endRecord(out);
     }
 
     public  synchronized void force() throws IOException {
+        writeBuffer();
         raf.getChannel().force(true);
+        totalForces++;
+        flushedLSN = nextLSN;
     }
 
 }
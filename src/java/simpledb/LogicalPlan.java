@@ -5,6 +5,9 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.HashSet;
 import java.util.NoSuchElementException;
 
 /**
@@ -12,9 +15,9 @@ import java.util.NoSuchElementException;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and a list of group by fields.
+ * Any number of aggregates can be computed over the groups; they are
+ * all evaluated by a single aggregation operator.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -29,13 +32,14 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields;
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
+    private Vector<String> aggOps;
+    private Vector<String> aggFields;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
     private String query;
+    private int parallelism = 1;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -47,6 +51,9 @@ public class LogicalPlan {
         tableMap = new HashMap<String,Integer>();
 
         selectList = new Vector<LogicalSelectListNode>();
+        groupByFields = new Vector<String>();
+        aggOps = new Vector<String>();
+        aggFields = new Vector<String>();
         this.query = "";
     }
 
@@ -66,6 +73,27 @@ public class LogicalPlan {
         return query;
     }
 
+    /** Set the degree of parallelism of the plans built by {@link
+        #physicalPlan}.  With the default of 1, the whole plan runs on the
+        caller's thread; otherwise scans, filters, equality joins and
+        aggregates are split into this many partitions that run on worker
+        threads, connected by {@link Repartition} and {@link Gather}
+        operators.
+
+        @param dop the number of partitions to run in parallel
+    */
+    public void setParallelism(int dop) {
+        if (dop < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.parallelism = dop;
+    }
+
+    /** Get the degree of parallelism set via {@link #setParallelism}.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
     /** Given a table alias, return id of the table object (this id can be supplied to {@link Catalog#getDatabaseFile(int)}).
         Aliases are added as base tables are added via {@link #addScan}.
 
@@ -186,23 +214,33 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  All aggregates of a query share the same GROUP BY
+        fields and are computed together.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield a field to group by, or null to add no grouping field
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupBy(gfield);
+        aggOps.addElement(op);
+        aggFields.addElement(afield);
         hasAgg = true;
     }
 
+    /** Add a GROUP BY field to the query.  Groups are formed over the
+        combination of all fields added; adding a field twice has no effect.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.addElement(gfield);
+    }
+
     /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
         a single ORDER BY field.
         @param field the field to order by
@@ -334,7 +372,12 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            // evaluate filters over a heap file inside its page iterator
+            if (subplan instanceof SeqScan
+                    && Database.getCatalog().getDatabaseFile(getTableId(lf.tableAlias)) instanceof HeapFile)
+                ((SeqScan) subplan).addPredicate(p);
+            else
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -344,6 +387,14 @@ public class LogicalPlan {
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
+        // narrow every table to the fields the rest of the plan refers to,
+        // so that joins and aggregates carry small tuples
+        Set<String> required = requiredFields();
+        if (required != null) {
+            for (Map.Entry<String, OpIterator> e : subplanMap.entrySet())
+                e.setValue(narrow(e.getValue(), required));
+        }
+
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
@@ -382,7 +433,10 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
             
             OpIterator j;
-            j = jo.instantiateJoin(lj,plan1,plan2);
+            if (parallelism > 1 && !isSubqueryJoin && lj.p == Predicate.Op.EQUALS)
+                j = parallelJoin(lj, parallelScan(plan1), parallelScan(plan2));
+            else
+                j = jo.instantiateJoin(lj,plan1,plan2);
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -414,7 +468,15 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                int aggIdx = -1;
+                for (int k = 0; k < aggOps.size() && aggIdx < 0; k++) {
+                    if (aggOps.elementAt(k).equals(si.aggOp) && aggFields.elementAt(k).equals(si.fname))
+                        aggIdx = k;
+                }
+                if (aggIdx < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") is not computed by the query");
+                }
+                outFields.add(groupByFields.size() + aggIdx);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -426,16 +488,17 @@ public class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int gIdx = groupByFields.indexOf(si.fname);
+                    if (gIdx < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(gIdx);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -460,18 +523,35 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            OpIterator aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggOps.size()];
+                for (int k = 0; k < afields.length; k++) {
+                    afields[k] = td.fieldNameToIndex(aggFields.elementAt(k));
+                    aops[k] = getAggOp(aggOps.elementAt(k));
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int k = 0; k < gfields.length; k++)
+                    gfields[k] = td.fieldNameToIndex(groupByFields.elementAt(k));
+                // if the input already arrives grouped, aggregate it as it
+                // streams by instead of hashing every group
+                if (parallelism > 1 && ParallelAggregate.canPartition(node))
+                    aggNode = new ParallelAggregate(t, node, afields, gfields, aops, parallelism);
+                else if (parallelism > 1 && gfields.length > 0)
+                    aggNode = parallelAggregate(parallelScan(node), afields, gfields, aops);
+                else if (gfields.length == 1 && isOrderedOn(node, groupByFields.elementAt(0)))
+                    aggNode = new StreamAggregate(node, afields, gfields, aops);
+                else
+                    aggNode = new Aggregate(node, afields, gfields, aops);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
             node = aggNode;
+        } else {
+            node = parallelScan(node);
         }
 
         if (hasOrderBy) {
@@ -481,6 +561,170 @@ public class LogicalPlan {
         return new Project(outFields, outTypes, node);
     }
 
+    /** Collect the fully qualified names of the fields that the select
+     *  list, joins, aggregates and ORDER BY of this plan refer to.  Filters
+     *  are applied before the tables are narrowed, so their fields are not
+     *  included.
+     *  @return the names of the required fields, or null if every field
+     *    of every table is required
+     */
+    private Set<String> requiredFields() {
+        Set<String> required = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList)
+            required.add(si.fname);
+        required.addAll(groupByFields);
+        required.addAll(aggFields);
+        if (hasOrderBy)
+            required.add(oByField);
+        for (LogicalJoinNode lj : joins) {
+            required.add(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                required.add(lj.f2QuantifiedName);
+        }
+        for (String name : required) {
+            if (name.endsWith(".*"))
+                return null;
+        }
+        return required;
+    }
+
+    /** Restrict the output of a plan over a single table to the required
+     *  fields, pushing the projection into the scan if the plan is a
+     *  SeqScan.
+     *  @param node the plan to narrow
+     *  @param required the fully qualified names of the fields to keep
+     *  @return a plan returning the required fields of node's tuples
+     */
+    private OpIterator narrow(OpIterator node, Set<String> required) {
+        TupleDesc td = node.getTupleDesc();
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        ArrayList<Type> types = new ArrayList<Type>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (required.contains(td.getFieldName(i))) {
+                fields.add(i);
+                types.add(td.getFieldType(i));
+            }
+        }
+        // keep one field of a table none of whose fields is referenced, so
+        // that it still returns a tuple per row
+        if (fields.isEmpty()) {
+            fields.add(0);
+            types.add(td.getFieldType(0));
+        }
+        if (fields.size() == td.numFields())
+            return node;
+        if (node instanceof SeqScan && ((SeqScan) node).getProjection() == null) {
+            int[] projection = new int[fields.size()];
+            for (int i = 0; i < projection.length; i++)
+                projection[i] = fields.get(i);
+            ((SeqScan) node).setProjection(projection);
+            return node;
+        }
+        return new Project(fields, types, node);
+    }
+
+    /** Run a scan and the filters above it in parallel, if the plan is to
+     *  be run in parallel at all.  A table stored in a heap file is split
+     *  into page ranges that are scanned and filtered on worker threads;
+     *  the tuples beneath filters over any other plan are split round-robin
+     *  into partitions that are filtered on worker threads.
+     *  @param node the plan to parallelize
+     *  @return a plan returning the same tuples as node
+     */
+    private OpIterator parallelScan(OpIterator node) {
+        if (parallelism < 2)
+            return node;
+        List<Predicate> preds = new ArrayList<Predicate>();
+        OpIterator base = node;
+        while (base instanceof Filter) {
+            preds.add(((Filter) base).getPredicate());
+            base = ((Filter) base).getChildren()[0];
+        }
+        OpIterator[] parts;
+        if (ParallelAggregate.canPartition(base)) {
+            SeqScan ss = (SeqScan) base;
+            if (preds.isEmpty())
+                return new ParallelSeqScan(ss, parallelism, false);
+            parts = ParallelSeqScan.partitions(ss, parallelism);
+        } else if (!preds.isEmpty()) {
+            parts = Repartition.split(base, parallelism, Repartition.ROUND_ROBIN);
+        } else {
+            return node;
+        }
+        for (int i = 0; i < parts.length; i++) {
+            for (int k = preds.size() - 1; k >= 0; k--)
+                parts[i] = new Filter(preds.get(k), parts[i]);
+        }
+        return new Gather(parts);
+    }
+
+    /** Build a partitioned equality join: both inputs are split on the hash
+     *  of their join field, so that matching tuples meet in the same
+     *  partition, and each pair of partitions is hash joined on a worker
+     *  thread.  Every join reads all of its left partition before its right
+     *  one, so the bounded queues between the threads cannot deadlock.
+     *  @throws ParsingException if a join field is unknown
+     */
+    private OpIterator parallelJoin(LogicalJoinNode lj, OpIterator plan1, OpIterator plan2) throws ParsingException {
+        int f1, f2;
+        try {
+            f1 = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field " + lj.f1QuantifiedName);
+        }
+        try {
+            f2 = plan2.getTupleDesc().fieldNameToIndex(lj.f2QuantifiedName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field " + lj.f2QuantifiedName);
+        }
+        JoinPredicate p = new JoinPredicate(f1, lj.p, f2);
+        OpIterator[] left = Repartition.split(plan1, parallelism, f1);
+        OpIterator[] right = Repartition.split(plan2, parallelism, f2);
+        OpIterator[] joins = new OpIterator[parallelism];
+        for (int i = 0; i < parallelism; i++)
+            joins[i] = new HashEquiJoin(p, left[i], right[i], Integer.MAX_VALUE);
+        return new Gather(joins);
+    }
+
+    /** Build a partitioned aggregate: the input is split on the hash of its
+     *  first group-by field, so that every group falls into a single
+     *  partition, and the partitions are aggregated on worker threads.
+     */
+    private OpIterator parallelAggregate(OpIterator node, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        OpIterator[] parts = Repartition.split(node, parallelism, gfields[0]);
+        for (int i = 0; i < parts.length; i++)
+            parts[i] = new Aggregate(parts[i], afields, gfields, aops);
+        return new Gather(parts);
+    }
+
+    /** Determine whether the tuples produced by a plan are known to be
+     *  ordered on the specified field.  This is the case for scans of a B+
+     *  tree whose key is that field; filters preserve the order of their
+     *  child.
+     *  @param node the plan to inspect
+     *  @param field the fully qualified name of the field
+     *  @return true if node returns its tuples ordered on field
+     */
+    static boolean isOrderedOn(OpIterator node, String field) {
+        if (node instanceof Filter) {
+            return isOrderedOn(((Filter) node).getChildren()[0], field);
+        }
+        String tableName;
+        TupleDesc td = node.getTupleDesc();
+        if (node instanceof SeqScan) {
+            tableName = ((SeqScan) node).getTableName();
+            // the key field is an index into the table, not the projection
+            td = ((SeqScan) node).fullTupleDesc();
+        } else if (node instanceof BTreeScan) {
+            tableName = ((BTreeScan) node).getTableName();
+        } else {
+            return false;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(tableName));
+        if (!(f instanceof BTreeFile)) return false;
+        return field.equals(td.getFieldName(((BTreeFile) f).keyField()));
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
@@ -0,0 +1,167 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Knows how to compute several aggregates at once over groups identified by
+ * any number of group-by fields, so that a single pass over the input is
+ * enough for queries such as
+ * <code>SELECT a, b, COUNT(c), SUM(d), AVG(d) ... GROUP BY a, b</code>.
+ * <p>
+ * Integer fields support every aggregate; string fields only support COUNT.
+ */
+public class MultiAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+    private int[] gbfields, afields;
+    private Op[] whats;
+    private TupleDesc td;
+    private LinkedHashMap<List<Field>, int[]> groups;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple;
+     *            empty if there is no grouping
+     * @param gbfieldtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the 0-based indexes of the aggregate fields in the tuple
+     * @param afieldtypes
+     *            the types of the aggregate fields
+     * @param whats
+     *            the aggregation operator for each aggregate field
+     * @throws IllegalArgumentException if an operator is not supported for
+     *            its field type
+     */
+    public MultiAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields,
+            Type[] afieldtypes, Op[] whats) {
+        if (afields.length != whats.length || afields.length != afieldtypes.length)
+            throw new IllegalArgumentException("one operator required per aggregate field");
+        for (int i = 0; i < whats.length; i++) {
+            if (whats[i] != Op.MIN && whats[i] != Op.MAX && whats[i] != Op.SUM
+                    && whats[i] != Op.AVG && whats[i] != Op.COUNT)
+                throw new IllegalArgumentException("unsupported aggregate " + whats[i]);
+            if (afieldtypes[i] != Type.INT_TYPE && whats[i] != Op.COUNT)
+                throw new IllegalArgumentException("only COUNT is supported over strings");
+        }
+        this.gbfields = gbfields;
+        this.afields = afields;
+        this.whats = whats;
+        Type[] types = new Type[gbfields.length + afields.length];
+        for (int i = 0; i < gbfields.length; i++)
+            types[i] = gbfieldtypes[i];
+        for (int i = 0; i < afields.length; i++)
+            types[gbfields.length + i] = Type.INT_TYPE;
+        td = new TupleDesc(types);
+        groups = new LinkedHashMap<>();
+    }
+
+    /**
+     * Merge a new tuple into the aggregates of its group. The state of each
+     * group holds a running value and a count for every aggregate field.
+     *
+     * @param tup
+     *            the Tuple containing the aggregate and group-by fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        List<Field> key = new ArrayList<>(gbfields.length);
+        for (int g : gbfields)
+            key.add(tup.getField(g));
+        int[] state = groups.get(key);
+        if (state == null) {
+            state = new int[afields.length * 2];
+            groups.put(key, state);
+        }
+        for (int i = 0; i < afields.length; i++) {
+            int cnt = state[2 * i + 1]++;
+            if (whats[i] == Op.COUNT) continue;
+            int val = ((IntField) tup.getField(afields[i])).getValue();
+            if (cnt == 0) state[2 * i] = val;
+            else if (whats[i] == Op.MIN) state[2 * i] = Math.min(state[2 * i], val);
+            else if (whats[i] == Op.MAX) state[2 * i] = Math.max(state[2 * i], val);
+            else state[2 * i] += val;
+        }
+    }
+
+    /**
+     * Fold the groups of another aggregator, computing the same aggregates
+     * over a disjoint part of the input, into this one. This is the merge
+     * step of a partitioned aggregation: counts and sums are added, minima
+     * and maxima combined, and averages, which are kept as sum and count,
+     * stay exact.
+     *
+     * @param other the partial aggregates to merge; it is not modified
+     */
+    public void merge(MultiAggregator other) {
+        for (Map.Entry<List<Field>, int[]> e : other.groups.entrySet()) {
+            int[] theirs = e.getValue();
+            int[] state = groups.get(e.getKey());
+            if (state == null) {
+                groups.put(e.getKey(), theirs.clone());
+                continue;
+            }
+            for (int i = 0; i < afields.length; i++) {
+                int cnt = state[2 * i + 1];
+                state[2 * i + 1] += theirs[2 * i + 1];
+                if (whats[i] == Op.COUNT || theirs[2 * i + 1] == 0) continue;
+                if (cnt == 0) state[2 * i] = theirs[2 * i];
+                else if (whats[i] == Op.MIN) state[2 * i] = Math.min(state[2 * i], theirs[2 * i]);
+                else if (whats[i] == Op.MAX) state[2 * i] = Math.max(state[2 * i], theirs[2 * i]);
+                else state[2 * i] += theirs[2 * i];
+            }
+        }
+    }
+
+    /** Discard all groups merged so far */
+    public void clear() {
+        groups.clear();
+    }
+
+    /**
+     * @return the number of groups merged so far
+     */
+    public int numGroups() {
+        return groups.size();
+    }
+
+    /**
+     * @return the TupleDesc of the result tuples: the group-by fields followed
+     *         by one INT_TYPE field per aggregate
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    private Tuple resultTuple(List<Field> key, int[] state) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < key.size(); i++)
+            t.setField(i, key.get(i));
+        for (int i = 0; i < afields.length; i++) {
+            int agg = state[2 * i], cnt = state[2 * i + 1];
+            int val;
+            if (whats[i] == Op.COUNT) val = cnt;
+            else if (whats[i] == Op.AVG) val = cnt == 0 ? 0 : agg / cnt;
+            else val = agg;
+            t.setField(key.size() + i, new IntField(val));
+        }
+        return t;
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results.
+     *
+     * @return a OpIterator whose tuples are the group-by values followed by
+     *         the aggregate values, in the order the groups were first seen.
+     *         Without grouping there is always exactly one result tuple.
+     */
+    public OpIterator iterator() {
+        List<Tuple> results = new ArrayList<>(groups.size());
+        for (Map.Entry<List<Field>, int[]> e : groups.entrySet())
+            results.add(resultTuple(e.getKey(), e.getValue()));
+        if (gbfields.length == 0 && results.isEmpty())
+            results.add(resultTuple(Collections.<Field>emptyList(), new int[afields.length * 2]));
+        return new TupleIterator(td, results);
+    }
+}
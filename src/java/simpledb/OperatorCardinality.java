@@ -42,9 +42,8 @@ public class OperatorCardinality {
                             (Operator) children[0], tableAliasToId, tableStats);
                     childC = ((Operator) children[0]).getEstimatedCardinality();
                 } else if (children[0] instanceof SeqScan) {
-                    childC = tableStats.get(
-                            ((SeqScan) children[0]).getTableName())
-                            .estimateTableCardinality(1.0);
+                    childC = scanCardinality((SeqScan) children[0],
+                            tableStats);
                 }
             }
             o.setEstimatedCardinality(childC);
@@ -52,6 +51,21 @@ public class OperatorCardinality {
         }
     }
 
+    /**
+     * @return the estimated number of tuples returned by a scan, taking the
+     *         predicates pushed into it into account
+     */
+    private static int scanCardinality(SeqScan s,
+            Map<String, TableStats> tableStats) {
+        TableStats stats = tableStats.get(s.getTableName());
+        double selectivity = 1.0;
+        for (Predicate p : s.getPredicates()) {
+            selectivity *= stats.estimateSelectivity(p.getField(), p.getOp(),
+                    p.getOperand());
+        }
+        return stats.estimateTableCardinality(selectivity);
+    }
+
     private static boolean updateFilterCardinality(Filter f,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
@@ -78,9 +92,8 @@ public class OperatorCardinality {
                         .getEstimatedCardinality() * selectivity) + 1);
                 return hasJoinPK;
             } else if (child instanceof SeqScan) {
-                f.setEstimatedCardinality((int) (tableStats.get(
-                        ((SeqScan) child).getTableName())
-                        .estimateTableCardinality(1.0) * selectivity) + 1);
+                f.setEstimatedCardinality((int) (scanCardinality(
+                        (SeqScan) child, tableStats) * selectivity) + 1);
                 return false;
             }
         }
@@ -121,8 +134,7 @@ public class OperatorCardinality {
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
         } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+            child1Card = scanCardinality((SeqScan) child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -133,8 +145,7 @@ public class OperatorCardinality {
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
         } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+            child2Card = scanCardinality((SeqScan) child2, tableStats);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -178,8 +189,7 @@ public class OperatorCardinality {
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
         } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+            child1Card = scanCardinality((SeqScan) child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -190,8 +200,7 @@ public class OperatorCardinality {
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
         } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+            child2Card = scanCardinality((SeqScan) child2, tableStats);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -220,8 +229,7 @@ public class OperatorCardinality {
         }
 
         if (child instanceof SeqScan) {
-            childCard = (int) (tableStats.get(((SeqScan) child).getTableName())
-                    .estimateTableCardinality(1.0));
+            childCard = scanCardinality((SeqScan) child, tableStats);
         }
 
         String[] tmp = a.groupFieldName().split("[.]");
@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.util.List;
+
 /**
  * Page is the interface used to represent pages that are resident in the
  * BufferPool.  Typically, DbFiles will read and write pages from disk.
@@ -7,8 +9,9 @@ package simpledb;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
- *     Page(PageId id, byte[] data)
+ * For recovery purposes, every type of page MUST be registered with
+ * LogFile.registerPageType, so that pages can be created from their logged
+ * id and data.
  */
 public interface Page {
 
@@ -56,4 +59,36 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Use data as the before image of this page, because the committed
+     * content of the page changed while it has changes that are not
+     * committed yet.
+     */
+    public void setBeforeImage(byte[] data);
+
+    /**
+     * @return the LSN of the last log record whose change this page holds,
+     *         or 0 if it is not known.  It is kept by the DbFile next to the
+     *         data of the page, see PageLSNs; recovery does not redo older
+     *         records on the page.
+     */
+    public long getLSN();
+
+    /**
+     * Set the LSN of this page, before it is written to disk.
+     */
+    public void setLSN(long lsn);
+
+    /**
+     * Compute the changes that turn an earlier content of this page into
+     * its current content, to be logged when the page is written.  By
+     * default, these are the ranges of bytes that changed.
+     *
+     * @param before the data of this page as it was, see getPageData
+     * @param after the data of this page now
+     */
+    public default List<PageDelta> diff(byte[] before, byte[] after) {
+        return PageDelta.diffBytes(before, after, 0, after.length);
+    }
 }
@@ -0,0 +1,247 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PageDelta is a change to the data of a page, as it is logged in an
+ * UPDATE record in place of the whole before and after images of the page.
+ * <p>
+ * Pages of tuples log each tuple they gain or lose on its own: an
+ * INSERT_TUPLE or DELETE_TUPLE delta sets or clears the header bit of the
+ * slot, and writes the tuple or clears its bytes. Since it touches nothing
+ * else, it can be undone while other transactions have changed other slots
+ * of the page under record locks. Any other change, e.g. to the pointers of
+ * a B+ tree page, is logged as a BYTES delta holding the bytes it changed,
+ * before and after. A delta may be redone or undone more than once with the
+ * same result.
+ * <p>
+ * A tuple delta is only undone if its slot still holds what it left there:
+ * the tuple may have moved on since, e.g. by a split of its B+ tree page,
+ * which is not logged as a change of the tuple.
+ *
+ * @see Page#diff
+ */
+public class PageDelta {
+
+    public enum Kind {
+        INSERT_TUPLE, DELETE_TUPLE, BYTES
+    }
+
+    /** changed ranges of bytes this close together are logged as one */
+    private static final int MERGE_GAP = 8;
+
+    private final Kind kind;
+    /** the offset of the header byte of the slot, for tuple deltas */
+    private final int flagOffset;
+    /** the header bit of the slot, for tuple deltas */
+    private final byte flagMask;
+    /** the offset of the bytes changed */
+    private final int offset;
+    /** the bytes before the change, or null if the slot was empty */
+    private final byte[] before;
+    /** the bytes after the change, or null if the slot is empty */
+    private final byte[] after;
+
+    private PageDelta(Kind kind, int flagOffset, byte flagMask, int offset, byte[] before, byte[] after) {
+        this.kind = kind;
+        this.flagOffset = flagOffset;
+        this.flagMask = flagMask;
+        this.offset = offset;
+        this.before = before;
+        this.after = after;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /** Apply this change to the data of a page */
+    public void redo(byte[] page) {
+        apply(page, after);
+    }
+
+    /**
+     * Revert this change in the data of a page, unless the slot of a tuple
+     * change no longer holds what the change left there.
+     *
+     * @return whether the page changed
+     */
+    public boolean undo(byte[] page) {
+        if (kind != Kind.BYTES && !holds(page, after))
+            return false;
+        apply(page, before);
+        return true;
+    }
+
+    /**
+     * @return the change that reverts this one, which a compensation log
+     *         record holds for the undo of this one
+     */
+    public PageDelta inverse() {
+        Kind k = kind == Kind.INSERT_TUPLE ? Kind.DELETE_TUPLE
+            : kind == Kind.DELETE_TUPLE ? Kind.INSERT_TUPLE : Kind.BYTES;
+        return new PageDelta(k, flagOffset, flagMask, offset, after, before);
+    }
+
+    /** @return whether the slot holds the tuple, or is empty if it is null */
+    private boolean holds(byte[] page, byte[] tuple) {
+        boolean used = (page[flagOffset] & flagMask) != 0;
+        if (tuple == null)
+            return !used;
+        for (int i = 0; i < tuple.length; i++) {
+            if (page[offset + i] != tuple[i])
+                return false;
+        }
+        return used;
+    }
+
+    private void apply(byte[] page, byte[] bytes) {
+        if (kind != Kind.BYTES) {
+            if (bytes != null)
+                page[flagOffset] |= flagMask;
+            else
+                page[flagOffset] &= ~flagMask;
+        }
+        if (bytes != null)
+            System.arraycopy(bytes, 0, page, offset, bytes.length);
+        else
+            Arrays.fill(page, offset, offset + tupleSize(), (byte) 0);
+    }
+
+    private int tupleSize() {
+        return before != null ? before.length : after.length;
+    }
+
+    /** @return the number of bytes write puts */
+    public int size() {
+        if (kind == Kind.BYTES)
+            return 1 + 3 * 4 + before.length + after.length;
+        return 1 + 4 + 1 + 4 + 4 + tupleSize();
+    }
+
+    /** Serialize this delta */
+    public void write(ByteBuffer out) {
+        out.put((byte) kind.ordinal());
+        if (kind == Kind.BYTES) {
+            out.putInt(offset);
+            out.putInt(before.length);
+            out.putInt(after.length);
+            out.put(before);
+            out.put(after);
+            return;
+        }
+        out.putInt(flagOffset);
+        out.put(flagMask);
+        out.putInt(offset);
+        out.putInt(tupleSize());
+        out.put(kind == Kind.INSERT_TUPLE ? after : before);
+    }
+
+    /** Read a delta serialized by write */
+    public static PageDelta read(DataInput in) throws IOException {
+        int k = in.readByte();
+        if (k < 0 || k >= Kind.values().length)
+            throw new IOException("unknown page delta kind " + k);
+        Kind kind = Kind.values()[k];
+        if (kind == Kind.BYTES) {
+            int offset = in.readInt();
+            byte[] before = new byte[in.readInt()];
+            byte[] after = new byte[in.readInt()];
+            in.readFully(before);
+            in.readFully(after);
+            return new PageDelta(kind, 0, (byte) 0, offset, before, after);
+        }
+        int flagOffset = in.readInt();
+        byte flagMask = in.readByte();
+        int offset = in.readInt();
+        byte[] tuple = new byte[in.readInt()];
+        in.readFully(tuple);
+        return kind == Kind.INSERT_TUPLE
+            ? new PageDelta(kind, flagOffset, flagMask, offset, null, tuple)
+            : new PageDelta(kind, flagOffset, flagMask, offset, tuple, null);
+    }
+
+    /**
+     * @return a BYTES delta that replaces every byte of a page, for a page
+     *         whose bytes on disk are not known when it is redone
+     */
+    public static PageDelta wholePage(byte[] before, byte[] after) {
+        return new PageDelta(Kind.BYTES, 0, (byte) 0, 0, before.clone(), after.clone());
+    }
+
+    /**
+     * Compute the ranges of bytes in [from, to) that differ between two
+     * images of a page, as BYTES deltas.
+     */
+    public static List<PageDelta> diffBytes(byte[] before, byte[] after, int from, int to) {
+        List<PageDelta> res = new ArrayList<>();
+        int i = from;
+        while (i < to) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // extend the range over the following changes that are close by
+            for (int j = end; j < to && j < end + MERGE_GAP; j++) {
+                if (before[j] != after[j])
+                    end = j + 1;
+            }
+            res.add(new PageDelta(Kind.BYTES, 0, (byte) 0, start,
+                                  Arrays.copyOfRange(before, start, end), Arrays.copyOfRange(after, start, end)));
+            i = end;
+        }
+        return res;
+    }
+
+    /**
+     * Compute the changes between two images of a page of tuples. The
+     * header of the page has a bit for each slot, lowest bit first, and is
+     * followed by the slots.
+     *
+     * @param headerOffset the offset of the header
+     * @param headerSize the number of bytes of the header
+     * @param numSlots the number of slots
+     * @param slotSize the number of bytes of a slot
+     * @return a tuple delta for each tuple inserted or deleted, a delete
+     *         followed by an insert for each tuple replaced, and BYTES
+     *         deltas for the changes before the header and after the slots
+     */
+    public static List<PageDelta> diffSlots(byte[] before, byte[] after, int headerOffset, int headerSize,
+                                            int numSlots, int slotSize) {
+        List<PageDelta> res = diffBytes(before, after, 0, headerOffset);
+        int slotsOffset = headerOffset + headerSize;
+        for (int i = 0; i < numSlots; i++) {
+            int flagOffset = headerOffset + i / 8;
+            byte flagMask = (byte) (1 << (i % 8));
+            boolean wasUsed = (before[flagOffset] & flagMask) != 0;
+            boolean isUsed = (after[flagOffset] & flagMask) != 0;
+            if (!wasUsed && !isUsed)
+                continue;
+            int offset = slotsOffset + i * slotSize;
+            boolean replaced = wasUsed && isUsed && !sameBytes(before, after, offset, slotSize);
+            if (wasUsed && (!isUsed || replaced))
+                res.add(new PageDelta(Kind.DELETE_TUPLE, flagOffset, flagMask, offset,
+                                      Arrays.copyOfRange(before, offset, offset + slotSize), null));
+            if (isUsed && (!wasUsed || replaced))
+                res.add(new PageDelta(Kind.INSERT_TUPLE, flagOffset, flagMask, offset,
+                                      null, Arrays.copyOfRange(after, offset, offset + slotSize)));
+        }
+        res.addAll(diffBytes(before, after, slotsOffset + numSlots * slotSize, after.length));
+        return res;
+    }
+
+    private static boolean sameBytes(byte[] a, byte[] b, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (a[i] != b[i])
+                return false;
+        }
+        return true;
+    }
+}
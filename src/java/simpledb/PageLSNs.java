@@ -0,0 +1,95 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * PageLSNs keeps the LSN of every page of a table file, see
+ * {@link Page#getLSN}. The page formats have no room for it, so it is stored
+ * in a sidecar file next to the table file, with the extension
+ * <code>.lsn</code>: a long integer per page number, 0 if the page was never
+ * written with an LSN. The sidecar is only created once one is.
+ * <p>
+ * A page is written before its LSN. After a crash in between, the LSN on
+ * disk is older than the page rather than newer, and recovery redoes changes
+ * the page already holds, which does no harm. The sidecar is synced with
+ * its table file at checkpoints, see {@link LogFile#logCheckpoint}.
+ */
+public class PageLSNs {
+
+    private static final int ENTRY_SIZE = 8;
+
+    private final File file;
+    /** the LSNs, loaded from the sidecar on first use */
+    private long[] lsns;
+    private RandomAccessFile raf;
+
+    /**
+     * @param tableFile the file the table stores its pages in
+     */
+    public PageLSNs(File tableFile) {
+        this.file = sidecarFile(tableFile);
+    }
+
+    /** @return the sidecar file that keeps the LSNs of the pages of a table file */
+    public static File sidecarFile(File tableFile) {
+        return new File(tableFile.getPath() + ".lsn");
+    }
+
+    /** @return the LSN of page pgno, or 0 if it is not known */
+    public synchronized long get(int pgno) throws IOException {
+        load();
+        return pgno < lsns.length ? lsns[pgno] : 0;
+    }
+
+    /** Record the LSN of page pgno, which was just written */
+    public synchronized void set(int pgno, long lsn) throws IOException {
+        load();
+        if (pgno >= lsns.length) {
+            if (lsn == 0) return;
+            lsns = Arrays.copyOf(lsns, Math.max(pgno + 1, 2 * lsns.length));
+        }
+        if (lsns[pgno] == lsn) return;
+        lsns[pgno] = lsn;
+        if (raf == null)
+            raf = new RandomAccessFile(file, "rw");
+        raf.seek((long) pgno * ENTRY_SIZE);
+        raf.writeLong(lsn);
+    }
+
+    /** Force the LSNs recorded so far to disk */
+    public synchronized void sync() throws IOException {
+        if (raf != null)
+            raf.getChannel().force(true);
+    }
+
+    /** Close the sidecar file, which is opened again if an LSN is recorded */
+    public synchronized void close() throws IOException {
+        if (raf == null) return;
+        raf.close();
+        raf = null;
+    }
+
+    /** @return the highest LSN of a page, or 0 if none is known */
+    public synchronized long max() throws IOException {
+        load();
+        long max = 0;
+        for (long lsn : lsns)
+            max = Math.max(max, lsn);
+        return max;
+    }
+
+    private void load() throws IOException {
+        if (lsns != null) return;
+        if (!file.exists()) {
+            lsns = new long[0];
+            return;
+        }
+        raf = new RandomAccessFile(file, "rw");
+        byte[] data = new byte[(int) (raf.length() / ENTRY_SIZE) * ENTRY_SIZE];
+        raf.readFully(data);
+        lsns = new long[data.length / ENTRY_SIZE];
+        ByteBuffer.wrap(data).asLongBuffer().get(lsns);
+    }
+}
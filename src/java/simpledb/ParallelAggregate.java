@@ -0,0 +1,157 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * ParallelAggregate computes the same result as {@link Aggregate} over a
+ * sequential scan of a {@link HeapFile}, optionally beneath a chain of
+ * {@link Filter}s. The pages of the file are split into ranges that are
+ * aggregated concurrently on a {@link ForkJoinPool}; every task builds its
+ * own partial {@link MultiAggregator}, and the partial results are merged
+ * as the tasks join. AVG is carried as sum and count through the merge, so
+ * it is exact.
+ */
+public class ParallelAggregate extends Aggregate {
+
+    private static final long serialVersionUID = 1L;
+    private final int parallelism;
+
+    /**
+     * Constructor.
+     *
+     * @param tid         The transaction the scan is running as a part of
+     * @param child       A SeqScan over a HeapFile, possibly beneath Filters
+     * @param afields     The columns over which we are computing aggregates.
+     * @param gfields     The columns over which we are grouping the result;
+     *                    empty if there is no grouping
+     * @param aops        The aggregation operator to use for each of afields
+     * @param parallelism The number of worker threads to aggregate with
+     * @throws IllegalArgumentException if child cannot be split into page
+     *                    ranges, or an operator is not supported
+     */
+    public ParallelAggregate(TransactionId tid, OpIterator child, int[] afields, int[] gfields,
+                             Aggregator.Op[] aops, int parallelism) {
+        super(child, afields, gfields, aops);
+        if (!canPartition(child))
+            throw new IllegalArgumentException("child is not a scan of a HeapFile");
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.parallelism = parallelism;
+        newMultiAggregator();
+    }
+
+    /**
+     * @return true if the tuples of plan can be aggregated page range by page
+     * range, i.e. plan is a SeqScan over a whole HeapFile beneath zero or
+     * more Filters
+     */
+    public static boolean canPartition(OpIterator plan) {
+        while (plan instanceof Filter)
+            plan = ((Filter) plan).getChildren()[0];
+        if (!(plan instanceof SeqScan) || !((SeqScan) plan).isFullScan()) return false;
+        int tableid = Database.getCatalog().getTableId(((SeqScan) plan).getTableName());
+        return Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile;
+    }
+
+    /**
+     * @return the number of worker threads used to aggregate
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    @Override
+    protected OpIterator groupIterator() throws DbException, TransactionAbortedException {
+        List<Predicate> preds = new ArrayList<>();
+        OpIterator plan = getChildren()[0];
+        while (plan instanceof Filter) {
+            preds.add(((Filter) plan).getPredicate());
+            plan = ((Filter) plan).getChildren()[0];
+        }
+        SeqScan scan = (SeqScan) plan;
+        int tableid = Database.getCatalog().getTableId(scan.getTableName());
+        int numPages = ((HeapFile) Database.getCatalog().getDatabaseFile(tableid)).numPages();
+
+        int grain = Math.max(1, numPages / (parallelism * 4));
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.invoke(new PartialAggregate(scan, preds, 0, numPages, grain)).iterator();
+        } catch (PartialAggregateException e) {
+            // the pool may rethrow a copy of the worker's exception, so look
+            // for the checked exception anywhere in the cause chain
+            Throwable cause = e;
+            while (cause instanceof PartialAggregateException)
+                cause = cause.getCause();
+            if (cause instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) cause;
+            throw (DbException) cause;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Carries a checked exception out of a fork/join task */
+    private static class PartialAggregateException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        PartialAggregateException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Aggregates the pages [start, end) of a table, splitting the range in
+     * half until it is at most grain pages long. Predicates pushed into the
+     * scan are evaluated by the page iterators, those of the Filters above
+     * it here.
+     */
+    private class PartialAggregate extends RecursiveTask<MultiAggregator> {
+        private static final long serialVersionUID = 1L;
+        private final SeqScan scan;
+        private final int start, end, grain;
+        private final List<Predicate> preds;
+
+        PartialAggregate(SeqScan scan, List<Predicate> preds, int start, int end, int grain) {
+            this.scan = scan;
+            this.preds = preds;
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+        }
+
+        @Override
+        protected MultiAggregator compute() {
+            if (end - start > grain) {
+                int mid = (start + end) >>> 1;
+                PartialAggregate left = new PartialAggregate(scan, preds, start, mid, grain);
+                PartialAggregate right = new PartialAggregate(scan, preds, mid, end, grain);
+                left.fork();
+                MultiAggregator result = right.compute();
+                result.merge(left.join());
+                return result;
+            }
+            MultiAggregator partial = newMultiAggregator();
+            SeqScan it = scan.range(start, end);
+            try {
+                it.open();
+                tuples:
+                while (it.hasNext()) {
+                    Tuple t = it.next();
+                    for (Predicate pred : preds) {
+                        if (!pred.filter(t)) continue tuples;
+                    }
+                    partial.mergeTupleIntoGroup(t);
+                }
+            } catch (DbException e) {
+                throw new PartialAggregateException(e);
+            } catch (TransactionAbortedException e) {
+                throw new PartialAggregateException(e);
+            } finally {
+                it.close();
+            }
+            return partial;
+        }
+    }
+}
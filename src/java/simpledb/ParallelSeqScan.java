@@ -0,0 +1,112 @@
+package simpledb;
+
+/**
+ * ParallelSeqScan reads a table stored in a {@link HeapFile} the way a
+ * {@link SeqScan} does, but splits its pages into contiguous ranges that are
+ * scanned concurrently, one per worker thread, and gathers the results. The
+ * scan can either preserve the order of the tuples in the file, or return
+ * them in whatever order the workers read them.
+ */
+public class ParallelSeqScan extends Gather {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int tableid;
+    private final String tableAlias;
+
+    /**
+     * Creates a parallel sequential scan over the specified table.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; it must be stored in a HeapFile
+     * @param tableAlias
+     *            the alias of this table
+     * @param dop
+     *            the number of page ranges to scan concurrently
+     * @param ordered
+     *            whether to return the tuples in the order they are stored
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias, int dop, boolean ordered) {
+        this(new SeqScan(tid, tableid, tableAlias), dop, ordered);
+    }
+
+    /**
+     * Creates a parallel version of a sequential scan, which returns the same
+     * tuples, with the same pushed down predicates and projection.
+     *
+     * @param scan
+     *            a scan over a whole HeapFile
+     * @param dop
+     *            the number of page ranges to scan concurrently
+     * @param ordered
+     *            whether to return the tuples in the order they are stored
+     */
+    public ParallelSeqScan(SeqScan scan, int dop, boolean ordered) {
+        super(partitions(scan, dop), ordered);
+        this.tableid = Database.getCatalog().getTableId(scan.getTableName());
+        this.tableAlias = scan.getAlias();
+    }
+
+    /**
+     * Split a table into page ranges of (almost) equal size.
+     *
+     * @param tid
+     *            The transaction the scans are running as a part of.
+     * @param tableid
+     *            the table to scan; it must be stored in a HeapFile
+     * @param tableAlias
+     *            the alias of this table
+     * @param n
+     *            the number of ranges
+     * @return n scans that together return every tuple of the table once, in
+     *         the order of their page ranges
+     */
+    public static OpIterator[] partitions(TransactionId tid, int tableid, String tableAlias, int n) {
+        return partitions(new SeqScan(tid, tableid, tableAlias), n);
+    }
+
+    /**
+     * Split a sequential scan into scans of page ranges of (almost) equal
+     * size, with the same pushed down predicates and projection.
+     *
+     * @param scan
+     *            a scan over a whole HeapFile
+     * @param n
+     *            the number of ranges
+     * @return n scans that together return every tuple of scan once, in
+     *         the order of their page ranges
+     * @see SeqScan#range
+     */
+    public static OpIterator[] partitions(SeqScan scan, int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("at least one partition is required");
+        DbFile f = Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId(scan.getTableName()));
+        if (!(f instanceof HeapFile))
+            throw new IllegalArgumentException("only heap files can be scanned in parallel");
+        int numPages = ((HeapFile) f).numPages();
+        OpIterator[] parts = new OpIterator[n];
+        for (int i = 0; i < n; i++) {
+            int start = (int) ((long) numPages * i / n);
+            int end = (int) ((long) numPages * (i + 1) / n);
+            parts[i] = scan.range(start, end);
+        }
+        return parts;
+    }
+
+    /**
+     * @return the table name of the table the operator scans
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+}
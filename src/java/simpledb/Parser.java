@@ -11,6 +11,7 @@ import jline.SimpleCompletor;
 
 public class Parser {
     static boolean explain = false;
+    static int parallelism = 1;
 
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
@@ -138,6 +139,7 @@ public class Parser {
         Vector<ZFromItem> from = q.getFrom();
         LogicalPlan lp = new LogicalPlan();
         lp.setQuery(q.toString());
+        lp.setParallelism(parallelism);
         // walk through tables in the FROM clause
         for (int i = 0; i < from.size(); i++) {
             ZFromItem fromIt = from.elementAt(i);
@@ -182,23 +184,20 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                lp.addGroupBy(groupByField);
+                groupByFields.addElement(lp.disambiguateName(groupByField));
             }
 
         }
@@ -207,8 +206,7 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        boolean hasAgg = false;
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,21 +216,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                lp.addAggregate(aggFun, aggField, null);
+                hasAgg = true;
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
-                                .getColumn()))) {
+                if (!groupByFields.isEmpty()
+                        && !groupByFields.contains(lp.disambiguateName(si.getTable() + "."
+                                + si.getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
                             + " does not appear in GROUP BY list.");
@@ -241,13 +236,10 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && !hasAgg) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
-        }
         // sort the data
 
         if (q.getOrderBy() != null) {
@@ -585,7 +577,7 @@ public class Parser {
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 6) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -595,7 +587,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-parallel n] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
@@ -616,6 +608,14 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-parallel")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected degree of parallelism after -parallel\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    parallelism = Integer.parseInt(argv[i]);
+                    System.out.println("Running queries with " + parallelism + " partitions.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
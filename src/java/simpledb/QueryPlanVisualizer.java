@@ -74,8 +74,13 @@ public class QueryPlanVisualizer {
                 alias = " " + alias;
             else
                 alias = "";
+            String preds = "";
+            for (Predicate p : s.getPredicates()) {
+                preds += "," + s.fullTupleDesc().getFieldName(p.getField())
+                        + p.getOp() + p.getOperand();
+            }
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
+                    .format("%1$s(%2$s)", SCAN, tableName + alias + preds);
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -261,15 +266,9 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
             }
-            else if (plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
-                String name="Exchange";
-                int card=0;
-                try {
-                    name = (String) plan.getClass().getMethod("getName").invoke(plan);
-                    card = (Integer) plan.getClass().getMethod("getEstimatedCardinality").invoke(plan);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                } 
+            else if (plan instanceof Exchange) {
+                String name = ((Exchange) plan).getName();
+                int card = plan.getEstimatedCardinality();
 
                 thisNode.text = String.format("%1$s,card:%2$d", name,card);
                 int upBarShift = parentUpperBarStartShift;
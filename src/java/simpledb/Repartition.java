@@ -0,0 +1,219 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Repartition is an exchange operator that splits the output of a single
+ * child into a number of partitions, so that the operators above each
+ * partition can run in parallel, typically on the workers of a
+ * {@link Gather}. Tuples are routed either round-robin or by the hash of a
+ * field; in the latter case equal values always end up in the same
+ * partition, which makes it possible to join or group each partition on its
+ * own.
+ * <p>
+ * The partitions of a child are created together by {@link #split}, and a
+ * single producer thread, started when the first of them is opened, reads
+ * the child and feeds every partition through a bounded queue. All
+ * partitions must therefore be consumed concurrently. The child is closed
+ * once every partition has been closed.
+ */
+public class Repartition extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Route tuples to partitions round-robin instead of by a field */
+    public static final int ROUND_ROBIN = -1;
+
+    private final Source source;
+    private final int index;
+    private transient boolean done;
+
+    private Repartition(Source source, int index) {
+        this.source = source;
+        this.index = index;
+    }
+
+    /**
+     * Split the output of a plan into partitions.
+     *
+     * @param child
+     *            the plan to split
+     * @param n
+     *            the number of partitions
+     * @param field
+     *            the index of the field whose hash selects the partition of
+     *            a tuple, or {@link #ROUND_ROBIN}
+     * @return the n partitions; every tuple of child is returned by exactly
+     *         one of them
+     */
+    public static OpIterator[] split(OpIterator child, int n, int field) {
+        if (n < 1)
+            throw new IllegalArgumentException("at least one partition is required");
+        if (field != ROUND_ROBIN && (field < 0 || field >= child.getTupleDesc().numFields()))
+            throw new IllegalArgumentException("no field " + field + " to partition on");
+        Source source = new Source(child, n, field);
+        OpIterator[] parts = new OpIterator[n];
+        for (int i = 0; i < n; i++)
+            parts[i] = new Repartition(source, i);
+        return parts;
+    }
+
+    /**
+     * @return the field tuples are partitioned on, or {@link #ROUND_ROBIN}
+     */
+    public int getPartitionField() {
+        return source.field;
+    }
+
+    public String getName() {
+        return "repartition(" + (index + 1) + "/" + source.queues.size() + ")";
+    }
+
+    public TupleDesc getTupleDesc() {
+        return source.child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        done = false;
+        source.open(index);
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        source.close(index);
+    }
+
+    /**
+     * A partition cannot be rewound on its own, since its tuples are
+     * consumed as they are produced.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        throw new DbException("a repartitioned stream cannot be rewound");
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (done) return null;
+        Object o;
+        try {
+            o = source.queues.get(index).take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while reading partition " + index);
+        }
+        if (o == END) {
+            done = true;
+            return null;
+        }
+        if (o instanceof Tuple)
+            return (Tuple) o;
+        done = true;
+        rethrow((Exception) o);
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { source.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        source.child = children[0];
+    }
+
+    /**
+     * The state shared by the partitions of one child: the queues, and the
+     * producer thread that fills them.
+     */
+    private static class Source {
+        OpIterator child;
+        final int field;
+        final List<BlockingQueue<Object>> queues;
+        /** 1 for each partition that has been closed since the producer started */
+        final AtomicIntegerArray closed;
+        Thread producer;
+
+        Source(OpIterator child, int n, int field) {
+            this.child = child;
+            this.field = field;
+            this.queues = new ArrayList<BlockingQueue<Object>>(n);
+            for (int i = 0; i < n; i++)
+                queues.add(new ArrayBlockingQueue<Object>(QUEUE_SIZE));
+            this.closed = new AtomicIntegerArray(n);
+        }
+
+        synchronized void open(int index) {
+            if (producer != null) return;
+            for (int i = 0; i < queues.size(); i++) {
+                queues.get(i).clear();
+                closed.set(i, 0);
+            }
+            producer = new Thread("repartition") {
+                public void run() {
+                    produce();
+                }
+            };
+            producer.setDaemon(true);
+            producer.start();
+        }
+
+        synchronized void close(int index) {
+            if (producer == null) return;
+            // nobody reads this partition any more, so make sure the
+            // producer does not block on it
+            closed.set(index, 1);
+            queues.get(index).clear();
+            for (int i = 0; i < queues.size(); i++) {
+                if (closed.get(i) == 0) return;
+            }
+            producer.interrupt();
+            try {
+                producer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            producer = null;
+        }
+
+        private void send(int i, Object o) throws InterruptedException {
+            if (closed.get(i) == 0)
+                queues.get(i).put(o);
+        }
+
+        private void produce() {
+            try {
+                try {
+                    child.open();
+                    int next = 0, n = queues.size();
+                    while (child.hasNext()) {
+                        Tuple t = child.next();
+                        int i;
+                        if (field == ROUND_ROBIN) {
+                            i = next;
+                            next = (next + 1) % n;
+                        } else {
+                            i = Math.floorMod(t.getField(field).hashCode(), n);
+                        }
+                        send(i, t);
+                    }
+                    for (int i = 0; i < n; i++)
+                        send(i, END);
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    for (int i = 0; i < queues.size(); i++)
+                        send(i, e);
+                } finally {
+                    child.close();
+                }
+            } catch (InterruptedException e) {
+                // every partition has been closed
+            }
+        }
+    }
+}
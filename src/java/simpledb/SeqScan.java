@@ -19,6 +19,14 @@ public class SeqScan implements OpIterator {
 
     private DbFileIterator heapFileIterator;
 
+    private int startPage = 0, endPage = -1;
+
+    private Predicate[] predicates = new Predicate[0];
+
+    private int[] projection;
+
+    private TupleDesc projectedTd;
+
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -43,6 +51,119 @@ public class SeqScan implements OpIterator {
         this.heapFileIterator = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
     }
 
+    /**
+     * Creates a sequential scan over a range of the pages of a heap file, so
+     * that a table can be scanned in partitions.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; it must be stored in a HeapFile
+     * @param tableAlias
+     *            the alias of this table
+     * @param startPage
+     *            the number of the first page to scan
+     * @param endPage
+     *            the number of the page to stop before
+     * @see HeapFile#iterator(TransactionId, int, int)
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int startPage, int endPage) {
+        this.tid = tid;
+        this.tableid = tableid;
+        this.tableAlias = tableAlias;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof HeapFile))
+            throw new IllegalArgumentException("only heap files can be scanned by page range");
+        this.heapFileIterator = ((HeapFile) f).iterator(tid, startPage, endPage);
+        this.startPage = startPage;
+        this.endPage = endPage;
+    }
+
+    /**
+     * @return true if this operator scans the whole table rather than a
+     *         range of its pages
+     */
+    public boolean isFullScan() {
+        return endPage < 0;
+    }
+
+    /**
+     * Push a predicate down into this scan, so that it only returns the
+     * tuples that satisfy it. Pushed predicates are evaluated inside the page
+     * iterator of the HeapFile, which is cheaper than a {@link Filter} above
+     * the scan. Must be called before the scan is opened.
+     *
+     * @param p
+     *            the predicate to add to the conjunction of pushed
+     *            predicates; its field index refers to the table's fields
+     * @throws IllegalArgumentException if the table is not a HeapFile
+     */
+    public void addPredicate(Predicate p) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof HeapFile))
+            throw new IllegalArgumentException("predicates can only be pushed into heap file scans");
+        HeapFile hf = (HeapFile) f;
+        predicates = Arrays.copyOf(predicates, predicates.length + 1);
+        predicates[predicates.length - 1] = p;
+        heapFileIterator = hf.iterator(tid, startPage,
+                endPage < 0 ? hf.numPages() : endPage, predicates);
+    }
+
+    /**
+     * @return the predicates pushed into this scan
+     */
+    public Predicate[] getPredicates() {
+        return predicates;
+    }
+
+    /**
+     * Push a projection down into this scan, so that it returns tuples with
+     * only the specified fields of the table. Operators above the scan then
+     * carry narrow tuples, and joins merge fewer fields. Pushed predicates
+     * are evaluated before the projection, so they may refer to any field.
+     *
+     * @param fields
+     *            the indexes of the table's fields to return, in order
+     */
+    public void setProjection(int[] fields) {
+        TupleDesc full = fullTupleDesc();
+        Type[] typeAr = new Type[fields.length];
+        String[] fieldAr = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            typeAr[i] = full.getFieldType(fields[i]);
+            fieldAr[i] = full.getFieldName(fields[i]);
+        }
+        projection = fields.clone();
+        projectedTd = new TupleDesc(typeAr, fieldAr);
+    }
+
+    /**
+     * @return the indexes of the table's fields this scan returns, or null if
+     *         it returns all of them
+     */
+    public int[] getProjection() {
+        return projection;
+    }
+
+    /**
+     * Create a scan of a range of the pages of the table this operator scans,
+     * with the same predicates and projection.
+     *
+     * @param startPage
+     *            the number of the first page to scan
+     * @param endPage
+     *            the number of the page to stop before
+     * @return a new scan over pages [startPage, endPage)
+     */
+    public SeqScan range(int startPage, int endPage) {
+        SeqScan s = new SeqScan(tid, tableid, tableAlias, startPage, endPage);
+        for (Predicate p : predicates)
+            s.addPredicate(p);
+        if (projection != null)
+            s.setProjection(projection);
+        return s;
+    }
+
     /**
      * @return
      *       return the table name of the table the operator scans. This should
@@ -90,7 +211,8 @@ public class SeqScan implements OpIterator {
 
     /**
      * Returns the TupleDesc with field names from the underlying HeapFile,
-     * prefixed with the tableAlias string from the constructor. This prefix
+     * prefixed with the tableAlias string from the constructor, restricted to
+     * the projected fields if a projection has been pushed down. This prefix
      * becomes useful when joining tables containing a field(s) with the same
      * name.  The alias and name should be separated with a "." character
      * (e.g., "alias.fieldName").
@@ -99,6 +221,13 @@ public class SeqScan implements OpIterator {
      *         prefixed with the tableAlias string from the constructor.
      */
     public TupleDesc getTupleDesc() {
+        if (projectedTd != null)
+            return projectedTd;
+        return fullTupleDesc();
+    }
+
+    /** @return the TupleDesc of all fields of the table, ignoring any projection */
+    TupleDesc fullTupleDesc() {
         // some code goes here
         TupleDesc desc = Database.getCatalog().getTupleDesc(tableid);
         Iterator<TupleDesc.TDItem> it = desc.iterator();
@@ -122,7 +251,14 @@ public class SeqScan implements OpIterator {
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
-        return heapFileIterator.next();
+        Tuple t = heapFileIterator.next();
+        if (projection == null)
+            return t;
+        Tuple p = new Tuple(projectedTd);
+        for (int i = 0; i < projection.length; i++)
+            p.setField(i, t.getField(projection[i]));
+        p.setRecordId(t.getRecordId());
+        return p;
     }
 
     public void close() {
@@ -0,0 +1,122 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * StreamAggregate computes the same result as {@link Aggregate}, but
+ * requires its child to deliver tuples ordered (or at least clustered) on
+ * the group-by fields. Instead of building a hash table over every group, it
+ * keeps the running aggregate of the current group only and emits it as soon
+ * as the group key changes, so it uses constant memory and can return its
+ * first group before the child is exhausted.
+ */
+public class StreamAggregate extends Aggregate {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     *
+     * @param child  The OpIterator that is feeding us tuples, ordered on
+     *               gfield
+     * @param afield The column over which we are computing an aggregate.
+     * @param gfield The column over which we are grouping the result, or -1 if
+     *               there is no grouping
+     * @param aop    The aggregation operator to use
+     * @throws IllegalArgumentException if aop is not supported for the type
+     *               of afield
+     */
+    public StreamAggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, new int[]{afield},
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[]{gfield},
+                new Aggregator.Op[]{aop});
+    }
+
+    /**
+     * Constructor for computing several aggregates over composite groups.
+     *
+     * @param child   The OpIterator that is feeding us tuples, clustered on
+     *                the combination of gfields
+     * @param afields The columns over which we are computing aggregates.
+     * @param gfields The columns over which we are grouping the result; empty
+     *                if there is no grouping
+     * @param aops    The aggregation operator to use for each of afields
+     * @throws IllegalArgumentException if an operator is not supported for the
+     *                type of its field
+     */
+    public StreamAggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        super(child, afields, gfields, aops);
+        // validates the operators up front
+        newMultiAggregator();
+    }
+
+    @Override
+    protected OpIterator groupIterator() {
+        return new StreamIterator();
+    }
+
+    /**
+     * Pulls tuples from the child one group at a time, merging them into an
+     * aggregator that never holds more than the current group. The first
+     * tuple of the next group is kept as a lookahead between calls.
+     */
+    private class StreamIterator implements OpIterator {
+        private static final long serialVersionUID = 1L;
+        private MultiAggregator group = newMultiAggregator();
+        private Tuple lookahead;
+        private boolean done;
+
+        @Override
+        public void open() throws DbException, TransactionAbortedException {
+            OpIterator child = getChildren()[0];
+            lookahead = child.hasNext() ? child.next() : null;
+            done = false;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (groupFields().length == 0) return !done;
+            return lookahead != null;
+        }
+
+        private boolean sameGroup(Tuple t1, Tuple t2) {
+            for (int g : groupFields()) {
+                if (!t1.getField(g).equals(t2.getField(g))) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (!hasNext()) throw new NoSuchElementException();
+            OpIterator child = getChildren()[0];
+            Tuple first = lookahead;
+            group.clear();
+            while (lookahead != null && sameGroup(first, lookahead)) {
+                group.mergeTupleIntoGroup(lookahead);
+                lookahead = child.hasNext() ? child.next() : null;
+            }
+            done = true;
+            OpIterator result = group.iterator();
+            result.open();
+            return result.next();
+        }
+
+        @Override
+        public void rewind() throws DbException, TransactionAbortedException {
+            getChildren()[0].rewind();
+            open();
+        }
+
+        @Override
+        public TupleDesc getTupleDesc() {
+            return StreamAggregate.this.getTupleDesc();
+        }
+
+        @Override
+        public void close() {
+            lookahead = null;
+            group.clear();
+        }
+    }
+}
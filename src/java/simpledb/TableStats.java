@@ -3,8 +3,13 @@ package simpledb;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
@@ -19,6 +24,7 @@ public class TableStats {
     static final int IOCOSTPERPAGE = 1000;
     private int tableid, ioCostPerPage, ntups;
     private ArrayList<Object> his;
+    private int[] min, max;
     private TupleDesc td;
 
     public static TableStats getTableStats(String tablename) {
@@ -91,65 +97,161 @@ public class TableStats {
         int cnt = td.numFields();
         this.his = new ArrayList<>(cnt);
         Transaction tid = new Transaction();
-        SeqScan seq = new SeqScan(tid.getId(), tableid);
+        // scan heap files in page ranges, one per core, and combine the
+        // partial statistics of the ranges
+        List<DbFileIterator> ranges = new ArrayList<>();
+        if (file instanceof HeapFile) {
+            HeapFile hf = (HeapFile) file;
+            int numPages = hf.numPages();
+            int n = Math.max(1, Math.min(numPages, STATS_PARALLELISM));
+            for (int i = 0; i < n; i++) {
+                ranges.add(hf.iterator(tid.getId(), (int) ((long) numPages * i / n),
+                        (int) ((long) numPages * (i + 1) / n)));
+            }
+        } else {
+            ranges.add(file.iterator(tid.getId()));
+        }
         try {
-            seq.open();
             // init histogram
-            initHistogram(seq);
-            seq.rewind();
+            initHistogram(ranges);
             // build histogram
-            buildHistogram(seq);
+            buildHistogram(ranges);
         } catch (TransactionAbortedException | DbException e) {
             e.printStackTrace();
         }
     }
 
-    private void buildHistogram(SeqScan seq) throws TransactionAbortedException, DbException {
-        int cnt = td.numFields();
-        while (seq.hasNext()) {
-            Tuple t = seq.next();
-            for (int i = 0; i < cnt; i++) {
-                if (td.getFieldType(i) == Type.INT_TYPE) {
-                    int val = ((IntField) t.getField(i)).getValue();
-                    IntHistogram h = (IntHistogram) his.get(i);
-                    h.addValue(val);
-                } else {
-                    String val = ((StringField) t.getField(i)).getValue();
-                    StringHistogram h = (StringHistogram) his.get(i);
-                    h.addValue(val);
+    /** Number of page ranges statistics over a heap file are computed in */
+    static final int STATS_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    /** Computes a partial result over the tuples of a page range */
+    private interface RangeScan<T> {
+        T scan(DbFileIterator it) throws DbException, TransactionAbortedException;
+    }
+
+    /**
+     * Run a scan over every page range concurrently.
+     * @return the partial results, one per range
+     */
+    private static <T> List<T> scanRanges(List<DbFileIterator> ranges, final RangeScan<T> scan)
+            throws DbException, TransactionAbortedException {
+        List<Callable<T>> tasks = new ArrayList<>(ranges.size());
+        for (final DbFileIterator it : ranges) {
+            tasks.add(new Callable<T>() {
+                public T call() throws Exception {
+                    it.open();
+                    try {
+                        return scan.scan(it);
+                    } finally {
+                        it.close();
+                    }
+                }
+            });
+        }
+        List<T> res = new ArrayList<>(ranges.size());
+        try {
+            for (Future<T> f : ForkJoinPool.commonPool().invokeAll(tasks))
+                res.add(f.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while computing table statistics");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            Exchange.rethrow((Exception) e.getCause());
+        }
+        return res;
+    }
+
+    private void buildHistogram(List<DbFileIterator> ranges) throws TransactionAbortedException, DbException {
+        final int cnt = td.numFields();
+        List<ArrayList<Object>> partials = scanRanges(ranges, new RangeScan<ArrayList<Object>>() {
+            public ArrayList<Object> scan(DbFileIterator it) throws DbException, TransactionAbortedException {
+                ArrayList<Object> part = emptyHistograms();
+                while (it.hasNext()) {
+                    Tuple t = it.next();
+                    for (int i = 0; i < cnt; i++) {
+                        if (td.getFieldType(i) == Type.INT_TYPE) {
+                            int val = ((IntField) t.getField(i)).getValue();
+                            IntHistogram h = (IntHistogram) part.get(i);
+                            h.addValue(val);
+                        } else {
+                            String val = ((StringField) t.getField(i)).getValue();
+                            StringHistogram h = (StringHistogram) part.get(i);
+                            h.addValue(val);
+                        }
+                    }
                 }
+                return part;
+            }
+        });
+        for (ArrayList<Object> part : partials) {
+            for (int i = 0; i < cnt; i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE)
+                    ((IntHistogram) his.get(i)).merge((IntHistogram) part.get(i));
+                else
+                    ((StringHistogram) his.get(i)).merge((StringHistogram) part.get(i));
             }
         }
     }
 
-    private void initHistogram(SeqScan seq) throws TransactionAbortedException, DbException {
-        int cnt = td.numFields();
+    private void initHistogram(List<DbFileIterator> ranges) throws TransactionAbortedException, DbException {
+        final int cnt = td.numFields();
         int[] min = new int[cnt];
         int[] max = new int[cnt];
         for (int i = 0; i < cnt; i++) {
             min[i] = Integer.MAX_VALUE;
             max[i] = Integer.MIN_VALUE;
         }
-        while (seq.hasNext()) {
-            ntups++;
-            Tuple t = seq.next();
-            for (int i = 0; i < cnt; i++) {
-                if (t.getField(i).getType() == Type.INT_TYPE) {
-                    int val = ((IntField)(t.getField(i))).getValue();
-                    min[i] = Math.min(min[i], val);
-                    max[i] = Math.max(max[i], val);
+        // each range returns its tuple count followed by the minimum and
+        // maximum of every field
+        List<int[]> partials = scanRanges(ranges, new RangeScan<int[]>() {
+            public int[] scan(DbFileIterator it) throws DbException, TransactionAbortedException {
+                int[] part = new int[1 + 2 * cnt];
+                for (int i = 0; i < cnt; i++) {
+                    part[1 + 2 * i] = Integer.MAX_VALUE;
+                    part[2 + 2 * i] = Integer.MIN_VALUE;
                 }
+                while (it.hasNext()) {
+                    part[0]++;
+                    Tuple t = it.next();
+                    for (int i = 0; i < cnt; i++) {
+                        if (t.getField(i).getType() == Type.INT_TYPE) {
+                            int val = ((IntField)(t.getField(i))).getValue();
+                            part[1 + 2 * i] = Math.min(part[1 + 2 * i], val);
+                            part[2 + 2 * i] = Math.max(part[2 + 2 * i], val);
+                        }
+                    }
+                }
+                return part;
+            }
+        });
+        for (int[] part : partials) {
+            ntups += part[0];
+            for (int i = 0; i < cnt; i++) {
+                min[i] = Math.min(min[i], part[1 + 2 * i]);
+                max[i] = Math.max(max[i], part[2 + 2 * i]);
             }
         }
+        this.min = min;
+        this.max = max;
+        his.addAll(emptyHistograms());
+    }
+
+    /** @return an empty histogram for every field, with the bounds found by initHistogram */
+    private ArrayList<Object> emptyHistograms() {
+        int cnt = td.numFields();
+        ArrayList<Object> hs = new ArrayList<>(cnt);
         for (int i = 0; i < cnt; i++) {
             if (td.getFieldType(i) == Type.INT_TYPE) {
                 IntHistogram h = new IntHistogram(NUM_HIST_BINS, min[i], max[i]);
-                his.add(h);
+                hs.add(h);
             } else {
                 StringHistogram h = new StringHistogram(NUM_HIST_BINS);
-                his.add(h);
+                hs.add(h);
             }
         }
+        return hs;
     }
 
     /**
@@ -9,15 +9,28 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly if true, the transaction reads a snapshot of the
+     *        database taken when it starts, without locking, and cannot
+     *        write; see BufferPool.beginSnapshot
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly)
+            Database.getBufferPool().beginSnapshot(tid);
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,8 +42,22 @@ public class Transaction {
         return tid;
     }
 
-    /** Finish the transaction */
-    public void commit() throws IOException {
+    /**
+     * Finish the transaction. Under optimistic concurrency control, it is
+     * validated first, and aborted if that fails.
+     *
+     * @throws TransactionAbortedException if the transaction failed
+     *         validation and was aborted
+     */
+    public void commit() throws IOException, TransactionAbortedException {
+        if (started) {
+            try {
+                Database.getBufferPool().validate(tid);
+            } catch (TransactionAbortedException e) {
+                transactionComplete(true);
+                throw e;
+            }
+        }
         transactionComplete(false);
     }
 
@@ -47,9 +74,9 @@ public class Transaction {
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
-                Database.getLogFile().logCommit(tid);
+                //write all the dirty pages for this transaction out, and
+                //the commit record along with their changes
+                Database.getBufferPool().commitPages(tid);
             }
 
             try {
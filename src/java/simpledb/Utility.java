@@ -123,6 +123,19 @@ public class Utility {
         return hf;
     }
 
+    /**
+     * Delete the file of a temporary table when the virtual machine exits,
+     * along with the files kept next to it.
+     *
+     * @see ZoneMap
+     * @see PageLSNs
+     */
+    public static void deleteOnExit(File f) {
+        f.deleteOnExit();
+        ZoneMap.sidecarFile(f).deleteOnExit();
+        PageLSNs.sidecarFile(f).deleteOnExit();
+    }
+
     /** Opens a HeapFile and adds it to the catalog.
      *
      * @param cols number of columns in the table.
@@ -0,0 +1,158 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ValidationManager runs transactions under optimistic concurrency
+ * control, as an alternative to the {@link LockManager}.
+ * <p>
+ * A transaction takes no locks. It records the pages it reads, and writes
+ * to private copies of pages that nobody else sees. When it commits, it is
+ * validated against the transactions that committed since it began: if
+ * one of them wrote a page it read, it aborts. Otherwise its copies
+ * replace the pages in the buffer pool. Validation and the write phase
+ * run one transaction at a time, while holding the monitor of this
+ * object.
+ */
+public class ValidationManager {
+
+    /** The pages a running transaction read and wrote */
+    private static class Workspace {
+        /** number of transactions validated when this one began */
+        final long start;
+        final Set<PageId> reads = ConcurrentHashMap.newKeySet();
+        final Map<PageId, Page> writes = new ConcurrentHashMap<>();
+
+        Workspace(long start) {
+            this.start = start;
+        }
+    }
+
+    /** The pages a validated transaction wrote */
+    private static class Committed {
+        final long ts;
+        final Set<PageId> writes;
+
+        Committed(long ts, Set<PageId> writes) {
+            this.ts = ts;
+            this.writes = writes;
+        }
+    }
+
+    private final ConcurrentHashMap<TransactionId, Workspace> running = new ConcurrentHashMap<>();
+    /** the write sets running transactions may still conflict with, oldest first */
+    private final ArrayDeque<Committed> history = new ArrayDeque<>();
+    /** number of transactions validated so far */
+    private long clock;
+
+    /** Start running tid optimistically, if it is not running yet */
+    public synchronized void begin(TransactionId tid) {
+        if (!running.containsKey(tid))
+            running.put(tid, new Workspace(clock));
+    }
+
+    /** @return true if tid runs optimistically and has not finished */
+    public boolean isRunning(TransactionId tid) {
+        return running.containsKey(tid);
+    }
+
+    /**
+     * Record that tid reads a page.
+     *
+     * @param committed the committed version of the page
+     * @return the private copy of the page if tid wrote to it, or else
+     *         committed
+     */
+    public Page read(TransactionId tid, Page committed) {
+        read(tid, committed.getId());
+        Page own = running.get(tid).writes.get(committed.getId());
+        return own != null ? own : committed;
+    }
+
+    /**
+     * @return true if a running transaction writes to a private copy of the
+     *         page, which may hold inserts nobody else sees
+     */
+    public boolean isWritten(PageId pid) {
+        for (Workspace ws : running.values()) {
+            if (ws.writes.containsKey(pid)) return true;
+        }
+        return false;
+    }
+
+    /** Record that tid reads a page, without fetching it */
+    public void read(TransactionId tid, PageId pid) {
+        running.get(tid).reads.add(pid);
+    }
+
+    /**
+     * Record that tid writes a page, which it reads as well.
+     *
+     * @param committed the committed version of the page
+     * @return the private copy of the page tid writes to
+     */
+    public Page write(TransactionId tid, Page committed) {
+        Workspace ws = running.get(tid);
+        ws.reads.add(committed.getId());
+        // the before image of a committed page is its current content
+        return ws.writes.computeIfAbsent(committed.getId(), k -> committed.getBeforeImage());
+    }
+
+    /**
+     * Validate tid against the transactions that were validated after it
+     * began. The caller must install the pages returned before it releases
+     * the monitor of this object.
+     *
+     * @return the private copies of the pages tid wrote
+     * @throws TransactionAbortedException if a transaction validated since
+     *         tid began wrote a page tid read; tid is finished then
+     */
+    public synchronized Collection<Page> validate(TransactionId tid)
+        throws TransactionAbortedException {
+        Workspace ws = running.remove(tid);
+        if (ws == null) return Collections.emptyList();
+        for (Committed c : history) {
+            if (c.ts <= ws.start) continue;
+            for (PageId pid : c.writes) {
+                if (ws.reads.contains(pid)) {
+                    prune();
+                    throw new TransactionAbortedException();
+                }
+            }
+        }
+        clock++;
+        if (!ws.writes.isEmpty() && !running.isEmpty())
+            history.addLast(new Committed(clock, new HashSet<>(ws.writes.keySet())));
+        prune();
+        return ws.writes.values();
+    }
+
+    /**
+     * Record pages written outside of any optimistic transaction, as if by
+     * a transaction that was just validated, so that the running
+     * transactions which read them fail validation.
+     */
+    public synchronized void publish(Collection<PageId> pages) {
+        if (pages.isEmpty()) return;
+        clock++;
+        if (!running.isEmpty())
+            history.addLast(new Committed(clock, new HashSet<>(pages)));
+        prune();
+    }
+
+    /** Forget the reads and writes of tid, which aborted */
+    public synchronized void end(TransactionId tid) {
+        if (running.remove(tid) != null)
+            prune();
+    }
+
+    /** Drop the write sets no running transaction began before */
+    private void prune() {
+        long oldest = clock;
+        for (Workspace ws : running.values())
+            oldest = Math.min(oldest, ws.start);
+        while (!history.isEmpty() && history.peekFirst().ts <= oldest)
+            history.removeFirst();
+    }
+}
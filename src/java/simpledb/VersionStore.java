@@ -0,0 +1,147 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * VersionStore lets read-only transactions read a consistent snapshot of
+ * the database without taking locks.
+ * <p>
+ * Every commit gets a timestamp from a logical clock, and a snapshot is the
+ * value of the clock when a read-only transaction begins. Before a commit
+ * writes a page, the page's previous committed image is saved under the
+ * timestamp of the commit. A snapshot reader then sees the image saved by
+ * the oldest commit that came after its snapshot, or the page's current
+ * committed image if no such commit exists. Images no running snapshot can
+ * ask for are dropped.
+ * <p>
+ * A read-only transaction does not begin while a commit is running, so a
+ * commit that starts with no snapshot running need not save anything.
+ */
+public class VersionStore {
+
+    /** timestamp of the last commit that finished */
+    private long clock;
+    /** timestamp of the last commit that started */
+    private long next;
+    /** whether the running commit must save the images it overwrites */
+    private volatile boolean saving;
+    /** running read-only transactions, and their snapshots */
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    /** for each page, its images before the commits that overwrote it */
+    private final ConcurrentHashMap<PageId, ConcurrentSkipListMap<Long, Page>> versions =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Start a read-only transaction, which sees the effects of the commits
+     * that finished before now and of no others.
+     *
+     * @return the snapshot of the transaction
+     */
+    public synchronized long begin(TransactionId tid) {
+        while (next > clock) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        snapshots.put(tid, clock);
+        return clock;
+    }
+
+    /**
+     * @return the snapshot of a read-only transaction, or null if tid is
+     *         not one
+     */
+    public Long snapshotOf(TransactionId tid) {
+        return snapshots.get(tid);
+    }
+
+    /** Finish a read-only transaction, and drop the images it kept alive */
+    public void end(TransactionId tid) {
+        if (snapshots.remove(tid) == null) return;
+        for (PageId pid : versions.keySet())
+            prune(pid);
+    }
+
+    /**
+     * @return the timestamp of a commit that is about to write pages; the
+     *         commit is not visible to snapshots taken before it finishes
+     */
+    public synchronized long startCommit() {
+        saving = !snapshots.isEmpty();
+        return ++next;
+    }
+
+    /**
+     * @return true if the running commit must save the images it
+     *         overwrites, as some snapshot may read them
+     */
+    public boolean saving() {
+        return saving;
+    }
+
+    /**
+     * Save the committed image of a page that a commit is going to
+     * overwrite. Must be called before the page changes.
+     */
+    public void save(PageId pid, long ts, Page before) {
+        versions.compute(pid, (k, images) -> {
+            if (images == null) images = new ConcurrentSkipListMap<>();
+            images.put(ts, before);
+            return images;
+        });
+    }
+
+    /**
+     * Make a commit visible to snapshots taken from now on.
+     *
+     * @param ts the timestamp of the commit
+     * @param pages the pages the commit wrote
+     */
+    public void finishCommit(long ts, Collection<PageId> pages) {
+        synchronized (this) {
+            clock = Math.max(clock, ts);
+            notifyAll();
+        }
+        for (PageId pid : pages)
+            prune(pid);
+    }
+
+    /**
+     * @return the image of a page in a snapshot, or null if the snapshot
+     *         sees the current committed image
+     */
+    public Page get(PageId pid, long snapshot) {
+        ConcurrentSkipListMap<Long, Page> images = versions.get(pid);
+        if (images == null) return null;
+        Map.Entry<Long, Page> e = images.higherEntry(snapshot);
+        return e == null ? null : e.getValue();
+    }
+
+    /** Drop the images of a page that no snapshot sees */
+    private void prune(PageId pid) {
+        ConcurrentSkipListMap<Long, Page> images = versions.get(pid);
+        if (images == null) return;
+        long oldest;
+        synchronized (this) {
+            oldest = clock;
+            for (long s : snapshots.values())
+                oldest = Math.min(oldest, s);
+        }
+        // a snapshot s only reads images saved after it
+        images.headMap(oldest, true).clear();
+        versions.computeIfPresent(pid, (k, v) -> v.isEmpty() ? null : v);
+    }
+
+    /** @return the number of saved page images */
+    public int size() {
+        int n = 0;
+        for (ConcurrentSkipListMap<Long, Page> images : versions.values())
+            n += images.size();
+        return n;
+    }
+}
@@ -0,0 +1,367 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * ZoneMap keeps a summary of every page of a {@link HeapFile}: the number of
+ * tuples on the page, and the minimum and maximum value of each integer
+ * column. A scan with pushed down range predicates consults it to skip pages
+ * that cannot hold a matching tuple, without reading them. The scan still
+ * locks the pages it skips, before it consults their summaries.
+ * <p>
+ * The summaries are stored in a sidecar file next to the heap file, with the
+ * extension <code>.zm</code>, so that they survive restarts. A missing or
+ * stale sidecar is rebuilt from the raw bytes of the heap file.
+ * <p>
+ * A summary must never exclude a value that a page holds, even one written
+ * by a transaction that has not committed yet. Inserts therefore widen the
+ * summary of their page right away, and a page that is written back only
+ * widens its summary further: the image written may lack the uncommitted
+ * inserts of another transaction, e.g. under optimistic concurrency
+ * control. Summaries narrow after deletes when a commit writes the page
+ * while no other transaction may have uncommitted inserts on it, see
+ * {@link #pageCommitted}, and when they are rebuilt.
+ */
+public class ZoneMap {
+
+    private static final int MAGIC = 0x5a4d4150;
+    private static final int HEADER_SIZE = 12;
+
+    private final File heapFile, file;
+    private final int pageSize, tupleSize, numSlots, headerSize;
+    /** indexes of the integer fields of the table, and their offsets in a tuple */
+    private final int[] fields, offsets;
+    /** for each field index of the table, its position in fields, or -1 */
+    private final int[] columnOf;
+    private int numPages;
+    private int[] counts;
+    /** per page, the minimum and maximum of each integer field, interleaved */
+    private int[][] bounds;
+    private RandomAccessFile raf;
+
+    /**
+     * Load the zone map of a heap file from its sidecar file, or build it
+     * from the heap file if the sidecar is missing or out of date.
+     *
+     * @param heapFile
+     *            the file the heap file stores its pages in
+     * @param td
+     *            the TupleDesc of the table
+     * @param pageSize
+     *            the size of the pages of the heap file
+     */
+    public ZoneMap(File heapFile, TupleDesc td, int pageSize) {
+        this.heapFile = heapFile;
+        this.file = sidecarFile(heapFile);
+        this.pageSize = pageSize;
+        this.tupleSize = td.getSize();
+        this.numSlots = (pageSize * 8) / (tupleSize * 8 + 1);
+        this.headerSize = (numSlots - 1) / 8 + 1;
+        int n = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) n++;
+        }
+        fields = new int[n];
+        offsets = new int[n];
+        columnOf = new int[td.numFields()];
+        int offset = 0;
+        for (int i = 0, k = 0; i < td.numFields(); i++) {
+            columnOf[i] = -1;
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                columnOf[i] = k;
+                fields[k] = i;
+                offsets[k++] = offset;
+            }
+            offset += td.getFieldType(i).getLen();
+        }
+        if (!load())
+            rebuild();
+    }
+
+    /** @return the sidecar file that keeps the summaries of a heap file */
+    public static File sidecarFile(File heapFile) {
+        return new File(heapFile.getPath() + ".zm");
+    }
+
+    private int entrySize() {
+        return 4 + 8 * fields.length;
+    }
+
+    /** Read the sidecar file, if it matches the heap file */
+    private boolean load() {
+        int expectedPages = (int) (heapFile.length() / pageSize);
+        if (!file.exists() || file.lastModified() < heapFile.lastModified())
+            return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != expectedPages || in.readInt() != fields.length)
+                return false;
+            numPages = expectedPages;
+            counts = new int[Math.max(numPages, 1)];
+            bounds = new int[counts.length][];
+            for (int p = 0; p < numPages; p++) {
+                counts[p] = in.readInt();
+                bounds[p] = new int[2 * fields.length];
+                for (int k = 0; k < bounds[p].length; k++)
+                    bounds[p][k] = in.readInt();
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Recompute every summary exactly from the heap file, and rewrite the
+     * sidecar. This narrows the summaries after deletes, so it must only be
+     * called while no transaction has uncommitted changes to the file.
+     */
+    public synchronized void rebuild() {
+        numPages = (int) (heapFile.length() / pageSize);
+        counts = new int[Math.max(numPages, 1)];
+        bounds = new int[counts.length][];
+        byte[] data = new byte[pageSize];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(heapFile)))) {
+            for (int p = 0; p < numPages; p++) {
+                in.readFully(data);
+                summarize(p, data);
+            }
+        } catch (IOException e) {
+            // without summaries, no page is ever skipped
+            numPages = 0;
+        }
+        try {
+            RandomAccessFile out = sidecar();
+            if (out == null) return;
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(HEADER_SIZE + numPages * entrySize());
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeInt(MAGIC);
+            dos.writeInt(numPages);
+            dos.writeInt(fields.length);
+            for (int p = 0; p < numPages; p++)
+                writeEntry(dos, p);
+            out.setLength(0);
+            out.seek(0);
+            out.write(baos.toByteArray());
+        } catch (IOException e) {
+            raf = null;
+        }
+    }
+
+    /** @return the open sidecar file, or null if it cannot be written */
+    private RandomAccessFile sidecar() {
+        if (raf == null) {
+            try {
+                raf = new RandomAccessFile(file, "rw");
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return raf;
+    }
+
+    /** Close the sidecar file, which is opened again if a summary changes */
+    public synchronized void close() throws IOException {
+        if (raf == null) return;
+        raf.close();
+        raf = null;
+    }
+
+    private void writeEntry(DataOutput out, int p) throws IOException {
+        out.writeInt(counts[p]);
+        for (int v : bounds[p])
+            out.writeInt(v);
+    }
+
+    /** Persist the summary of page p and the number of pages */
+    private void persist(int p) {
+        RandomAccessFile out = sidecar();
+        if (out == null) return;
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(entrySize());
+            writeEntry(new DataOutputStream(baos), p);
+            out.seek(4);
+            out.writeInt(numPages);
+            out.seek(HEADER_SIZE + (long) p * entrySize());
+            out.write(baos.toByteArray());
+        } catch (IOException e) {
+            raf = null;
+        }
+    }
+
+    /** Make room for the summary of page p, which has no tuples yet */
+    private void grow(int p) {
+        if (p >= counts.length) {
+            int n = Math.max(p + 1, counts.length * 2);
+            counts = Arrays.copyOf(counts, n);
+            bounds = Arrays.copyOf(bounds, n);
+        }
+        for (int q = numPages; q <= p; q++) {
+            counts[q] = 0;
+            bounds[q] = emptyBounds();
+        }
+        numPages = Math.max(numPages, p + 1);
+    }
+
+    private int[] emptyBounds() {
+        int[] b = new int[2 * fields.length];
+        for (int k = 0; k < fields.length; k++) {
+            b[2 * k] = Integer.MAX_VALUE;
+            b[2 * k + 1] = Integer.MIN_VALUE;
+        }
+        return b;
+    }
+
+    /**
+     * Compute the summary of a page from its raw bytes, reading only the
+     * header and the integer fields of used slots.
+     */
+    private void summarize(int p, byte[] data) {
+        counts[p] = 0;
+        bounds[p] = emptyBounds();
+        widen(p, data);
+    }
+
+    /** Widen the summary of a page to include the tuples of its raw bytes */
+    private void widen(int p, byte[] data) {
+        int[] b = bounds[p];
+        int count = 0;
+        for (int slot = 0; slot < numSlots; slot++) {
+            if ((data[slot / 8] & (1 << (slot & 0b111))) == 0) continue;
+            count++;
+            int base = headerSize + slot * tupleSize;
+            for (int k = 0; k < fields.length; k++) {
+                int o = base + offsets[k];
+                int v = ((data[o] & 0xff) << 24) | ((data[o + 1] & 0xff) << 16)
+                        | ((data[o + 2] & 0xff) << 8) | (data[o + 3] & 0xff);
+                if (v < b[2 * k]) b[2 * k] = v;
+                if (v > b[2 * k + 1]) b[2 * k + 1] = v;
+            }
+        }
+        counts[p] = Math.max(counts[p], count);
+    }
+
+    /**
+     * Widen the summary of a page to include a newly inserted tuple.
+     *
+     * @param p
+     *            the number of the page the tuple was inserted into
+     * @param t
+     *            the inserted tuple
+     */
+    public synchronized void tupleInserted(int p, Tuple t) {
+        grow(p);
+        counts[p]++;
+        int[] b = bounds[p];
+        for (int k = 0; k < fields.length; k++) {
+            int v = ((IntField) t.getField(fields[k])).getValue();
+            if (v < b[2 * k]) b[2 * k] = v;
+            if (v > b[2 * k + 1]) b[2 * k + 1] = v;
+        }
+        persist(p);
+    }
+
+    /**
+     * Widen the summary of a page that is being written to the heap file to
+     * include its tuples. The summary is not narrowed after deletes, since
+     * it may cover uncommitted inserts the image lacks.
+     *
+     * @param p
+     *            the number of the page
+     * @param data
+     *            the bytes of the page, as they are written
+     */
+    public synchronized void pageWritten(int p, byte[] data) {
+        grow(p);
+        widen(p, data);
+        persist(p);
+    }
+
+    /**
+     * Recompute the summary of a page exactly from the image a commit
+     * writes, which narrows it after deletes. The caller must make sure
+     * that no other transaction has uncommitted inserts on the page, and
+     * that none can start one until this returns.
+     *
+     * @param p
+     *            the number of the page
+     * @param data
+     *            the bytes of the page, as they are written
+     */
+    public synchronized void pageCommitted(int p, byte[] data) {
+        grow(p);
+        summarize(p, data);
+        persist(p);
+    }
+
+    /**
+     * @return an upper bound on the number of tuples on page p
+     */
+    public synchronized int getTupleCount(int p) {
+        return p < numPages ? counts[p] : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return the minimum of an integer field over page p, or
+     *         Integer.MAX_VALUE if the page is empty
+     */
+    public synchronized int getMin(int p, int field) {
+        return p < numPages ? bounds[p][2 * columnOf[field]] : Integer.MIN_VALUE;
+    }
+
+    /**
+     * @return the maximum of an integer field over page p, or
+     *         Integer.MIN_VALUE if the page is empty
+     */
+    public synchronized int getMax(int p, int field) {
+        return p < numPages ? bounds[p][2 * columnOf[field] + 1] : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Decide whether a page may hold a tuple that satisfies all of a
+     * conjunction of predicates over the fields of the table.
+     *
+     * @param p
+     *            the number of the page
+     * @param preds
+     *            the predicates, or null
+     * @return false if the summary of the page proves that no tuple on it
+     *         satisfies all of preds
+     */
+    public synchronized boolean mayMatch(int p, Predicate[] preds) {
+        if (p >= numPages) return true;
+        if (counts[p] == 0) return false;
+        if (preds == null) return true;
+        for (Predicate pred : preds) {
+            int k = columnOf[pred.getField()];
+            if (k < 0 || !(pred.getOperand() instanceof IntField)) continue;
+            int v = ((IntField) pred.getOperand()).getValue();
+            int min = bounds[p][2 * k], max = bounds[p][2 * k + 1];
+            boolean possible;
+            switch (pred.getOp()) {
+                case EQUALS:
+                    possible = min <= v && v <= max;
+                    break;
+                case LESS_THAN:
+                    possible = min < v;
+                    break;
+                case LESS_THAN_OR_EQ:
+                    possible = min <= v;
+                    break;
+                case GREATER_THAN:
+                    possible = max > v;
+                    break;
+                case GREATER_THAN_OR_EQ:
+                    possible = max >= v;
+                    break;
+                case NOT_EQUALS:
+                    possible = min != v || max != v;
+                    break;
+                default:
+                    possible = true;
+            }
+            if (!possible) return false;
+        }
+        return true;
+    }
+}
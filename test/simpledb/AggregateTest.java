@@ -176,6 +176,29 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for Aggregate.getNext() computing several aggregates over a
+   * composite group in one pass
+   */
+  @Test public void multiAggregateCompositeGroup() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(3,
+        new int[] { 1, 1, 2,
+                    1, 1, 4,
+                    1, 2, 6,
+                    3, 1, 2,
+                    3, 1, 7 });
+    Aggregate op = new Aggregate(scan, new int[] { 2, 2, 2 }, new int[] { 0, 1 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.AVG });
+    assertEquals(5, op.getTupleDesc().numFields());
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(5,
+        new int[] { 1, 1, 2, 6, 3,
+                    1, 2, 1, 6, 6,
+                    3, 1, 2, 9, 4 });
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+  }
+
   /**
    * JUnit suite target
    */
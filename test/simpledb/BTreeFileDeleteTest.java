@@ -55,7 +55,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 	@Test
 	public void testStealFromLeftLeafPage() throws Exception {
 		File emptyFile = File.createTempFile("empty", ".dat");
-		emptyFile.deleteOnExit();
+		Utility.deleteOnExit(emptyFile);
 		Database.reset();
 		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
 		int tableid = empty.getId();
@@ -94,7 +94,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 	@Test
 	public void testStealFromRightLeafPage() throws Exception {
 		File emptyFile = File.createTempFile("empty", ".dat");
-		emptyFile.deleteOnExit();
+		Utility.deleteOnExit(emptyFile);
 		Database.reset();
 		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
 		int tableid = empty.getId();
@@ -133,7 +133,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 	@Test
 	public void testMergeLeafPages() throws Exception {
 		File emptyFile = File.createTempFile("empty", ".dat");
-		emptyFile.deleteOnExit();
+		Utility.deleteOnExit(emptyFile);
 		Database.reset();
 		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 3);
 		int tableid = empty.getId();
@@ -182,7 +182,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 	@Test
 	public void testStealFromLeftInternalPage() throws Exception {
 		File emptyFile = File.createTempFile("empty", ".dat");
-		emptyFile.deleteOnExit();
+		Utility.deleteOnExit(emptyFile);
 		Database.reset();
 		int entriesPerPage = BTreeUtility.getNumEntriesPerPage();
 		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 5 + 3*entriesPerPage/2);
@@ -248,7 +248,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 	@Test
 	public void testStealFromRightInternalPage() throws Exception {
 		File emptyFile = File.createTempFile("empty", ".dat");
-		emptyFile.deleteOnExit();
+		Utility.deleteOnExit(emptyFile);
 		Database.reset();
 		int entriesPerPage = BTreeUtility.getNumEntriesPerPage();
 		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 5 + 3*entriesPerPage/2);
@@ -314,7 +314,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 	@Test
 	public void testMergeInternalPages() throws Exception {
 		File emptyFile = File.createTempFile("empty", ".dat");
-		emptyFile.deleteOnExit();
+		Utility.deleteOnExit(emptyFile);
 		Database.reset();
 		int entriesPerPage = BTreeUtility.getNumEntriesPerPage();
 		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 1 + 2*entriesPerPage);
@@ -36,7 +36,7 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 	@Test
 	public void testSplitLeafPages() throws Exception {
 		File emptyFile = File.createTempFile("empty", ".dat");
-		emptyFile.deleteOnExit();
+		Utility.deleteOnExit(emptyFile);
 		Database.reset();
 		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 3);
 		int tableid = empty.getId();
@@ -85,7 +85,7 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 	@Test
 	public void testSplitInternalPages() throws Exception {
 		File emptyFile = File.createTempFile("empty", ".dat");
-		emptyFile.deleteOnExit();
+		Utility.deleteOnExit(emptyFile);
 		Database.reset();
 		int entriesPerPage = BTreeUtility.getNumEntriesPerPage();
 		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 3 + entriesPerPage);
@@ -135,7 +135,7 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 	@Test
 	public void testReusePage() throws Exception {
 		File emptyFile = File.createTempFile("empty", ".dat");
-		emptyFile.deleteOnExit();
+		Utility.deleteOnExit(emptyFile);
 		Database.reset();
 		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 3);
 		int tableid = empty.getId();
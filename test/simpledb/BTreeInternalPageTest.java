@@ -166,6 +166,37 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() on a page with unused slots
+	 * in between its entries
+	 */
+	@Test public void testReverseIteratorAfterDelete() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		Iterator<BTreeEntry> it = page.iterator();
+		int i = 0;
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (i++ % 2 == 1)
+				page.deleteKeyAndRightChild(e);
+		}
+
+		LinkedList<BTreeEntry> entries = new LinkedList<BTreeEntry>();
+		it = page.iterator();
+		while (it.hasNext())
+			entries.addFirst(it.next());
+
+		it = page.reverseIterator();
+		for (BTreeEntry expected : entries) {
+			assertTrue(it.hasNext());
+			BTreeEntry e = it.next();
+			assertEquals(expected.getKey(), e.getKey());
+			assertEquals(expected.getLeftChild(), e.getLeftChild());
+			assertEquals(expected.getRightChild(), e.getRightChild());
+			assertEquals(expected.getRecordId(), e.getRecordId());
+		}
+		assertFalse(it.hasNext());
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
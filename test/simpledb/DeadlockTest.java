@@ -7,6 +7,8 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -211,6 +213,46 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * The deadlocks above are also resolved under wait-die and wound-wait.
+   */
+  @Test public void testWaitDie() throws Exception {
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES, LockManager.Policy.WAIT_DIE);
+    testReadWriteDeadlock();
+    testUpgradeWriteDeadlock();
+  }
+
+  @Test public void testWoundWait() throws Exception {
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES, LockManager.Policy.WOUND_WAIT);
+    testReadWriteDeadlock();
+    testUpgradeWriteDeadlock();
+  }
+
+  /**
+   * Under wait-die, a younger transaction dies at once instead of waiting
+   * for an older one, while an older one waits for a younger one.
+   */
+  @Test public void testWaitDieOrder() throws Exception {
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES, LockManager.Policy.WAIT_DIE);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    LockGrabber younger = startGrabber(tid2, p0, Permissions.READ_ONLY);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(younger.acquired());
+    assertTrue(younger.getError() instanceof TransactionAbortedException);
+    bp.transactionComplete(tid1);
+
+    tid2 = new TransactionId();
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+    LockGrabber older = startGrabber(tid1, p1, Permissions.READ_ONLY);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(older.acquired());
+    assertNull(older.getError());
+    bp.transactionComplete(tid2);
+    older.join();
+    assertTrue(older.acquired());
+    bp.transactionComplete(tid1);
+  }
+
   /**
    * JUnit suite target
    */
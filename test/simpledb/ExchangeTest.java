@@ -0,0 +1,166 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+  private HeapFile hf1, hf2;
+  private ArrayList<ArrayList<Integer>> tuples1, tuples2;
+  private TransactionId tid;
+
+  /**
+   * Set up initial resources for each unit test; both tables hold more
+   * tuples than fit in the queue of a single partition
+   */
+  @Before public void setUp() throws Exception {
+    tuples1 = new ArrayList<ArrayList<Integer>>();
+    tuples2 = new ArrayList<ArrayList<Integer>>();
+    hf1 = SystemTestUtil.createRandomHeapFile(3, 5000, 200, null, tuples1, "c");
+    hf2 = SystemTestUtil.createRandomHeapFile(3, 3000, 200, null, tuples2, "c");
+    Database.getCatalog().addTable(hf1, "EA");
+    Database.getCatalog().addTable(hf2, "EB");
+    TableStats.setTableStats("EA", new TableStats(hf1.getId(), 10));
+    TableStats.setTableStats("EB", new TableStats(hf2.getId(), 10));
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private static List<String> collect(OpIterator it) throws Exception {
+    List<String> res = new ArrayList<String>();
+    it.open();
+    while (it.hasNext()) {
+      res.add(it.next().toString());
+    }
+    it.close();
+    Collections.sort(res);
+    return res;
+  }
+
+  /**
+   * Unit test for Gather over a round-robin Repartition
+   */
+  @Test public void gatherRoundRobin() throws Exception {
+    OpIterator[] parts = Repartition.split(new SeqScan(tid, hf1.getId()), 4,
+        Repartition.ROUND_ROBIN);
+    Gather g = new Gather(parts);
+    List<String> expected = collect(new SeqScan(tid, hf1.getId()));
+    assertEquals(5000, expected.size());
+    assertEquals(expected, collect(g));
+    // rewinding restarts every partition
+    g.open();
+    g.rewind();
+    int count = 0;
+    while (g.hasNext()) {
+      g.next();
+      count++;
+    }
+    g.close();
+    assertEquals(5000, count);
+  }
+
+  /**
+   * Unit test for Repartition on a field: equal values share a partition
+   */
+  @Test public void hashPartitions() throws Exception {
+    OpIterator[] parts = Repartition.split(new SeqScan(tid, hf1.getId()), 3, 1);
+    OpIterator[] tagged = new OpIterator[parts.length];
+    final Map<Integer, Set<Integer>> seen = Collections.synchronizedMap(
+        new HashMap<Integer, Set<Integer>>());
+    for (int i = 0; i < parts.length; i++) {
+      final int part = i;
+      tagged[i] = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ,
+          new IntField(Integer.MIN_VALUE)), parts[i]) {
+        private static final long serialVersionUID = 1L;
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+          Tuple t = super.fetchNext();
+          if (t != null) {
+            int v = ((IntField) t.getField(1)).getValue();
+            Set<Integer> s = new HashSet<Integer>();
+            s.add(part);
+            Set<Integer> prev = seen.putIfAbsent(v, s);
+            if (prev != null) prev.add(part);
+          }
+          return t;
+        }
+      };
+    }
+    assertEquals(5000, collect(new Gather(tagged)).size());
+    for (Set<Integer> s : seen.values())
+      assertEquals(1, s.size());
+  }
+
+  /**
+   * Unit test for a join of hash partitioned inputs
+   */
+  @Test public void partitionedJoin() throws Exception {
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    OpIterator[] left = Repartition.split(new SeqScan(tid, hf1.getId()), 4, 0);
+    OpIterator[] right = Repartition.split(new SeqScan(tid, hf2.getId()), 4, 0);
+    OpIterator[] joins = new OpIterator[4];
+    for (int i = 0; i < 4; i++)
+      joins[i] = new HashEquiJoin(p, left[i], right[i], Integer.MAX_VALUE);
+    List<String> expected = collect(new HashEquiJoin(p,
+        new SeqScan(tid, hf1.getId()), new SeqScan(tid, hf2.getId())));
+    assertTrue(expected.size() > 0);
+    assertEquals(expected, collect(new Gather(joins)));
+  }
+
+  /**
+   * Unit test for LogicalPlan.setParallelism(): the parallel plans of a
+   * filtered, grouped aggregate and of a join match brute force results
+   */
+  @Test public void parallelPlans() throws Exception {
+    Parser parser = new Parser();
+    LogicalPlan lp = parser.generateLogicalPlan(tid,
+        "SELECT a.c1, COUNT(a.c0) FROM EA a WHERE a.c2 < 100 GROUP BY a.c1;");
+    lp.setParallelism(4);
+    Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+    for (ArrayList<Integer> t : tuples1) {
+      if (t.get(2) < 100) {
+        Integer c = counts.get(t.get(1));
+        counts.put(t.get(1), c == null ? 1 : c + 1);
+      }
+    }
+    List<String> expected = new ArrayList<String>();
+    for (Map.Entry<Integer, Integer> e : counts.entrySet())
+      expected.add(e.getKey() + " " + e.getValue());
+    Collections.sort(expected);
+    List<String> actual = collect(lp.physicalPlan(tid, TableStats.getStatsMap(), false));
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++)
+      assertEquals(expected.get(i), actual.get(i).trim());
+
+    lp = parser.generateLogicalPlan(tid,
+        "SELECT a.c1, b.c2 FROM EA a, EB b WHERE a.c0 = b.c0 AND b.c1 < 50;");
+    lp.setParallelism(3);
+    int matches = 0;
+    for (ArrayList<Integer> t1 : tuples1) {
+      for (ArrayList<Integer> t2 : tuples2) {
+        if (t1.get(0).equals(t2.get(0)) && t2.get(1) < 50) matches++;
+      }
+    }
+    assertEquals(matches, collect(lp.physicalPlan(tid, TableStats.getStatsMap(), false)).size());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExchangeTest.class);
+  }
+}
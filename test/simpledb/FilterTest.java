@@ -9,6 +9,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
 
 public class FilterTest extends SimpleDbTestBase {
 
@@ -120,6 +121,36 @@ public class FilterTest extends SimpleDbTestBase {
     op.close();
   }
 
+  /**
+   * Unit test for predicates pushed into a SeqScan: they return the same
+   *   tuples as Filters over the scan
+   */
+  @Test public void pushedPredicates() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(testWidth, 3000, 100, null, null);
+    TransactionId tid = new TransactionId();
+    Predicate lt = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(40));
+    Predicate ne = new Predicate(1, Predicate.Op.NOT_EQUALS, new IntField(7));
+    OpIterator filtered = new Filter(ne, new Filter(lt, new SeqScan(tid, f.getId())));
+    SeqScan pushed = new SeqScan(tid, f.getId());
+    pushed.addPredicate(lt);
+    pushed.addPredicate(ne);
+    assertEquals(2, pushed.getPredicates().length);
+
+    filtered.open();
+    pushed.open();
+    int count = 0;
+    while (filtered.hasNext()) {
+      assertTrue(pushed.hasNext());
+      assertTrue(TestUtil.compareTuples(filtered.next(), pushed.next()));
+      count++;
+    }
+    assertTrue(count > 0);
+    assertTrue(TestUtil.checkExhausted(pushed));
+    filtered.close();
+    pushed.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
   /**
    * JUnit suite target
    */
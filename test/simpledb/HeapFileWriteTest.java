@@ -43,6 +43,29 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.close(): a closed file opens its files again
+     * when it is used
+     */
+    @Test public void closeAndReuse() throws Exception {
+        HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        page.setLSN(42);
+        empty.writePage(page);
+        empty.sync();
+        empty.close();
+
+        HeapPage read = (HeapPage) empty.readPage(pid);
+        assertEquals(42, read.getLSN());
+        assertEquals(7, ((IntField) read.iterator().next().getField(0)).getValue());
+        assertEquals(1, empty.getZoneMap().getTupleCount(0));
+        page.setLSN(43);
+        empty.writePage(page);
+        empty.close();
+        assertEquals(43, new HeapFile(empty.getFile(), empty.getTupleDesc()).maxLSN());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,62 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IntHashTableTest extends SimpleDbTestBase {
+
+  /**
+   * Unit test for IntHashTable.put() and IntHashTable.find()
+   */
+  @Test public void putAndFind() {
+    IntHashTable table = new IntHashTable();
+    assertEquals(0, table.put(42));
+    assertEquals(1, table.put(-7));
+    assertEquals(0, table.put(42));
+    assertEquals(2, table.size());
+    assertEquals(0, table.find(42));
+    assertEquals(1, table.find(-7));
+    assertEquals(-1, table.find(0));
+    assertEquals(-7, table.keyAt(1));
+  }
+
+  /**
+   * Unit test for IntHashTable growing past its initial capacity
+   */
+  @Test public void grow() {
+    IntHashTable table = new IntHashTable(4);
+    for (int i = 0; i < 10000; i++) {
+      assertEquals(i, table.put(i * 31));
+    }
+    assertEquals(10000, table.size());
+    for (int i = 0; i < 10000; i++) {
+      assertEquals(i, table.find(i * 31));
+      assertEquals(i * 31, table.keyAt(i));
+    }
+    assertEquals(-1, table.find(1));
+  }
+
+  /**
+   * Unit test for IntHashTable.clear()
+   */
+  @Test public void clear() {
+    IntHashTable table = new IntHashTable();
+    table.put(1);
+    table.put(2);
+    table.clear();
+    assertEquals(0, table.size());
+    assertEquals(-1, table.find(1));
+    assertEquals(0, table.put(2));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IntHashTableTest.class);
+  }
+}
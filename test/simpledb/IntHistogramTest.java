@@ -37,6 +37,29 @@ public class IntHistogramTest {
 		Assert.assertTrue(selectivity > 0.99);
 	}
 	
+	/**
+	 * Test that merging partial histograms gives the same estimates as
+	 * building one histogram over all values.
+	 */
+	@Test public void mergeTest() {
+		IntHistogram whole = new IntHistogram(10, 1, 100);
+		IntHistogram left = new IntHistogram(10, 1, 100);
+		IntHistogram right = new IntHistogram(10, 1, 100);
+		for (int c = 1; c <= 100; c++) {
+			whole.addValue(c);
+			whole.addValue(c % 10 + 1);
+			left.addValue(c);
+			right.addValue(c % 10 + 1);
+		}
+		left.merge(right);
+		for (int c = 0; c <= 101; c++) {
+			Assert.assertEquals(whole.estimateSelectivity(Op.LESS_THAN, c),
+					left.estimateSelectivity(Op.LESS_THAN, c), 1e-9);
+			Assert.assertEquals(whole.estimateSelectivity(Op.EQUALS, c),
+					left.estimateSelectivity(Op.EQUALS, c), 1e-9);
+		}
+	}
+
 	/**
 	 * Test with a minimum and a maximum that are both negative numbers.
 	 */
@@ -3,6 +3,8 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertNull;
 import junit.framework.JUnit4TestAdapter;
 
@@ -186,6 +188,287 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * Lock requests are granted in FIFO order: a read lock requested after a
+   * waiting write lock waits behind it, and both go ahead in turn.
+   */
+  @Test public void acquireInRequestOrder() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    TestUtil.LockGrabber reader = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_ONLY);
+    reader.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired());
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid1);
+    writer.join();
+    assertTrue(writer.acquired());
+    Thread.sleep(TIMEOUT);
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid2);
+    reader.join();
+    assertTrue(reader.acquired());
+    assertNull(reader.getError());
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * Unit test for BufferPool.updateToWriteLock().
+   * A shared lock is upgraded in place, ahead of a writer that is already
+   * waiting for the page.
+   */
+  @Test public void upgradeAheadOfWaitingWriter() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    bp.updateToWriteLock(tid1, p0);
+    assertTrue(bp.holdsLock(tid1, p0));
+    assertFalse(bp.holdsReadLock(tid1, p0));
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired());
+
+    bp.transactionComplete(tid1);
+    writer.join();
+    assertTrue(writer.acquired());
+    assertNull(writer.getError());
+    bp.transactionComplete(tid2);
+  }
+
+  /**
+   * Unit test for LockManager lock escalation.
+   * Once a transaction reads more pages of a table than the threshold, its
+   * page locks are replaced by a shared lock on the table, which blocks
+   * writers but not readers. Escalation is skipped while another
+   * transaction intends to write to the table.
+   */
+  @Test public void escalateToTableLock() throws Exception {
+    final LockManager lm = new LockManager(LockManager.Policy.DETECT, 2);
+    int table = empty.getId();
+    lm.lock(tid1, p0, Permissions.READ_ONLY);
+    lm.lock(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(LockManager.Mode.IS, lm.tableLock(tid1, table));
+    lm.lock(tid1, p2, Permissions.READ_ONLY);
+    assertEquals(LockManager.Mode.S, lm.tableLock(tid1, table));
+    assertTrue(lm.lockedPages(tid1).isEmpty());
+    assertTrue(lm.holdsLock(tid1, p1));
+
+    lm.lock(tid2, p0, Permissions.READ_ONLY);
+    Thread writer = new Thread() {
+      public void run() {
+        try {
+          lm.lock(tid2, p1, Permissions.READ_WRITE);
+        } catch (TransactionAbortedException e) {
+          // not expected
+        }
+      }
+    };
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(lm.holdsLock(tid2, p1));
+    lm.releaseAll(tid1);
+    writer.join();
+    assertTrue(lm.holdsLock(tid2, p1, Permissions.READ_WRITE));
+    assertEquals(LockManager.Mode.IX, lm.tableLock(tid2, table));
+
+    TransactionId tid3 = new TransactionId();
+    lm.lock(tid3, p0, Permissions.READ_ONLY);
+    lm.lock(tid3, p2, Permissions.READ_ONLY);
+    lm.lock(tid3, new HeapPageId(table, 3), Permissions.READ_ONLY);
+    assertEquals(LockManager.Mode.IS, lm.tableLock(tid3, table));
+    assertEquals(3, lm.lockedPages(tid3).size());
+    lm.releaseAll(tid2);
+    lm.releaseAll(tid3);
+  }
+
+  /**
+   * Unit test for LockManager lock timeouts.
+   * A request that waits longer than the lock timeout fails, and the wait
+   * is counted; the lock is granted to the next request once released.
+   */
+  @Test public void lockTimeout() throws Exception {
+    LockManager lm = new LockManager();
+    lm.setLockTimeout(TIMEOUT);
+    lm.lock(tid1, p0, Permissions.READ_WRITE);
+    long start = System.currentTimeMillis();
+    try {
+      lm.lock(tid2, p0, Permissions.READ_ONLY);
+      throw new AssertionError("lock granted while held exclusively");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertTrue(System.currentTimeMillis() - start >= TIMEOUT);
+    assertFalse(lm.holdsLock(tid2, p0));
+    assertEquals(1, lm.getWaitCount());
+    assertEquals(1, lm.getTimeoutCount());
+    assertTrue(lm.getMaxWaitTime() >= TIMEOUT);
+    lm.releaseAll(tid2);
+
+    lm.releaseAll(tid1);
+    lm.lock(tid2, p0, Permissions.READ_ONLY);
+    assertTrue(lm.holdsLock(tid2, p0, Permissions.READ_ONLY));
+    lm.releaseAll(tid2);
+  }
+
+  /** Requests an exclusive lock on a page in a thread of its own */
+  private static class Requester extends Thread {
+    private final LockManager lm;
+    private final TransactionId tid;
+    private final PageId pid;
+    volatile TransactionAbortedException error;
+
+    Requester(LockManager lm, TransactionId tid, PageId pid) {
+      this.lm = lm;
+      this.tid = tid;
+      this.pid = pid;
+      start();
+    }
+
+    public void run() {
+      try {
+        lm.lock(tid, pid, Permissions.READ_WRITE);
+      } catch (TransactionAbortedException e) {
+        error = e;
+      }
+    }
+  }
+
+  /**
+   * Unit test for deadlock detection with two workers of one transaction.
+   * Once the lock one worker waits for is granted, the transaction still
+   * waits for what the other worker waits for, so the deadlock through it
+   * is found instead of timing out.
+   */
+  @Test public void deadlockThroughWorkers() throws Exception {
+    LockManager lm = new LockManager(LockManager.Policy.DETECT);
+    lm.setLockTimeout(TIMEOUT * 50);
+    TransactionId tid3 = new TransactionId();
+    lm.lock(tid2, p0, Permissions.READ_WRITE);
+    lm.lock(tid3, p1, Permissions.READ_WRITE);
+    lm.lock(tid1, p2, Permissions.READ_WRITE);
+    Requester first = new Requester(lm, tid1, p0);
+    Requester second = new Requester(lm, tid1, p1);
+    Thread.sleep(TIMEOUT);
+    lm.releaseAll(tid3);
+    second.join();
+    assertNull(second.error);
+    assertTrue(lm.holdsLock(tid1, p1, Permissions.READ_WRITE));
+
+    // tid2, the youngest on the cycle, is aborted
+    try {
+      lm.lock(tid2, p2, Permissions.READ_WRITE);
+      throw new AssertionError("deadlock not detected");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertEquals(0, lm.getTimeoutCount());
+    lm.releaseAll(tid2);
+    first.join();
+    assertNull(first.error);
+    lm.releaseAll(tid1);
+  }
+
+  /**
+   * Unit test for wound-wait with two workers of one transaction.
+   * Both workers of the wounded transaction are woken, wherever they
+   * wait, and fail.
+   */
+  @Test public void woundAllWorkers() throws Exception {
+    LockManager lm = new LockManager(LockManager.Policy.WOUND_WAIT);
+    lm.setLockTimeout(TIMEOUT * 50);
+    TransactionId young = new TransactionId();
+    lm.lock(tid1, p0, Permissions.READ_WRITE);
+    lm.lock(tid2, p1, Permissions.READ_WRITE);
+    lm.lock(young, p2, Permissions.READ_WRITE);
+    Requester first = new Requester(lm, young, p0);
+    Requester second = new Requester(lm, young, p1);
+    Thread.sleep(TIMEOUT);
+
+    Requester old = new Requester(lm, tid1, p2);
+    first.join(TIMEOUT * 20);
+    second.join(TIMEOUT * 20);
+    assertFalse(first.isAlive());
+    assertFalse(second.isAlive());
+    assertTrue(first.error != null && second.error != null);
+    assertEquals(0, lm.getTimeoutCount());
+
+    lm.releaseAll(young);
+    old.join();
+    assertNull(old.error);
+    lm.releaseAll(tid1);
+    lm.releaseAll(tid2);
+  }
+
+  /**
+   * Unit test for the LockManager lock cap.
+   * A transaction that asks for more locks than the cap fails, while locks
+   * it holds already are granted again.
+   */
+  @Test public void maxLocks() throws Exception {
+    LockManager lm = new LockManager();
+    // the table lock and two page locks
+    lm.setMaxLocks(3);
+    lm.lock(tid1, p0, Permissions.READ_ONLY);
+    lm.lock(tid1, p1, Permissions.READ_ONLY);
+    lm.lock(tid1, p0, Permissions.READ_ONLY);
+    try {
+      lm.lock(tid1, p2, Permissions.READ_ONLY);
+      throw new AssertionError("lock granted beyond the cap");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertFalse(lm.holdsLock(tid1, p2));
+    lm.lock(tid2, p2, Permissions.READ_ONLY);
+    lm.releaseAll(tid1);
+    lm.releaseAll(tid2);
+  }
+
+  /**
+   * Unit test for record locks.
+   * Two transactions delete different tuples of the same page without
+   * waiting for each other. The page written when the first commits does
+   * not hold the delete of the second, which is undone when it aborts.
+   */
+  @Test public void deleteRecordsOnSamePage() throws Exception {
+    TransactionId reader = new TransactionId();
+    java.util.Iterator<Tuple> it = ((HeapPage) bp.getPage(reader, p0, Permissions.READ_ONLY)).iterator();
+    final Tuple t1 = it.next();
+    final Tuple t2 = it.next();
+    bp.transactionComplete(reader);
+
+    bp.deleteTuple(tid1, t1);
+    Thread deleter = new Thread() {
+      public void run() {
+        try {
+          bp.deleteTuple(tid2, t2);
+        } catch (Exception e) {
+          // checked below
+        }
+      }
+    };
+    deleter.start();
+    deleter.join(TIMEOUT * 10);
+    assertFalse(deleter.isAlive());
+
+    bp.transactionComplete(tid1, true);
+    HeapPage onDisk = (HeapPage) empty.readPage(p0);
+    assertFalse(onDisk.isSlotUsed(t1.getRecordId().getTupleNumber()));
+    assertTrue(onDisk.isSlotUsed(t2.getRecordId().getTupleNumber()));
+
+    bp.transactionComplete(tid2, false);
+    HeapPage p = (HeapPage) bp.getPage(reader, p0, Permissions.READ_ONLY);
+    assertFalse(p.isSlotUsed(t1.getRecordId().getTupleNumber()));
+    assertTrue(p.isSlotUsed(t2.getRecordId().getTupleNumber()));
+    assertEquals(1, p.getNumEmptySlots());
+    bp.transactionComplete(reader);
+  }
+
   /**
    * JUnit suite target
    */
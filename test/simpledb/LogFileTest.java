@@ -0,0 +1,200 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+    private File file;
+    private LogFile log;
+    private HeapPageId pid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void createLog() throws IOException {
+        file = File.createTempFile("logfiletest", ".log");
+        file.deleteOnExit();
+        log = new LogFile(file);
+        pid = new HeapPageId(-1, 0);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    @After public void deleteLog() {
+        file.delete();
+    }
+
+    /** Serialize a list of deltas and read it back */
+    private List<PageDelta> roundTrip(List<PageDelta> deltas) throws IOException {
+        int size = 0;
+        for (PageDelta d : deltas)
+            size += d.size();
+        ByteBuffer out = ByteBuffer.allocate(size);
+        for (PageDelta d : deltas)
+            d.write(out);
+        assertEquals(0, out.remaining());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.array()));
+        List<PageDelta> read = new ArrayList<PageDelta>();
+        for (int i = 0; i < deltas.size(); i++)
+            read.add(PageDelta.read(in));
+        return read;
+    }
+
+    /**
+     * Unit test for HeapPage.diff() with a tuple inserted, and for
+     * PageDelta.redo() and PageDelta.undo()
+     */
+    @Test public void insertDelta() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] before = page.getPageData();
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        byte[] after = page.getPageData();
+
+        List<PageDelta> deltas = roundTrip(page.diff(before, after));
+        assertEquals(1, deltas.size());
+        assertEquals(PageDelta.Kind.INSERT_TUPLE, deltas.get(0).getKind());
+
+        byte[] data = before.clone();
+        deltas.get(0).redo(data);
+        assertArrayEquals(after, data);
+        deltas.get(0).redo(data);
+        assertArrayEquals(after, data);
+        deltas.get(0).undo(data);
+        assertArrayEquals(before, data);
+    }
+
+    /**
+     * Unit test for HeapPage.diff() with a tuple deleted and another
+     * replaced
+     */
+    @Test public void deleteDelta() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] before = page.getPageData();
+        Iterator<Tuple> it = page.iterator();
+        Tuple first = it.next();
+        Tuple second = it.next();
+        page.deleteTuple(first);
+        second.setField(0, new IntField(-1));
+        byte[] after = page.getPageData();
+
+        List<PageDelta> deltas = roundTrip(page.diff(before, after));
+        assertEquals(3, deltas.size());
+        assertEquals(PageDelta.Kind.DELETE_TUPLE, deltas.get(0).getKind());
+        assertEquals(PageDelta.Kind.DELETE_TUPLE, deltas.get(1).getKind());
+        assertEquals(PageDelta.Kind.INSERT_TUPLE, deltas.get(2).getKind());
+
+        byte[] data = before.clone();
+        for (PageDelta d : deltas)
+            d.redo(data);
+        assertArrayEquals(after, data);
+        for (int i = deltas.size() - 1; i >= 0; i--)
+            deltas.get(i).undo(data);
+        assertArrayEquals(before, data);
+    }
+
+    /**
+     * Unit test for PageDelta.undo() on a slot that holds another tuple
+     * since, and for PageDelta.inverse()
+     */
+    @Test public void undoMovedTuple() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] before = page.getPageData();
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        byte[] after = page.getPageData();
+        PageDelta insert = page.diff(before, after).get(0);
+
+        // the tuple was deleted, and another one took its slot
+        HeapPage other = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        other.insertTuple(Utility.getHeapTuple(8, 2));
+        byte[] data = other.getPageData();
+        assertFalse(insert.undo(data));
+        assertArrayEquals(other.getPageData(), data);
+
+        // the inverse of the insert reverts it when redone
+        data = after.clone();
+        insert.inverse().redo(data);
+        assertArrayEquals(before, data);
+        assertEquals(PageDelta.Kind.DELETE_TUPLE, insert.inverse().getKind());
+    }
+
+    /**
+     * Unit test for Page.diff() on a page without slots
+     */
+    @Test public void bytesDelta() throws Exception {
+        byte[] before = new byte[BufferPool.getPageSize()];
+        byte[] after = before.clone();
+        after[10] = 1;
+        after[14] = 2;
+        after[100] = 3;
+        BTreeRootPtrPage page = new BTreeRootPtrPage(new BTreePageId(-1, 0, BTreePageId.ROOT_PTR),
+                                                     BTreeRootPtrPage.createEmptyPageData());
+        List<PageDelta> deltas = roundTrip(page.diff(before, after));
+        // the two changes close together are logged as one
+        assertEquals(2, deltas.size());
+        byte[] data = before.clone();
+        for (PageDelta d : deltas)
+            d.redo(data);
+        assertArrayEquals(after, data);
+        for (PageDelta d : deltas)
+            d.undo(data);
+        assertArrayEquals(before, data);
+    }
+
+    /**
+     * Unit test for LogFile.logWrite(): only the change to the page is
+     * logged
+     */
+    @Test public void updateRecordSize() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        page.setBeforeImage();
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        TransactionId tid = new TransactionId();
+        long first = log.logWrite(tid, page.getBeforeImage(), page);
+        long second = log.logWrite(tid, page.getBeforeImage(), page);
+        assertTrue(second - first < 100);
+    }
+
+    /**
+     * Unit test for reading the id of a page of a type that is not registered
+     */
+    @Test(expected = IOException.class) public void unknownPageType() throws Exception {
+        byte[] data = new byte[] { 100, 0, 0, 0, 0 };
+        log.readPageType(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    /**
+     * Unit test for registering a page type under a code that is taken
+     */
+    @Test(expected = IllegalArgumentException.class) public void codeTaken() {
+        LogFile.registerPageType(1, HeapPage.class, 2, id -> new HeapPageId(id[0], id[1]),
+                                 (id, data) -> new HeapPage((HeapPageId) id, data));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
@@ -0,0 +1,88 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ParallelAggregateTest extends SimpleDbTestBase {
+
+  private HeapFile hf;
+  private TransactionId tid;
+
+  /**
+   * Set up initial resources for each unit test; the table spans many pages
+   */
+  @Before public void setUp() throws Exception {
+    hf = SystemTestUtil.createRandomHeapFile(3, 5000, 20, null, null);
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private static Set<String> collect(OpIterator it) throws Exception {
+    Set<String> res = new HashSet<String>();
+    it.open();
+    while (it.hasNext()) {
+      assertTrue(res.add(it.next().toString()));
+    }
+    it.close();
+    return res;
+  }
+
+  /**
+   * Unit test for ParallelAggregate against a serial Aggregate
+   */
+  @Test public void matchesSerialAggregate() throws Exception {
+    int[] afields = new int[] { 2, 2, 2, 2, 2 };
+    int[] gfields = new int[] { 0 };
+    Aggregator.Op[] aops = new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM,
+        Aggregator.Op.AVG, Aggregator.Op.MIN, Aggregator.Op.MAX };
+    Aggregate serial = new Aggregate(new SeqScan(tid, hf.getId()), afields, gfields, aops);
+    ParallelAggregate parallel = new ParallelAggregate(tid, new SeqScan(tid, hf.getId()),
+        afields, gfields, aops, 4);
+    Set<String> expected = collect(serial);
+    assertEquals(20, expected.size());
+    assertEquals(expected, collect(parallel));
+  }
+
+  /**
+   * Unit test for ParallelAggregate with filters beneath it and no grouping
+   */
+  @Test public void filteredNoGrouping() throws Exception {
+    Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(5));
+    int[] afields = new int[] { 0, 2 };
+    Aggregator.Op[] aops = new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM };
+    Aggregate serial = new Aggregate(new Filter(p, new SeqScan(tid, hf.getId())),
+        afields, new int[0], aops);
+    ParallelAggregate parallel = new ParallelAggregate(tid,
+        new Filter(p, new SeqScan(tid, hf.getId())), afields, new int[0], aops, 3);
+    assertEquals(collect(serial), collect(parallel));
+  }
+
+  /**
+   * Unit test for ParallelAggregate.canPartition()
+   */
+  @Test public void canPartition() throws Exception {
+    assertTrue(ParallelAggregate.canPartition(new SeqScan(tid, hf.getId())));
+    assertFalse(ParallelAggregate.canPartition(TestUtil.createTupleList(1, new int[] { 1 })));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ParallelAggregateTest.class);
+  }
+}
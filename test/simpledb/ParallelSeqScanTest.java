@@ -0,0 +1,82 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ParallelSeqScanTest extends SimpleDbTestBase {
+
+  private HeapFile hf;
+  private TransactionId tid;
+
+  /**
+   * Set up initial resources for each unit test; the table spans many pages
+   */
+  @Before public void setUp() throws Exception {
+    hf = SystemTestUtil.createRandomHeapFile(2, 8000, null, null);
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private static List<String> collect(OpIterator it) throws Exception {
+    List<String> res = new ArrayList<String>();
+    it.open();
+    while (it.hasNext()) {
+      res.add(it.next().toString());
+    }
+    it.close();
+    return res;
+  }
+
+  /**
+   * Unit test for HeapFile.iterator() over page ranges
+   */
+  @Test public void pageRanges() throws Exception {
+    int numPages = hf.numPages();
+    List<String> expected = collect(new SeqScan(tid, hf.getId()));
+    List<String> actual = new ArrayList<String>();
+    int mid = numPages / 3;
+    actual.addAll(collect(new SeqScan(tid, hf.getId(), "t", 0, mid)));
+    actual.addAll(collect(new SeqScan(tid, hf.getId(), "t", mid, numPages)));
+    assertEquals(expected, actual);
+    assertEquals(0, collect(new SeqScan(tid, hf.getId(), "t", mid, mid)).size());
+  }
+
+  /**
+   * Unit test for an order preserving ParallelSeqScan
+   */
+  @Test public void ordered() throws Exception {
+    List<String> expected = collect(new SeqScan(tid, hf.getId()));
+    assertEquals(8000, expected.size());
+    assertEquals(expected, collect(new ParallelSeqScan(tid, hf.getId(), "t", 4, true)));
+  }
+
+  /**
+   * Unit test for an unordered ParallelSeqScan
+   */
+  @Test public void unordered() throws Exception {
+    List<String> expected = collect(new SeqScan(tid, hf.getId()));
+    List<String> actual = collect(new ParallelSeqScan(tid, hf.getId(), "t", 3, false));
+    Collections.sort(expected);
+    Collections.sort(actual);
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ParallelSeqScanTest.class);
+  }
+}
@@ -0,0 +1,142 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class StreamAggregateTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  OpIterator scan1;
+  OpIterator scan2;
+
+  OpIterator sum;
+  OpIterator avg;
+  OpIterator min;
+  OpIterator count;
+
+  /**
+   * Initialize each unit test; the inputs are ordered on the group field
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 1, 2,
+                    1, 4,
+                    1, 6,
+                    3, 2,
+                    3, 4,
+                    3, 6,
+                    5, 7 });
+    this.scan2 = TestUtil.createTupleList(width1,
+        new Object[] { 1, "a",
+                    1, "a",
+                    1, "a",
+                    3, "a",
+                    3, "a",
+                    3, "a",
+                    5, "a" });
+
+    this.sum = TestUtil.createTupleList(width1,
+        new int[] { 1, 12,
+                    3, 12,
+                    5, 7 });
+    this.avg = TestUtil.createTupleList(width1,
+        new int[] { 1, 4,
+                    3, 4,
+                    5, 7 });
+    this.min = TestUtil.createTupleList(width1,
+        new int[] { 1, 2,
+                    3, 2,
+                    5, 7 });
+    this.count = TestUtil.createTupleList(width1,
+        new int[] { 1, 3,
+                    3, 3,
+                    5, 1 });
+  }
+
+  /**
+   * Unit test for StreamAggregate.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    StreamAggregate op = new StreamAggregate(scan1, 0, 0,
+        Aggregator.Op.MIN);
+    TupleDesc expected = Utility.getTupleDesc(2);
+    TupleDesc actual = op.getTupleDesc();
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * Unit test for StreamAggregate.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    StreamAggregate op = new StreamAggregate(scan1, 1, 0,
+        Aggregator.Op.MIN);
+    op.open();
+    while (op.hasNext()) {
+      assertNotNull(op.next());
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+
+    op.rewind();
+    min.open();
+    TestUtil.matchAllTuples(min, op);
+  }
+
+  /**
+   * Unit test for StreamAggregate.getNext() using a count aggregate with string types
+   */
+  @Test public void countStringAggregate() throws Exception {
+    StreamAggregate op = new StreamAggregate(scan2, 1, 0,
+        Aggregator.Op.COUNT);
+    op.open();
+    count.open();
+    TestUtil.compareDbIterators(count, op);
+  }
+
+  /**
+   * Unit test for StreamAggregate.getNext() using a sum aggregate
+   */
+  @Test public void sumAggregate() throws Exception {
+    StreamAggregate op = new StreamAggregate(scan1, 1, 0,
+        Aggregator.Op.SUM);
+    op.open();
+    sum.open();
+    TestUtil.compareDbIterators(sum, op);
+  }
+
+  /**
+   * Unit test for StreamAggregate.getNext() using an avg aggregate
+   */
+  @Test public void avgAggregate() throws Exception {
+    StreamAggregate op = new StreamAggregate(scan1, 1, 0,
+       Aggregator.Op.AVG);
+    op.open();
+    avg.open();
+    TestUtil.compareDbIterators(avg, op);
+  }
+
+  /**
+   * Unit test for StreamAggregate.getNext() without grouping
+   */
+  @Test public void noGrouping() throws Exception {
+    StreamAggregate op = new StreamAggregate(scan1, 1, Aggregator.NO_GROUPING,
+       Aggregator.Op.SUM);
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(1, new int[] { 31 });
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(StreamAggregateTest.class);
+  }
+}
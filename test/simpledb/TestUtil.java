@@ -214,6 +214,16 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public long maxLSN() throws IOException {
+            return 0;
+        }
+
+        public void sync() throws IOException {
+        }
+
+        public void close() throws IOException {
+        }
+
         public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
             throw new RuntimeException("not implemented");
@@ -379,7 +389,7 @@ public class TestUtil {
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-            emptyFile.deleteOnExit();
+            Utility.deleteOnExit(emptyFile);
         }
 
         protected void setUp() throws Exception {
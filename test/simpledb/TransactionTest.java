@@ -4,6 +4,7 @@ import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class TransactionTest extends TestUtil.CreateHeapFile {
@@ -112,6 +113,75 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     testTransactionComplete(false);
   }
 
+  /**
+   * Unit test for BufferPool.beginSnapshot().
+   * A read-only transaction reads a page a writer holds an exclusive lock
+   * on without waiting, and keeps seeing the page as it was when it began
+   * after the writer commits.
+   */
+  @Test public void snapshotRead() throws Exception {
+    HeapPage p = (HeapPage) bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    p.deleteTuple(p.iterator().next());
+    p.markDirty(true, tid1);
+
+    TransactionId reader = new TransactionId();
+    bp.beginSnapshot(reader);
+    assertEquals(0, ((HeapPage) bp.getPage(reader, p0, Permissions.READ_ONLY)).getNumEmptySlots());
+    bp.transactionComplete(tid1, true);
+    assertEquals(0, ((HeapPage) bp.getPage(reader, p0, Permissions.READ_ONLY)).getNumEmptySlots());
+    assertEquals(1, bp.numVersions());
+
+    TransactionId later = new TransactionId();
+    bp.beginSnapshot(later);
+    assertEquals(1, ((HeapPage) bp.getPage(later, p0, Permissions.READ_ONLY)).getNumEmptySlots());
+    try {
+      bp.getPage(later, p1, Permissions.READ_WRITE);
+      fail("read-only transaction got a page for writing");
+    } catch (DbException e) {
+      // expected
+    }
+    bp.transactionComplete(reader);
+    bp.transactionComplete(later);
+    assertEquals(0, bp.numVersions());
+  }
+
+  /**
+   * Unit test for optimistic concurrency control.
+   * Transactions read and write the same page without waiting, each
+   * writer only sees its own copy, and a transaction that read a page
+   * another one wrote and committed meanwhile fails validation.
+   */
+  @Test public void optimisticValidation() throws Exception {
+    Database.setConcurrencyControl(Database.ConcurrencyControl.OPTIMISTIC);
+    try {
+      assertEquals(0, ((HeapPage) bp.getPage(tid1, p0, Permissions.READ_ONLY)).getNumEmptySlots());
+      HeapPage p = (HeapPage) bp.getPage(tid2, p0, Permissions.READ_WRITE);
+      p.deleteTuple(p.iterator().next());
+      assertEquals(0, ((HeapPage) bp.getPage(tid1, p0, Permissions.READ_ONLY)).getNumEmptySlots());
+      assertEquals(1, ((HeapPage) bp.getPage(tid2, p0, Permissions.READ_ONLY)).getNumEmptySlots());
+
+      bp.validate(tid2);
+      bp.transactionComplete(tid2, true);
+      assertEquals(1, ((HeapPage) empty.readPage(p0)).getNumEmptySlots());
+
+      bp.getPage(tid1, p1, Permissions.READ_WRITE);
+      try {
+        bp.validate(tid1);
+        fail("validated a transaction that read a page written since it began");
+      } catch (TransactionAbortedException e) {
+        // expected
+      }
+      bp.transactionComplete(tid1, false);
+
+      TransactionId tid3 = new TransactionId();
+      assertEquals(1, ((HeapPage) bp.getPage(tid3, p0, Permissions.READ_ONLY)).getNumEmptySlots());
+      bp.validate(tid3);
+      bp.transactionComplete(tid3, true);
+    } finally {
+      Database.setConcurrencyControl(Database.ConcurrencyControl.LOCKING);
+    }
+  }
+
   /**
    * JUnit suite target
    */
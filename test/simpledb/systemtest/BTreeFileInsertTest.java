@@ -37,7 +37,7 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 	@Test public void addTuple() throws Exception {
 		// create an empty B+ tree file keyed on the second field of a 2-field tuple
 		File emptyFile = File.createTempFile("empty", ".dat");
-		emptyFile.deleteOnExit();
+		Utility.deleteOnExit(emptyFile);
 		Database.reset();
 		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 1);
 
@@ -77,7 +77,7 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 	@Test public void addDuplicateTuples() throws Exception {
 		// create an empty B+ tree file keyed on the second field of a 2-field tuple
 		File emptyFile = File.createTempFile("empty", ".dat");
-		emptyFile.deleteOnExit();
+		Utility.deleteOnExit(emptyFile);
 		Database.reset();
 		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 1);
 
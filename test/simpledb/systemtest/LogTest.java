@@ -427,6 +427,398 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestRedoLostWrite()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a committed page that did not make it to disk is redone from
+        // the log
+
+        hf1.writePage(new HeapPage(new HeapPageId(hf1.getId(), 0),
+                                   HeapPage.createEmptyPageData()));
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+    }
+
+    @Test public void TestNewLogAfterPageLSNs()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        Page p = hf1.readPage(pid);
+        p.setLSN(Long.MAX_VALUE / 2);
+        hf1.writePage(p);
+
+        // *** Test:
+        // a new log that replaces a lost one starts past the LSNs of the
+        // pages on disk
+        new File("log").delete();
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        doInsert(hf1, 1, -1);
+        long last = hf1.readPage(pid).getLSN();
+        assertTrue(last > Long.MAX_VALUE / 2);
+
+        // and a new log that replaces one on disk starts past its end,
+        // even if no table in the catalog was written under it
+        Database.reset();
+        hf2 = Utility.openHeapFile(2, file2);
+        doInsert(hf2, 2, -1);
+        assertTrue(hf2.readPage(new HeapPageId(hf2.getId(), 0)).getLSN() > last);
+    }
+
+    @Test public void TestRollbackCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts, is rolled back but crashes before its ABORT record
+        // T2 inserts in the slot T1 freed, and commits
+        // recovery must not undo T1 again over T2's tuple
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 14, 0);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+        Database.getLogFile().rollback(t1.getId());
+        Database.getBufferPool().transactionComplete(t1.getId(), false); // release locks
+
+        doInsert(hf1, 15, -1);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 14, false);
+        look(hf1, t, 15, true);
+        t.commit();
+    }
+
+    @Test public void TestGroupCommit()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // transactions that commit at the same time share a force of the
+        // log
+
+        final LogFile log = Database.getLogFile();
+        log.setGroupCommitDelay(50);
+        int forces = log.getTotalForces();
+        final int n = 8;
+        final Exception[] errors = new Exception[n];
+        Thread[] threads = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            final int j = i;
+            final Transaction t = new Transaction();
+            t.start();
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        t.commit();
+                    } catch (Exception e) {
+                        errors[j] = e;
+                    }
+                }
+            };
+        }
+        for (int i = 0; i < n; i++)
+            threads[i].start();
+        for (int i = 0; i < n; i++) {
+            threads[i].join();
+            assertNull(errors[i]);
+        }
+        assertTrue(log.getTotalForces() - forces < n);
+
+        // a later commit is forced as well
+        doInsert(hf1, 3, -1);
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestGroupCommitWrites()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // transactions that wrote pages and commit at the same time share
+        // the force of the log that covers their changes and their COMMIT
+        // records, and their pages are on disk once they committed
+
+        final int n = 8;
+        HeapFile[] tables = new HeapFile[n];
+        for (int i = 0; i < n; i++) {
+            File f = File.createTempFile("logtest", ".dat");
+            Utility.deleteOnExit(f);
+            tables[i] = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        }
+        final LogFile log = Database.getLogFile();
+        log.setGroupCommitDelay(50);
+        int forces = log.getTotalForces();
+        final Exception[] errors = new Exception[n];
+        Thread[] threads = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            final int j = i;
+            final Transaction t = new Transaction();
+            t.start();
+            insertRow(tables[i], t, i, 0);
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        t.commit();
+                    } catch (Exception e) {
+                        errors[j] = e;
+                    }
+                }
+            };
+        }
+        for (int i = 0; i < n; i++)
+            threads[i].start();
+        for (int i = 0; i < n; i++) {
+            threads[i].join();
+            assertNull(errors[i]);
+        }
+        assertTrue(log.getTotalForces() - forces < n);
+
+        int empty = new HeapPage(new HeapPageId(tables[0].getId(), 0),
+                                 HeapPage.createEmptyPageData()).getNumEmptySlots();
+        for (int i = 0; i < n; i++) {
+            HeapPage p = (HeapPage) tables[i].readPage(new HeapPageId(tables[i].getId(), 0));
+            assertEquals(empty - 1, p.getNumEmptySlots());
+        }
+    }
+
+    @Test public void TestFlushToLSN()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // records are kept in the log buffer, under increasing LSNs, until
+        // the log is flushed up to them
+
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 1, 0);
+        Page p = Database.getBufferPool().getPage(t.getId(),
+                                                  new HeapPageId(hf1.getId(), 0),
+                                                  Permissions.READ_ONLY);
+        LogFile log = Database.getLogFile();
+        long lsn1 = log.logWrite(t.getId(), p.getBeforeImage(), p);
+        long lsn2 = log.logWrite(t.getId(), p.getBeforeImage(), p);
+        assertTrue(lsn2 > lsn1);
+
+        File f = new File("log");
+        long length = f.length();
+        log.flushToLSN(lsn2);
+        // both records, of the same size, have been written
+        assertTrue(f.length() >= length + 2 * (lsn2 - lsn1));
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts but does not commit
+        // checkpoint, which writes no page of T1
+        // T1 inserts again, and its pages are stolen
+        // T2 inserts and commits
+        // crash
+        // T1 must be undone although it began before the checkpoint
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 16, 0);
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        int empty = ((HeapPage) hf1.readPage(pid)).getNumEmptySlots();
+
+        Database.getLogFile().logCheckpoint();
+        assertEquals(empty, ((HeapPage) hf1.readPage(pid)).getNumEmptySlots());
+
+        insertRow(hf1, t1, 17, 0);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+
+        doInsert(hf2, 18, -1);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 16, false);
+        look(hf1, t, 17, false);
+        look(hf2, t, 18, true);
+        t.commit();
+    }
+
+    @Test public void TestCheckpointer()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // the checkpointer takes a checkpoint once the log has grown
+        // past its threshold
+
+        LogFile log = Database.getLogFile();
+        log.startCheckpointer(0, 1);
+        try {
+            doInsert(hf1, 3, -1);
+            // the header of the log holds -1 until a checkpoint is taken
+            long checkpoint = -1;
+            for (int i = 0; i < 500 && checkpoint == -1; i++) {
+                Thread.sleep(10);
+                RandomAccessFile raf = new RandomAccessFile("log", "r");
+                checkpoint = raf.readLong();
+                raf.close();
+            }
+            assertTrue(checkpoint != -1);
+        } finally {
+            log.stopCheckpointer();
+        }
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestTruncate()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a checkpoint truncates the log once no more of it is needed than
+        // can go; transactions commit while the records kept are copied,
+        // and recovery finds their records too
+
+        File f = new File("log");
+        long length = f.length();
+        Database.getLogFile().logCheckpoint();
+        assertTrue(f.length() < length);
+
+        final int n = 20;
+        final Exception[] errors = new Exception[1];
+        Thread inserter = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < n; i++)
+                        doInsert(hf2, 100 + i, -1);
+                } catch (Exception e) {
+                    errors[0] = e;
+                }
+            }
+        };
+        inserter.start();
+        for (int i = 0; i < n; i++)
+            Database.getLogFile().logCheckpoint();
+        inserter.join();
+        assertNull(errors[0]);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        for (int i = 0; i < n; i++)
+            look(hf2, t, 100 + i, true);
+        t.commit();
+    }
+
+    /** A B+ tree whose page writes fail once its allowance is used up */
+    static class CrashingBTreeFile extends BTreeFile {
+        int writesLeft = -1; // no limit
+
+        CrashingBTreeFile(File f, int key, TupleDesc td) {
+            super(f, key, td);
+        }
+
+        public void writePage(Page page) throws IOException {
+            if (writesLeft == 0)
+                throw new IOException("LogTest: simulated crash");
+            if (writesLeft > 0)
+                writesLeft--;
+            super.writePage(page);
+        }
+    }
+
+    @Test public void TestSplitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        File file3 = new File("simple3.db");
+        file3.delete();
+        BTreeUtility.createEmptyBTreeFile(file3.getPath(), 2, 0);
+        CrashingBTreeFile bf = new CrashingBTreeFile(file3, 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+
+        // *** Test:
+        // T1 fills the root leaf and commits
+        // T2 inserts, which splits the leaf
+        // crash after the first page of the split is written
+        // recovery must finish the split, and the tree must be whole
+
+        int n = BTreeUtility.getNumTuplesPerPage(2);
+        Transaction t1 = new Transaction();
+        t1.start();
+        for (int i = 0; i < n; i++)
+            Database.getBufferPool().insertTuple(t1.getId(), bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        bf.writesLeft = 1;
+        try {
+            Database.getBufferPool().insertTuple(t2.getId(), bf.getId(), BTreeUtility.getBTreeTuple(n, 2));
+            fail("LogTest: the split did not crash");
+        } catch (IOException e) {
+            // the crash
+        }
+
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        BTreeFile bt = BTreeUtility.openBTreeFile(2, file3, 0);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        BTreeChecker.checkRep(bt, t.getId(), new HashMap<PageId, Page>(), false);
+        DbFileIterator it = bt.iterator(t.getId());
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(count, ((IntField) it.next().getField(0)).getValue());
+            count++;
+        }
+        it.close();
+        assertEquals(n, count);
+        t.commit();
+        file3.delete();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
@@ -7,6 +7,7 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -104,6 +105,181 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /** Test that a projection pushed into a SeqScan returns only its fields. */
+    @Test public void testProjection() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 1000, null, tuples);
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "table");
+        scan.setProjection(new int[]{2, 0});
+        assertEquals(2, scan.getTupleDesc().numFields());
+        assertEquals(scan.getTupleDesc().getFieldName(0), "table." + f.getTupleDesc().getFieldName(2));
+        scan.open();
+        for (ArrayList<Integer> expected : tuples) {
+            assertTrue(scan.hasNext());
+            ArrayList<Integer> actual = SystemTestUtil.tupleToList(scan.next());
+            assertEquals(expected.get(2), actual.get(0));
+            assertEquals(expected.get(0), actual.get(1));
+            assertEquals(2, actual.size());
+        }
+        assertFalse(scan.hasNext());
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that the planner only scans the fields a query refers to. */
+    @Test public void testPlannerProjection() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(5, 2000, 10, null, tuples, "c");
+        Database.getCatalog().addTable(f, "narrow");
+        TableStats.setTableStats("narrow", new TableStats(f.getId(), 10));
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT n.c1, SUM(n.c3) FROM narrow n WHERE n.c4 < 5 GROUP BY n.c1;");
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        OpIterator scan = plan;
+        while (!(scan instanceof SeqScan))
+            scan = ((Operator) scan).getChildren()[0];
+        assertArrayEquals(new int[]{1, 3}, ((SeqScan) scan).getProjection());
+
+        int[] sums = new int[10];
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(4) < 5)
+                sums[t.get(1)] += t.get(3);
+        }
+        plan.open();
+        int groups = 0;
+        while (plan.hasNext()) {
+            ArrayList<Integer> t = SystemTestUtil.tupleToList(plan.next());
+            assertEquals(sums[t.get(0)], (int) t.get(1));
+            groups++;
+        }
+        plan.close();
+        assertTrue(groups > 0);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that a range predicate pushed into a SeqScan skips pages by their zone map. */
+    @Test public void testZoneMap() throws Exception {
+        /** Counts the pages read from the table file. */
+        class CountingHeapFile extends HeapFile {
+            public CountingHeapFile(File f, TupleDesc td) {
+                super(f, td);
+            }
+
+            @Override
+            public Page readPage(PageId pid) {
+                readCount += 1;
+                return super.readPage(pid);
+            }
+
+            public int readCount = 0;
+        }
+
+        // one column of increasing values, so every page holds its own range
+        final int PAGES = 30, PER_PAGE = 992;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < PAGES * PER_PAGE; i++) {
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            t.add(i);
+            tuples.add(t);
+        }
+        File f = File.createTempFile("table", ".dat");
+        Utility.deleteOnExit(f);
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 1);
+        CountingHeapFile table = new CountingHeapFile(f, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId());
+        scan.addPredicate(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(10 * PER_PAGE)));
+        scan.addPredicate(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(12 * PER_PAGE)));
+        SystemTestUtil.matchTuples(scan, tuples.subList(10 * PER_PAGE, 12 * PER_PAGE));
+        assertEquals(2, table.readCount);
+        // the pages skipped are locked all the same
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(table.getId(), 0)));
+
+        // an insert widens the summary of the page it lands on right away,
+        // and writing an image of the page without it does not narrow it
+        Tuple t = new Tuple(table.getTupleDesc());
+        t.setField(0, new IntField(5));
+        Database.getBufferPool().insertTuple(tid, table.getId(), t);
+        HeapPageId lastPid = new HeapPageId(table.getId(), table.numPages() - 1);
+        table.writePage(new HeapPage(lastPid, HeapPage.createEmptyPageData()));
+        scan = new SeqScan(tid, table.getId());
+        scan.addPredicate(new Predicate(0, Predicate.Op.EQUALS, new IntField(5)));
+        int matches = 0;
+        scan.open();
+        while (scan.hasNext()) {
+            assertEquals(new IntField(5), scan.next().getField(0));
+            matches++;
+        }
+        scan.close();
+        assertEquals(2, matches);
+        Database.getBufferPool().transactionComplete(tid);
+
+        // the summaries are persisted next to the table
+        ZoneMap zm = new HeapFile(f, Utility.getTupleDesc(1)).getZoneMap();
+        assertEquals(0, zm.getMin(0, 0));
+        assertEquals(PER_PAGE - 1, zm.getMax(0, 0));
+        int last = table.numPages() - 1;
+        assertEquals(5, zm.getMin(last, 0));
+        assertTrue(zm.mayMatch(last, new Predicate[]{new Predicate(0, Predicate.Op.EQUALS, new IntField(5))}));
+        assertFalse(zm.mayMatch(1, new Predicate[]{new Predicate(0, Predicate.Op.EQUALS, new IntField(5))}));
+
+        // committed deletes narrow the summaries of the pages they emptied
+        tid = new TransactionId();
+        scan = new SeqScan(tid, table.getId());
+        scan.addPredicate(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(2 * PER_PAGE)));
+        scan.addPredicate(new Predicate(0, Predicate.Op.NOT_EQUALS, new IntField(PER_PAGE)));
+        scan.open();
+        while (scan.hasNext())
+            Database.getBufferPool().deleteTuple(tid, scan.next());
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        for (ZoneMap z : new ZoneMap[]{table.getZoneMap(), new HeapFile(f, Utility.getTupleDesc(1)).getZoneMap()}) {
+            assertEquals(0, z.getTupleCount(0));
+            assertFalse(z.mayMatch(0, null));
+            assertEquals(1, z.getTupleCount(1));
+            assertEquals(PER_PAGE, z.getMin(1, 0));
+            assertEquals(PER_PAGE, z.getMax(1, 0));
+        }
+    }
+
+    /** Test that a projected scan of a B+ tree is grouped on the right key. */
+    @Test public void testPlannerProjectionBTree() throws Exception {
+        // keyed on c1, grouped on c2, and c1 is projected away
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 1000; i++)
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, i, i % 10)));
+        File hFile = File.createTempFile("table", ".dat");
+        Utility.deleteOnExit(hFile);
+        File bFile = File.createTempFile("table_index", ".dat");
+        Utility.deleteOnExit(bFile);
+        Type[] types = new Type[]{Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE};
+        BTreeFileEncoder.convert(tuples, hFile, bFile, BufferPool.getPageSize(), 3, types, ',', 1);
+        BTreeFile f = BTreeUtility.openBTreeFile(3, "c", bFile, 1);
+        Database.getCatalog().addTable(f, "keyed");
+        TableStats.setTableStats("keyed", new TableStats(f.getId(), 10));
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT k.c2, COUNT(k.c0) FROM keyed k GROUP BY k.c2;");
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        plan.open();
+        int groups = 0;
+        while (plan.hasNext()) {
+            ArrayList<Integer> t = SystemTestUtil.tupleToList(plan.next());
+            assertEquals(100, (int) t.get(1));
+            groups++;
+        }
+        plan.close();
+        assertEquals(10, groups);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(ScanTest.class);